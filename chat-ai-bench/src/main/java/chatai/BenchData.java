@@ -0,0 +1,63 @@
+package chatai;
+
+import java.util.Random;
+
+/**
+ * Inputs shaped like real ones: ada-002 sized, clustered embeddings, and
+ * English-like text of a given number of words.
+ */
+class BenchData
+{
+    static final int DIMENSIONS = 1536;
+
+    // Drawn once, the same for every run, as RecallReport.synthetic does
+    private static final int CLUSTERS = 64;
+    private static final float[][] CENTROIDS = centroids(new Random(0));
+
+    private static final String[] WORDS = {
+            "the", "dragon", "sleeps", "under", "mountain", "while", "knights",
+            "wait", "for", "dawn", "a", "wizard", "reads", "ancient", "scrolls",
+            "in", "tower", "of", "glass", "and", "rain", "falls", "on", "village"
+    };
+
+    static String text(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0)
+                text.append(i % 12 == 0 ? "\n  " : " ");
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * A unit vector close to one of a fixed set of random centroids, so that
+     * embeddings of the same cluster are more similar than those of others,
+     * like embeddings of texts on the same topic.
+     */
+    static float[] embedding(Random random) {
+        float[] centroid = CENTROIDS[random.nextInt(CLUSTERS)];
+        float[] values = new float[DIMENSIONS];
+        for (int i = 0; i < values.length; i++)
+            values[i] = centroid[i] + (float) (random.nextGaussian() * .5);
+        return normalize(values);
+    }
+
+    private static float[][] centroids(Random random) {
+        float[][] centroids = new float[CLUSTERS][DIMENSIONS];
+        for (float[] centroid : centroids)
+            for (int i = 0; i < DIMENSIONS; i++)
+                centroid[i] = (float) random.nextGaussian();
+        return centroids;
+    }
+
+    private static float[] normalize(float[] values) {
+        double sum = 0;
+        for (float value : values)
+            sum += value * value;
+        float norm = (float) Math.sqrt(sum);
+        for (int i = 0; i < values.length; i++)
+            values[i] /= norm;
+        return values;
+    }
+}
@@ -0,0 +1,37 @@
+package chatai;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line, taking the same options
+ * as {@code org.openjdk.jmh.Main}, always with the GC profiler, so that the
+ * allocation rate of each benchmark ({@code gc.alloc.rate.norm}, in bytes
+ * per operation) is reported next to its time:
+ * <pre>
+ * java -jar chat-ai-bench/target/benchmarks.jar [regexp] [-p param=value] [-l]
+ * </pre>
+ */
+public class Benchmarks
+{
+    public static void main(String[] args)
+    throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        Options options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build();
+        Runner runner = new Runner(options);
+        if (commandLine.shouldList())
+            runner.list();
+        else
+            runner.run();
+    }
+}
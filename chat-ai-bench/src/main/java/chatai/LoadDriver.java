@@ -0,0 +1,356 @@
+package chatai;
+
+import chatai.FakeOpenAiServer.Config;
+import chatai.FakeOpenAiServer.Latency;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Fires concurrent streams of prompts at {@link Chat}, either in process or
+ * through the {@code /chat} endpoint of chat-ai-rest, with OpenAI replaced by
+ * a {@link FakeOpenAiServer}, and reports the throughput and the p50, p95
+ * and p99 of whole requests and of each {@link ChatMetrics.Stage}:
+ * <pre>
+ * java --enable-preview --add-modules jdk.incubator.vector \
+ *     -cp chat-ai-bench/target/benchmarks.jar chatai.LoadDriver [--option=value...]
+ * </pre>
+ * Each stream sends its next prompt as soon as the previous one is answered,
+ * in one of {@code --conversations} conversations.
+ * In process, {@link Chat} is configured from the environment as usual, except
+ * for the OpenAI base URL; against chat-ai-rest, the server must be started
+ * with {@code OPENAI_BASE_URL} pointing at the stand-in, on
+ * {@code --openai-port}.
+ */
+public class LoadDriver
+{
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private static final Map<String, String> DEFAULTS = Map.ofEntries(
+            Map.entry("target", "chat"),
+            Map.entry("url", "http://localhost:8080/chat"),
+            Map.entry("streams", "16"),
+            Map.entry("requests", "50"),
+            Map.entry("conversations", "1"),
+            Map.entry("words", "30"),
+            Map.entry("stream-replies", "false"),
+            Map.entry("warm-up", "500"),
+            Map.entry("openai-port", "8090"),
+            Map.entry("dimensions", "1536"),
+            Map.entry("embedding-latency-ms", "40"),
+            Map.entry("embedding-p99-ms", "150"),
+            Map.entry("chat-latency-ms", "800"),
+            Map.entry("chat-p99-ms", "3000"),
+            Map.entry("error-rate", "0"),
+            Map.entry("error-statuses", "429,500,503"),
+            Map.entry("seed", "42"));
+
+    private record Result(long[] nanos, int failures, String failure) {}
+
+    public static void main(String[] args)
+    throws Exception {
+        Map<String, String> options = options(args);
+        String target = options.get("target");
+        int streams = Integer.parseInt(options.get("streams"));
+        int requests = Integer.parseInt(options.get("requests"));
+        Config config = new Config(
+                Integer.parseInt(options.get("dimensions")),
+                Latency.logNormal(millis(options, "embedding-latency-ms"), millis(options, "embedding-p99-ms")),
+                Latency.logNormal(millis(options, "chat-latency-ms"), millis(options, "chat-p99-ms")),
+                Double.parseDouble(options.get("error-rate")),
+                Arrays.stream(options.get("error-statuses").split(",")).map(String::trim).map(Integer::valueOf).toList(),
+                Long.parseLong(options.get("seed")));
+        int openAiPort = "chat".equals(target) ? 0 : Integer.parseInt(options.get("openai-port"));
+
+        try (FakeOpenAiServer openAi = new FakeOpenAiServer(config, openAiPort)) {
+            System.out.println("Fake OpenAI API at " + openAi.baseUrl());
+            switch (target) {
+                case "chat" -> loadChat(options, openAi, streams, requests);
+                case "rest" -> loadRest(options, streams, requests);
+                default -> throw new IllegalArgumentException("Unknown --target: " + target);
+            }
+            System.out.printf("OpenAI stand-in: %d requests, %d injected errors%n", openAi.requests(), openAi.errors());
+        }
+    }
+
+    private static void loadChat(Map<String, String> options, FakeOpenAiServer openAi, int streams, int requests)
+    throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        registry.config().meterFilter(new MeterFilter()
+        {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                return DistributionStatisticConfig.builder()
+                        .percentiles(PERCENTILES)
+                        .expiry(Duration.ofDays(1))
+                        .bufferLength(1)
+                        .build()
+                        .merge(config);
+            }
+        });
+        boolean streamReplies = Boolean.parseBoolean(options.get("stream-replies"));
+        try (Chat chat = Chat.create(registry, openAi.baseUrl())) {
+            chat.warmUp(Integer.parseInt(options.get("warm-up")));
+            long start = System.nanoTime();
+            List<Result> results = run(streams, requests, options, (conversation, prompt) -> {
+                ChatRequest request = new ChatRequest("load-test", prompt, conversation);
+                if (streamReplies)
+                    awaitStream(chat, request);
+                else
+                    chat.askCompletion(request);
+            });
+            long elapsed = System.nanoTime() - start;
+            report("chat", streams, requests, results, elapsed);
+            for (ChatMetrics.Stage stage : ChatMetrics.Stage.values()) {
+                Timer timer = registry.find("chat.stage").tag("stage", stage.name()).timer();
+                if (timer == null || timer.count() == 0)
+                    continue;
+                double[] values = new double[PERCENTILES.length];
+                for (ValueAtPercentile value : timer.takeSnapshot().percentileValues())
+                    values[Arrays.binarySearch(PERCENTILES, value.percentile())] = value.value(TimeUnit.MILLISECONDS);
+                row(stage.name(), timer.count(), values);
+            }
+        }
+    }
+
+    private static void awaitStream(Chat chat, ChatRequest request)
+    throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        chat.streamCompletion(request).subscribe(new Flow.Subscriber<>()
+        {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ChatDelta item) {
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(null);
+            }
+        });
+        done.get();
+    }
+
+    private static void loadRest(Map<String, String> options, int streams, int requests)
+    throws Exception {
+        URI chatUri = URI.create(options.get("url"));
+        URI metricsUri = chatUri.resolve("/q/metrics");
+        boolean streamReplies = Boolean.parseBoolean(options.get("stream-replies"));
+        URI uri = streamReplies ? URI.create(chatUri + "/stream") : chatUri;
+        try (HttpClient http = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build()) {
+            Map<String, NavigableMap<Double, Double>> before = stageBuckets(http, metricsUri);
+            long start = System.nanoTime();
+            List<Result> results = run(streams, requests, options, (conversation, prompt) -> {
+                HttpRequest request = HttpRequest.newBuilder(uri)
+                        .header("Content-Type", "application/json")
+                        .header("Accept", streamReplies ? "text/event-stream" : "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(
+                                Json.jsonb().toJson(new ChatRequest("load-test", prompt, conversation))))
+                        .build();
+                HttpResponse<InputStream> response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream is = response.body()) {
+                    String body = new String(is.readAllBytes(), UTF_8);
+                    if (response.statusCode() >= 400)
+                        throw new IllegalStateException("Status " + response.statusCode() + ": " + body);
+                }
+            });
+            long elapsed = System.nanoTime() - start;
+            report("rest", streams, requests, results, elapsed);
+            Map<String, NavigableMap<Double, Double>> after = stageBuckets(http, metricsUri);
+            for (ChatMetrics.Stage stage : ChatMetrics.Stage.values()) {
+                NavigableMap<Double, Double> buckets = after.get(stage.name());
+                if (buckets == null)
+                    continue;
+                NavigableMap<Double, Double> previous = before.getOrDefault(stage.name(), new TreeMap<>());
+                buckets.replaceAll((le, count) -> count - previous.getOrDefault(le, 0.0));
+                double count = buckets.lastEntry().getValue();
+                if (count == 0)
+                    continue;
+                double[] values = new double[PERCENTILES.length];
+                for (int i = 0; i < PERCENTILES.length; i++)
+                    values[i] = quantile(PERCENTILES[i], buckets) * 1000;
+                row(stage.name(), (long) count, values);
+            }
+        }
+    }
+
+    private interface Send
+    {
+        void send(String conversation, String prompt) throws Exception;
+    }
+
+    private static List<Result> run(int streams, int requests, Map<String, String> options, Send send)
+    throws Exception {
+        int words = Integer.parseInt(options.get("words"));
+        int conversations = Integer.parseInt(options.get("conversations"));
+        long seed = Long.parseLong(options.get("seed"));
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for (int s = 0; s < streams; s++) {
+            Random random = new Random(seed + s);
+            int stream = s;
+            String conversation = conversations > 1 ? "load-" + s % conversations : null;
+            tasks.add(() -> {
+                long[] nanos = new long[requests];
+                int failures = 0;
+                String failure = null;
+                for (int i = 0; i < requests; i++) {
+                    // Unique prompts, so that no embedding is served from cache
+                    String prompt = "[" + stream + "/" + i + "] " + BenchData.text(random, words);
+                    long start = System.nanoTime();
+                    try {
+                        send.send(conversation, prompt);
+                    } catch (Exception e) {
+                        failures++;
+                        failure = e.toString();
+                    }
+                    nanos[i] = System.nanoTime() - start;
+                }
+                return new Result(nanos, failures, failure);
+            });
+        }
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : executor.invokeAll(tasks))
+                results.add(future.get());
+            return results;
+        }
+    }
+
+    private static void report(String target, int streams, int requests, List<Result> results, long elapsedNanos) {
+        long[] nanos = results.stream().flatMapToLong(result -> Arrays.stream(result.nanos())).sorted().toArray();
+        int failures = results.stream().mapToInt(Result::failures).sum();
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf(
+                "%s: %d streams x %d requests in %.1f s, %.1f requests/s, %d failed%n",
+                target, streams, requests, seconds, nanos.length / seconds, failures);
+        results.stream()
+                .map(Result::failure)
+                .filter(Objects::nonNull)
+                .findFirst()
+                .ifPresent(failure -> System.out.println("  for example: " + failure));
+        System.out.printf("%-14s %8s %10s %10s %10s%n", "ms", "count", "p50", "p95", "p99");
+        double[] values = new double[PERCENTILES.length];
+        for (int i = 0; i < PERCENTILES.length; i++)
+            values[i] = nanos[Math.min(nanos.length - 1, (int) Math.ceil(PERCENTILES[i] * nanos.length) - 1)] / 1e6;
+        row("request", nanos.length, values);
+    }
+
+    private static void row(String name, long count, double[] values) {
+        System.out.printf("%-14s %8d %10.2f %10.2f %10.2f%n", name, count, values[0], values[1], values[2]);
+    }
+
+    private static final Pattern BUCKET = Pattern.compile("^chat_stage_seconds_bucket\\{(.*)} (\\S+)$");
+    private static final Pattern TAG = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    /**
+     * The cumulative buckets of the {@code chat.stage} histograms, by stage,
+     * as scraped from the Prometheus endpoint.
+     */
+    private static Map<String, NavigableMap<Double, Double>> stageBuckets(HttpClient http, URI metrics)
+    throws Exception {
+        String body = http.send(
+                HttpRequest.newBuilder(metrics).GET().build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        Map<String, NavigableMap<Double, Double>> buckets = new HashMap<>();
+        for (String line : body.split("\n")) {
+            Matcher bucket = BUCKET.matcher(line);
+            if (!bucket.matches())
+                continue;
+            String stage = null;
+            double le = Double.NaN;
+            Matcher tag = TAG.matcher(bucket.group(1));
+            while (tag.find()) {
+                switch (tag.group(1)) {
+                    case "stage" -> stage = tag.group(2);
+                    case "le" -> le = "+Inf".equals(tag.group(2))
+                            ? Double.POSITIVE_INFINITY
+                            : Double.parseDouble(tag.group(2));
+                }
+            }
+            if (stage != null)
+                buckets.computeIfAbsent(stage, s -> new TreeMap<>())
+                        .merge(le, Double.parseDouble(bucket.group(2)), Double::sum);
+        }
+        return buckets;
+    }
+
+    /**
+     * Interpolates linearly within the bucket holding the quantile, as
+     * Prometheus' {@code histogram_quantile} does.
+     */
+    private static double quantile(double q, NavigableMap<Double, Double> cumulative) {
+        double rank = q * cumulative.lastEntry().getValue();
+        double lower = 0;
+        double below = 0;
+        for (Map.Entry<Double, Double> bucket : cumulative.entrySet()) {
+            if (bucket.getValue() >= rank) {
+                if (bucket.getKey().isInfinite())
+                    return lower;
+                double inBucket = bucket.getValue() - below;
+                return inBucket == 0
+                        ? bucket.getKey()
+                        : lower + (bucket.getKey() - lower) * (rank - below) / inBucket;
+            }
+            lower = bucket.getKey();
+            below = bucket.getValue();
+        }
+        return lower;
+    }
+
+    private static Duration millis(Map<String, String> options, String name) {
+        return Duration.ofMillis(Long.parseLong(options.get(name)));
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0 || !DEFAULTS.containsKey(arg.substring(2, eq)))
+                throw new IllegalArgumentException(
+                        "Unknown option " + arg + ", expected --name=value with name one of " + DEFAULTS.keySet());
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,74 @@
+package chatai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the messages of a completion request as {@link Chat} does, once the
+ * prompt is embedded: searches the similar messages within the token budget
+ * left by the contexts and the prompt, then composes them in order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class PromptAssemblyBenchmark
+{
+    @Param({"100", "1000", "10000"})
+    int history;
+
+    @Param({"500", "3000", "16000"})
+    int tokenLimit;
+
+    private IndexedPromptRepository repository;
+    private Chat chat;
+    private PromptSetup setup;
+    private Message prompt;
+    private Embedding promptEmbedding;
+
+    @Setup
+    public void setUp()
+    throws Exception {
+        Random random = new Random(1);
+        repository = new IndexedPromptRepository(new ExactIndex(BenchData.DIMENSIONS));
+        List<Message> messages = new ArrayList<>(history);
+        List<Embedding> embeddings = new ArrayList<>(history);
+        for (int i = 0; i < history; i++) {
+            Role role = i % 2 == 0 ? Role.user : Role.assistant;
+            messages.add(new Message(role, i + " " + BenchData.text(random, 40), Instant.ofEpochSecond(i)));
+            embeddings.add(new Embedding(BenchData.embedding(random)));
+        }
+        repository.saveMessages(messages, embeddings);
+        chat = new Chat(repository, null, tokenLimit);
+        setup = PromptSetup.of(
+                List.of(new Context("setting", BenchData.text(random, 60))),
+                List.of());
+        prompt = new Message(Role.user, BenchData.text(random, 20), Instant.now());
+        promptEmbedding = new Embedding(BenchData.embedding(random));
+    }
+
+    @Benchmark
+    public List<OpenAiRequestMessage> assemble()
+    throws Exception {
+        List<Message> similar = repository.semanticSearch(
+                prompt.conversation(), prompt.content(), promptEmbedding, chat.tokenBudget(setup, prompt));
+        return chat.composeMessages(similar, setup, prompt);
+    }
+}
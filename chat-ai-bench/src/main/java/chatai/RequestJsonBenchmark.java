@@ -0,0 +1,70 @@
+package chatai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes the request bodies sent to OpenAI, including the whitespace
+ * normalization of every message, as {@link OpenAiRequestWriter} does
+ * for each completion and embedding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class RequestJsonBenchmark
+{
+    @Param({"5", "50"})
+    int messages;
+
+    private final OpenAiRequestWriter writer = new OpenAiRequestWriter();
+    private List<OpenAiRequestMessage> chatMessages;
+    private List<ModelFunction> functions;
+    private List<String> texts;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        chatMessages = new ArrayList<>(messages);
+        texts = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            String text = BenchData.text(random, 60) + " \"quoted\"\t" + BenchData.text(random, 10);
+            Role role = i == 0 ? Role.system : i % 2 == 0 ? Role.assistant : Role.user;
+            chatMessages.add(new OpenAiRequestMessage(role, text));
+            texts.add(text);
+        }
+        functions = List.of(new ModelFunction("roll", """
+                {"name":"roll","description":"Rolls dice","parameters":{"type":"object",\
+                "properties":{"sides":{"type":"integer"},"count":{"type":"integer"}}}}"""));
+    }
+
+    @Benchmark
+    public int chatRequest() {
+        try (JsonBuffer json = writer.chatRequest(chatMessages, functions, 500, false)) {
+            return json.size();
+        }
+    }
+
+    @Benchmark
+    public int embeddingsRequest() {
+        try (JsonBuffer json = writer.embeddingsRequest(texts)) {
+            return json.size();
+        }
+    }
+}
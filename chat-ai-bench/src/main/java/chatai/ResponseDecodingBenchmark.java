@@ -0,0 +1,77 @@
+package chatai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Decodes OpenAI responses as {@link OpenAiCodec} does: embeddings
+ * responses of 1536 floats per input, printed as the API does, and a chat
+ * completion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class ResponseDecodingBenchmark
+{
+    @Param({"1", "16"})
+    int inputs;
+
+    private byte[] embeddings;
+    private byte[] completion;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        StringBuilder json = new StringBuilder("{\n  \"object\": \"list\",\n  \"data\": [\n");
+        for (int i = 0; i < inputs; i++) {
+            if (i > 0)
+                json.append(",\n");
+            json.append("    {\n      \"object\": \"embedding\",\n      \"index\": ").append(i)
+                    .append(",\n      \"embedding\": [\n");
+            float[] values = BenchData.embedding(random);
+            for (int d = 0; d < values.length; d++) {
+                json.append(d == 0 ? "        " : ",\n        ").append(values[d]);
+            }
+            json.append("\n      ]\n    }");
+        }
+        json.append("\n  ],\n  \"model\": \"text-embedding-ada-002-v2\",\n")
+                .append("  \"usage\": {\n    \"prompt_tokens\": 8,\n    \"total_tokens\": 8\n  }\n}\n");
+        embeddings = json.toString().getBytes(UTF_8);
+        completion = ("""
+                {"id":"chatcmpl-123","object":"chat.completion","created":1677652288,\
+                "model":"gpt-3.5-turbo-0613","choices":[{"index":0,"message":{"role":"assistant",\
+                "content":"%s"},"finish_reason":"stop"}],\
+                "usage":{"prompt_tokens":2500,"completion_tokens":120,"total_tokens":2620}}"""
+                .formatted(BenchData.text(random, 120).replace("\n", "\\n")))
+                .getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public List<Embedding> embeddings() {
+        return OpenAiCodec.embeddings(new ByteArrayInputStream(embeddings));
+    }
+
+    @Benchmark
+    public ChatResponse chatResponse() {
+        return OpenAiCodec.chatResponse(new ByteArrayInputStream(completion));
+    }
+}
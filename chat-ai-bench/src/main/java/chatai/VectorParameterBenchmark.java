@@ -0,0 +1,51 @@
+package chatai;
+
+import com.pgvector.PGvector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts embeddings to and from the text form of pgvector, as
+ * {@link PgVectorPromptRepository} does for every vector bound to a
+ * statement, and for every vector read back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class VectorParameterBenchmark
+{
+    private float[] values;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        values = BenchData.embedding(new Random(1));
+        text = new PGvector(values).getValue();
+    }
+
+    @Benchmark
+    public String bind() {
+        return new PGvector(values).getValue();
+    }
+
+    @Benchmark
+    public float[] read()
+    throws SQLException {
+        return new PGvector(text).toArray();
+    }
+}
@@ -0,0 +1,24 @@
+package chatai;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public interface AsyncOpenAiClient
+{
+    CompletableFuture<Embedding> embedAsync(
+            String apiKey,
+            String value
+    );
+
+    CompletableFuture<List<Embedding>> embedBatchAsync(
+            String apiKey,
+            List<String> values
+    );
+
+    CompletableFuture<ChatResponse> chatCompletionAsync(
+            String apiKey,
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens
+    );
+}
@@ -0,0 +1,182 @@
+package chatai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces concurrent {@link #embed} calls into a single embeddings request:
+ * the first pending call opens a window of {@code maxDelay}, and everything
+ * queued until the window closes, or until {@code maxBatchSize} inputs are
+ * collected, is sent with one {@link OpenAiClient#embedBatch} call per API key.
+ * <p>
+ * Closing fails the calls still queued, and the ones made afterwards, and
+ * closes the delegate.
+ *
+ * @see <a href="https://platform.openai.com/docs/api-reference/embeddings/create"/>
+ */
+public class BatchingOpenAiClient
+        implements OpenAiClient, AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(BatchingOpenAiClient.class);
+
+    // Inputs accepted by a single embeddings request
+    private static final int OPENAI_MAX_EMBEDDING_INPUTS = 2048;
+
+    private final OpenAiClient delegate;
+    private final int maxBatchSize;
+    private final Duration maxDelay;
+    private final BlockingQueue<PendingEmbedding> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+    private final Thread collector;
+    private volatile boolean closed;
+
+    public BatchingOpenAiClient(
+            OpenAiClient delegate,
+            int maxBatchSize,
+            Duration maxDelay
+    ) {
+        this.delegate = delegate;
+        this.maxBatchSize = Math.min(maxBatchSize, OPENAI_MAX_EMBEDDING_INPUTS);
+        this.maxDelay = maxDelay;
+        this.collector = Thread.ofPlatform()
+                .name("embedding-batcher")
+                .daemon()
+                .start(this::collect);
+    }
+
+    @Override
+    public Embedding embed(
+            String apiKey,
+            String value
+    ) throws Exception {
+        if (closed)
+            throw closedException();
+        PendingEmbedding pending =
+                new PendingEmbedding(apiKey, value, new CompletableFuture<>());
+        queue.put(pending);
+        // Closed meanwhile, after the queue was drained
+        if (closed && queue.remove(pending))
+            throw closedException();
+        try {
+            return pending.result().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Embedding> embedBatch(
+            String apiKey,
+            List<String> values
+    ) throws Exception {
+        return delegate.embedBatch(apiKey, values);
+    }
+
+    @Override
+    public ChatResponse chatCompletion(
+            String apiKey,
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens
+    ) throws Exception {
+        return delegate.chatCompletion(apiKey, messages, functions, maxTokens);
+    }
+
+    @Override
+    public ChatResponse streamChatCompletion(
+            String apiKey,
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens,
+            Consumer<ChatDelta> deltas
+    ) throws Exception {
+        return delegate.streamChatCompletion(apiKey, messages, functions, maxTokens, deltas);
+    }
+
+    @Override
+    public void close()
+    throws Exception {
+        closed = true;
+        collector.interrupt();
+        try {
+            collector.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        senders.close();
+        List<PendingEmbedding> abandoned = new ArrayList<>();
+        queue.drainTo(abandoned);
+        abandoned.forEach(p -> p.result().completeExceptionally(closedException()));
+        if (delegate instanceof AutoCloseable closeable)
+            closeable.close();
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("Client closed");
+    }
+
+    private void collect() {
+        List<PendingEmbedding> batch = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxDelay.toNanos();
+                while (batch.size() < maxBatchSize) {
+                    PendingEmbedding next = queue.poll(
+                            deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                Map<String, List<PendingEmbedding>> byKey = new LinkedHashMap<>();
+                for (PendingEmbedding pending : batch)
+                    byKey.computeIfAbsent(pending.apiKey(), k -> new ArrayList<>())
+                            .add(pending);
+                byKey.forEach((apiKey, group) ->
+                        senders.submit(() -> send(apiKey, group)));
+                batch = new ArrayList<>();
+            }
+        } catch (InterruptedException e) {
+            batch.forEach(p -> p.result().completeExceptionally(closedException()));
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(
+            String apiKey,
+            List<PendingEmbedding> group
+    ) {
+        try {
+            LOG.debug("Sending batch of " + group.size() + " embeddings");
+            List<Embedding> embeddings = delegate.embedBatch(
+                    apiKey,
+                    group.stream().map(PendingEmbedding::value).toList());
+            for (int i = 0; i < group.size(); i++)
+                group.get(i).result().complete(embeddings.get(i));
+        } catch (Exception e) {
+            group.forEach(p -> p.result().completeExceptionally(e));
+        }
+    }
+
+    private record PendingEmbedding(
+            String apiKey,
+            String value,
+            CompletableFuture<Embedding> result
+    ) {}
+}
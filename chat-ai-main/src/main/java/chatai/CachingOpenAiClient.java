@@ -0,0 +1,191 @@
+package chatai;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Serves embeddings from two tiers before asking the delegate client:
+ * a bounded in-memory cache (W-TinyLFU eviction) keyed by model name and
+ * SHA-256 of the text, and the messages already stored in the repository,
+ * whose embeddings were computed with the same model. The repository is
+ * only searched within the conversation of the text, the default one when
+ * not given, so that Postgres looks it up in one partition, by its unique
+ * index. Closing closes the delegate, but not the repository.
+ *
+ * @see <a href="https://github.com/ben-manes/caffeine/wiki/Efficiency"/>
+ */
+public class CachingOpenAiClient
+        implements OpenAiClient, AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CachingOpenAiClient.class);
+
+    private final OpenAiClient delegate;
+    private final PromptRepository repository;
+    private final String model;
+    private final Cache<Key, Embedding> cache;
+    private final LongAdder persistentHits = new LongAdder();
+
+    public CachingOpenAiClient(
+            OpenAiClient delegate,
+            PromptRepository repository,
+            String model,
+            long maxSize
+    ) {
+        this.delegate = delegate;
+        this.repository = repository;
+        this.model = model;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public Embedding embed(
+            String apiKey,
+            String value
+    ) throws Exception {
+        return embed(apiKey, Message.DEFAULT_CONVERSATION, value);
+    }
+
+    @Override
+    public Embedding embed(
+            String apiKey,
+            String conversation,
+            String value
+    ) throws Exception {
+        Key key = new Key(model, sha256(value));
+        Embedding cached = lookup(key, conversation, value);
+        if (cached != null)
+            return cached;
+
+        Embedding embedding = delegate.embed(apiKey, value);
+        cache.put(key, embedding);
+        return embedding;
+    }
+
+    @Override
+    public List<Embedding> embedBatch(
+            String apiKey,
+            List<String> values
+    ) throws Exception {
+        return embedBatch(apiKey, Message.DEFAULT_CONVERSATION, values);
+    }
+
+    @Override
+    public List<Embedding> embedBatch(
+            String apiKey,
+            String conversation,
+            List<String> values
+    ) throws Exception {
+        Embedding[] embeddings = new Embedding[values.size()];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            Embedding cached = lookup(
+                    new Key(model, sha256(values.get(i))),
+                    conversation,
+                    values.get(i));
+            if (cached != null)
+                embeddings[i] = cached;
+            else
+                missing.add(i);
+        }
+
+        if (!missing.isEmpty()) {
+            List<Embedding> fetched = delegate.embedBatch(
+                    apiKey,
+                    missing.stream().map(values::get).toList());
+            for (int i = 0; i < missing.size(); i++) {
+                int index = missing.get(i);
+                embeddings[index] = fetched.get(i);
+                cache.put(new Key(model, sha256(values.get(index))), fetched.get(i));
+            }
+        }
+        return List.of(embeddings);
+    }
+
+    @Override
+    public ChatResponse chatCompletion(
+            String apiKey,
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens
+    ) throws Exception {
+        return delegate.chatCompletion(apiKey, messages, functions, maxTokens);
+    }
+
+    @Override
+    public ChatResponse streamChatCompletion(
+            String apiKey,
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens,
+            Consumer<ChatDelta> deltas
+    ) throws Exception {
+        return delegate.streamChatCompletion(apiKey, messages, functions, maxTokens, deltas);
+    }
+
+    public EmbeddingCacheStats stats() {
+        CacheStats stats = cache.stats();
+        long fromRepository = persistentHits.sum();
+        return new EmbeddingCacheStats(
+                stats.hitCount(),
+                fromRepository,
+                stats.missCount() - fromRepository,
+                stats.evictionCount(),
+                cache.estimatedSize());
+    }
+
+    @Override
+    public void close()
+    throws Exception {
+        if (delegate instanceof AutoCloseable closeable)
+            closeable.close();
+    }
+
+    private Embedding lookup(Key key, String conversation, String value) {
+        Embedding cached = cache.getIfPresent(key);
+        if (cached != null)
+            return cached;
+        Optional<Embedding> stored = findStored(conversation, value);
+        if (stored.isEmpty())
+            return null;
+        persistentHits.increment();
+        cache.put(key, stored.get());
+        return stored.get();
+    }
+
+    private Optional<Embedding> findStored(String conversation, String value) {
+        try {
+            return repository.findEmbedding(conversation, value);
+        } catch (Exception e) {
+            LOG.warn("Could not look up stored embedding, asking OpenAI", e);
+            return Optional.empty();
+        }
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Key(String model, String hash) {}
+}
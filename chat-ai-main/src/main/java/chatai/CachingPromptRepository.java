@@ -0,0 +1,166 @@
+package chatai;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the contexts and functions of another repository in memory, along
+ * with the {@link PromptSetup} built from them, as they change far less
+ * often than they are read.
+ * <p>
+ * Every change bumps a version, either through this repository or by
+ * calling {@link #invalidate()}, as done when another node changes them;
+ * a snapshot is only served as long as its version is the current one.
+ * Since the same function list is handed out until the next change, the
+ * functions JSON encoded by {@link OpenAiRequestWriter} is reused as is.
+ */
+public class CachingPromptRepository
+        implements PromptRepository, AutoCloseable
+{
+    private final PromptRepository delegate;
+    private final AtomicLong version = new AtomicLong();
+    private final ReentrantLock loading = new ReentrantLock();
+
+    private volatile Snapshot snapshot;
+
+    public CachingPromptRepository(PromptRepository delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Drops the cached contexts and functions, which are loaded again on
+     * the next read.
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void saveContext(Context context)
+    throws SQLException {
+        try {
+            delegate.saveContext(context);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void deleteContext(String name)
+    throws SQLException {
+        try {
+            delegate.deleteContext(name);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void saveFunction(ModelFunction function)
+    throws SQLException {
+        try {
+            delegate.saveFunction(function);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void deleteFunction(String name)
+    throws SQLException {
+        try {
+            delegate.deleteFunction(name);
+        } finally {
+            invalidate();
+        }
+    }
+
+    @Override
+    public List<Context> contextMessages()
+    throws SQLException {
+        return current().contexts();
+    }
+
+    @Override
+    public List<ModelFunction> functions()
+    throws SQLException {
+        return current().setup().functions();
+    }
+
+    @Override
+    public PromptSetup promptSetup()
+    throws SQLException {
+        return current().setup();
+    }
+
+    @Override
+    public List<Message> semanticSearch(
+            String conversation,
+            String promptTxt,
+            Embedding promptEmb,
+            int tokenBudget
+    ) throws SQLException {
+        return delegate.semanticSearch(conversation, promptTxt, promptEmb, tokenBudget);
+    }
+
+    @Override
+    public void saveMessage(
+            Message message,
+            Embedding embedding
+    ) throws SQLException {
+        delegate.saveMessage(message, embedding);
+    }
+
+    @Override
+    public void saveMessages(
+            List<Message> messages,
+            List<Embedding> embeddings
+    ) throws SQLException {
+        delegate.saveMessages(messages, embeddings);
+    }
+
+    @Override
+    public Optional<Embedding> findEmbedding(String conversation, String contents)
+    throws SQLException {
+        return delegate.findEmbedding(conversation, contents);
+    }
+
+    @Override
+    public void close()
+    throws Exception {
+        if (delegate instanceof AutoCloseable closeable)
+            closeable.close();
+    }
+
+    private Snapshot current()
+    throws SQLException {
+        Snapshot current = snapshot;
+        if (current != null && current.version() == version.get())
+            return current;
+        loading.lock();
+        try {
+            current = snapshot;
+            long loadedVersion = version.get();
+            if (current != null && current.version() == loadedVersion)
+                return current;
+            // Read after the version, so that a change made meanwhile
+            // leaves this snapshot already stale
+            List<Context> contexts = List.copyOf(delegate.contextMessages());
+            List<ModelFunction> functions = List.copyOf(delegate.functions());
+            current = new Snapshot(loadedVersion, contexts, PromptSetup.of(contexts, functions));
+            snapshot = current;
+            return current;
+        } finally {
+            loading.unlock();
+        }
+    }
+
+    private record Snapshot(
+            long version,
+            List<Context> contexts,
+            PromptSetup setup
+    ) {}
+}
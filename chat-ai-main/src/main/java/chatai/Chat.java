@@ -1,20 +1,40 @@
 package chatai;
 
+import chatai.ChatMetrics.Stage;
 import chatai.ChatResponse.FunctionCallChatResponse;
 import chatai.ChatResponse.MessageChatResponse;
-import com.knuddels.jtokkit.Encodings;
-import com.knuddels.jtokkit.api.Encoding;
-import com.knuddels.jtokkit.api.EncodingRegistry;
-import com.knuddels.jtokkit.api.ModelType;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.StructuredTaskScope.Subtask;
+import java.util.concurrent.SubmissionPublisher;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * Enforcing 4,096 token limit for gpt-3.5-turbo-0613.
@@ -25,7 +45,10 @@ import java.util.List;
  * @see <a href="https://platform.openai.com/docs/guides/gpt/function-calling"/>
  */
 public class Chat
+        implements AutoCloseable
 {
+    private static final Logger LOG = LoggerFactory.getLogger(Chat.class);
+
     private static final String OPENAI_API_KEY = System.getenv("OPENAI_API_KEY");
 
     // While OpenAI allows 4,096 tokens, the encoding that we use
@@ -38,20 +61,217 @@ public class Chat
     private static final int OPENAI_PROMPT_MAX_TOKENS = 3000;
     private static final int OPENAI_RESPONSE_MAX_TOKENS = 500;
 
-    private static final EncodingRegistry registry =
-            Encodings.newDefaultEncodingRegistry();
-    private static final Encoding tokenEncoder =
-            registry.getEncodingForModel(ModelType.GPT_3_5_TURBO);
+    private static final byte[] WARM_UP_COMPLETION = ("""
+            {"choices":[{"index":0,"message":{"role":"assistant","content":"Fine"},\
+            "finish_reason":"stop"}],"usage":{"prompt_tokens":5,"completion_tokens":1,"total_tokens":6}}
+            """).getBytes(UTF_8);
+    private static final byte[] WARM_UP_EMBEDDINGS = ("""
+            {"data":[{"index":0,"embedding":[0.1,-0.2,0.3]}]}
+            """).getBytes(UTF_8);
+
+    private static final Executor STREAM_EXECUTOR =
+            Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Replies saved in the response cache at once, at most.
+     */
+    private static final int MAX_PENDING_CACHE_SAVES = 16;
 
     private final PromptRepository repository;
     private final OpenAiClient client;
     private final int tokenLimit;
+    private final Execution execution;
+    private final WriteBehindMessageWriter replyWriter;
+    private final ChatMetrics metrics;
+    private final MessageCompactor compactor;
+    private final ResponseCache responseCache;
+    private final ResponseCacheConfig responseCacheConfig;
+    private final ExecutorService cacheWriters = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore pendingCacheSaves = new Semaphore(MAX_PENDING_CACHE_SAVES);
+
+    public enum Execution {sequential, concurrent}
 
     public static Chat create() {
-        return new Chat(
-                new PgVectorPromptRepository(),
-                new HttpUrlConnectionOpenAiClient(),
-                OPENAI_PROMPT_MAX_TOKENS);
+        return create(Metrics.globalRegistry);
+    }
+
+    public static Chat create(MeterRegistry registry) {
+        return create(registry, Env.string("OPENAI_BASE_URL", OpenAiClient.DEFAULT_BASE_URL));
+    }
+
+    /**
+     * Like {@link #create(MeterRegistry)}, but sends OpenAI requests to
+     * {@code openAiBaseUrl}, such as a stand-in server during load tests.
+     * <p>
+     * Closes what it created before failing, such as connection pools and
+     * threads, so that it can be retried without leaking them.
+     */
+    public static Chat create(MeterRegistry registry, String openAiBaseUrl) {
+        PgVectorPromptRepository postgres = null;
+        PromptRepository repository = null;
+        OpenAiClient client = null;
+        WriteBehindMessageWriter replyWriter = null;
+        MessageCompactor compactor = null;
+        try {
+            ChatMetrics metrics = new ChatMetrics(registry);
+            postgres = "postgres".equals(Env.string("CHAT_REPOSITORY", "postgres"))
+                    ? new PgVectorPromptRepository(registry)
+                    : null;
+            repository = new TimedPromptRepository(promptRepository(postgres), registry);
+            client = openAiClient(openAiBaseUrl, metrics);
+            client = new BatchingOpenAiClient(
+                    client,
+                    Env.integer("EMBEDDING_BATCH_SIZE", 64),
+                    Duration.ofMillis(Env.longInteger("EMBEDDING_BATCH_WINDOW_MS", 10)));
+            client = new CachingOpenAiClient(
+                    client,
+                    repository,
+                    OpenAiCodec.OPENAI_EMB_MODEL,
+                    Env.longInteger("EMBEDDING_CACHE_SIZE", 10_000));
+            replyWriter = Env.bool("CHAT_WRITE_BEHIND", false)
+                    ? new WriteBehindMessageWriter(
+                            client,
+                            repository,
+                            Env.integer("CHAT_WRITE_BEHIND_CAPACITY", 1_000),
+                            Env.integer("CHAT_WRITE_BEHIND_BATCH_SIZE", 32),
+                            Duration.ofMillis(Env.longInteger("CHAT_WRITE_BEHIND_OFFER_TIMEOUT_MS", 100)))
+                    : null;
+            compactor = Env.bool("CHAT_COMPACTION", false)
+                    ? compactor(postgres, client, registry)
+                    : null;
+            ResponseCache responseCache = Env.bool("CHAT_RESPONSE_CACHE", false)
+                    ? responseCache(postgres)
+                    : null;
+            return new Chat(
+                    repository,
+                    client,
+                    OPENAI_PROMPT_MAX_TOKENS,
+                    Execution.valueOf(Env.string("CHAT_EXECUTION", Execution.sequential.name())),
+                    replyWriter,
+                    metrics,
+                    compactor,
+                    responseCache,
+                    ResponseCacheConfig.fromEnv());
+        } catch (RuntimeException | Error e) {
+            // The repository closes postgres, once wrapped
+            closeAll(e, compactor, replyWriter, client, repository != null ? repository : postgres);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes each of {@code resources} that is closeable, in order, adding
+     * their failures to {@code failure}.
+     */
+    private static void closeAll(Throwable failure, Object... resources) {
+        for (Object resource : resources) {
+            if (resource instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    if (e instanceof InterruptedException)
+                        Thread.currentThread().interrupt();
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Only messages kept in Postgres can be compacted: the in-process
+     * repositories append them to logs, and their indexes cannot delete.
+     */
+    private static MessageCompactor compactor(
+            PgVectorPromptRepository postgres,
+            OpenAiClient client,
+            MeterRegistry registry
+    ) {
+        if (postgres == null)
+            throw new IllegalArgumentException("CHAT_COMPACTION needs CHAT_REPOSITORY=postgres");
+        return new MessageCompactor(postgres, client, CompactionConfig.fromEnv(), registry).start();
+    }
+
+    /**
+     * Replies are cached in Postgres, so that all the nodes share them.
+     */
+    private static ResponseCache responseCache(PgVectorPromptRepository postgres) {
+        if (postgres == null)
+            throw new IllegalArgumentException("CHAT_RESPONSE_CACHE needs CHAT_REPOSITORY=postgres");
+        return postgres;
+    }
+
+    private static PromptRepository promptRepository(PgVectorPromptRepository postgres) {
+        return switch (Env.string("CHAT_REPOSITORY", "postgres")) {
+            case "postgres" -> {
+                if (!Env.bool("CHAT_CONFIG_CACHE", true))
+                    yield postgres;
+                CachingPromptRepository caching = new CachingPromptRepository(postgres);
+                postgres.listenForConfigChanges(caching::invalidate);
+                yield caching;
+            }
+            default -> {
+                String kind = Env.string("CHAT_REPOSITORY", "postgres");
+                Path directory = Path.of(Env.string("CHAT_INDEX_DIR", "chat-index"));
+                try {
+                    yield new PartitionedPromptRepository(conversation -> localRepository(
+                            kind,
+                            Message.DEFAULT_CONVERSATION.equals(conversation)
+                                    ? directory
+                                    : directory.resolve("conversations").resolve(conversation)),
+                            Env.integer("CHAT_MAX_OPEN_CONVERSATIONS", 256));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * The in-process repository holding one conversation in {@code directory}.
+     */
+    private static PromptRepository localRepository(String kind, Path directory)
+    throws IOException {
+        return switch (kind) {
+            case "hnsw" -> IndexedPromptRepository.hnsw(
+                    directory,
+                    Env.integer("EMBEDDING_DIMENSIONS", 1536),
+                    Env.integer("HNSW_M", 16),
+                    Env.integer("HNSW_EF_CONSTRUCTION", 200),
+                    Env.integer("HNSW_EF_SEARCH", 128));
+            case "exact" -> IndexedPromptRepository.exact(
+                    directory,
+                    Env.integer("EMBEDDING_DIMENSIONS", 1536));
+            case "quantized" -> {
+                QuantizedIndex.Quantization quantization =
+                        QuantizedIndex.Quantization.valueOf(Env.string("EMBEDDING_QUANTIZATION", "int8"));
+                yield IndexedPromptRepository.quantized(
+                        directory,
+                        Env.integer("EMBEDDING_DIMENSIONS", 1536),
+                        quantization,
+                        Env.integer(
+                                "EMBEDDING_RERANK_FACTOR",
+                                quantization == QuantizedIndex.Quantization.int8 ? 2 : 10));
+            }
+            case "mapped" -> new MappedPromptRepository(
+                    directory,
+                    Env.integer("EMBEDDING_DIMENSIONS", 1536));
+            default -> throw new IllegalArgumentException(
+                    "Unknown CHAT_REPOSITORY: " + System.getenv("CHAT_REPOSITORY"));
+        };
+    }
+
+    private static OpenAiClient openAiClient(String baseUrl, CompletionListener listener) {
+        return switch (Env.string("OPENAI_CLIENT", "url-connection")) {
+            case "http-client" -> new HttpClientOpenAiClient(
+                    baseUrl,
+                    Duration.ofMillis(Env.longInteger("OPENAI_CONNECT_TIMEOUT_MS", 10_000)),
+                    Duration.ofMillis(Env.longInteger("OPENAI_REQUEST_TIMEOUT_MS", 300_000)),
+                    Duration.ofMillis(Env.longInteger("OPENAI_READ_TIMEOUT_MS", 300_000)),
+                    listener);
+            case "url-connection" -> new HttpUrlConnectionOpenAiClient(baseUrl, listener);
+            default -> throw new IllegalArgumentException(
+                    "Unknown OPENAI_CLIENT: " + System.getenv("OPENAI_CLIENT"));
+        };
     }
 
     public static void main(String[] args)
@@ -87,7 +307,7 @@ public class Chat
                     System.out.println("Model> function updated.");
                 } else {
                     ChatResponse response = chat.askCompletion(new ChatRequest(
-                            OPENAI_API_KEY, prompt
+                            OPENAI_API_KEY, prompt, Env.string("CHAT_CONVERSATION", null)
                     ));
                     switch (response) {
                         case MessageChatResponse msg ->
@@ -98,6 +318,7 @@ public class Chat
                     }
                 }
             } else {
+                chat.close();
                 System.out.println("Bye");
                 System.exit(0);
             }
@@ -108,37 +329,211 @@ public class Chat
             PromptRepository repository,
             OpenAiClient client,
             int tokenLimit
+    ) {
+        this(repository, client, tokenLimit, Execution.sequential, null);
+    }
+
+    /**
+     * @param replyWriter if not null, assistant replies are embedded and saved
+     *                    in the background through it, rather than before
+     *                    returning them
+     */
+    public Chat(
+            PromptRepository repository,
+            OpenAiClient client,
+            int tokenLimit,
+            Execution execution,
+            WriteBehindMessageWriter replyWriter
+    ) {
+        this(repository, client, tokenLimit, execution, replyWriter, new ChatMetrics(Metrics.globalRegistry));
+    }
+
+    public Chat(
+            PromptRepository repository,
+            OpenAiClient client,
+            int tokenLimit,
+            Execution execution,
+            WriteBehindMessageWriter replyWriter,
+            ChatMetrics metrics
+    ) {
+        this(repository, client, tokenLimit, execution, replyWriter, metrics, null, null, null);
+    }
+
+    /**
+     * @param compactor if not null, compacting the message history in the
+     *                  background, and closed along with this
+     * @param responseCache if not null, replies to similar prompts are
+     *                      looked up in it before asking for a completion,
+     *                      as set by {@code responseCacheConfig}
+     */
+    public Chat(
+            PromptRepository repository,
+            OpenAiClient client,
+            int tokenLimit,
+            Execution execution,
+            WriteBehindMessageWriter replyWriter,
+            ChatMetrics metrics,
+            MessageCompactor compactor,
+            ResponseCache responseCache,
+            ResponseCacheConfig responseCacheConfig
     ) {
         this.repository = repository;
         this.client = client;
         this.tokenLimit = tokenLimit;
+        this.execution = execution;
+        this.replyWriter = replyWriter;
+        this.metrics = metrics;
+        this.compactor = compactor;
+        this.responseCache = responseCache;
+        this.responseCacheConfig = responseCacheConfig;
     }
 
     public ChatResponse askCompletion(ChatRequest request)
     throws Exception {
         String apiKey = request.apiKey();
-        String promptTxt = request.prompt();
-        Message prompt = new Message(Role.user, promptTxt, Instant.now());
+        CompletionInput input = prepare(apiKey, request.conversation(), request.prompt());
+        ChatResponse response = completion(apiKey, request, input);
+        return saveReply(apiKey, request.conversation(), response);
+    }
 
-        Embedding promptEmb = client.embed(apiKey, promptTxt);
-        repository.saveMessage(prompt, promptEmb);
+    /**
+     * Looks for the reply to a similar prompt in the response cache first,
+     * if any, and keeps new replies in it, in the background; function
+     * calls are not cached.
+     * The cache only saves completions: when it fails, the completion is
+     * asked for as if it had missed.
+     */
+    private ChatResponse completion(
+            String apiKey,
+            ChatRequest request,
+            CompletionInput input
+    )
+    throws Exception {
+        if (responseCache == null)
+            return metrics.time(Stage.completion, () -> client.chatCompletion(
+                    apiKey, input.messages(), input.setup().functions(), OPENAI_RESPONSE_MAX_TOKENS));
+        String setupKey = input.setup().key();
+        Optional<String> cached = Optional.empty();
+        try {
+            cached = metrics.time(Stage.cache_lookup, () -> responseCache.findResponse(
+                    request.conversation(),
+                    setupKey,
+                    input.promptEmbedding(),
+                    responseCacheConfig.minSimilarity()));
+        } catch (SQLException e) {
+            LOG.warn("Could not look up the response cache", e);
+        }
+        metrics.cached(cached.isPresent());
+        if (cached.isPresent())
+            return new MessageChatResponse(cached.get());
+        ChatResponse response = metrics.time(Stage.completion, () -> client.chatCompletion(
+                apiKey, input.messages(), input.setup().functions(), OPENAI_RESPONSE_MAX_TOKENS));
+        if (response instanceof MessageChatResponse msg)
+            saveInCache(request, setupKey, input.promptEmbedding(), msg.content());
+        return response;
+    }
 
-        List<Message> similar = repository.semanticSearch(promptTxt, promptEmb);
+    /**
+     * Saves {@code response} in the response cache on a virtual thread of
+     * its own, so that the reply is not held back by it; replies are not
+     * cached while {@link #MAX_PENDING_CACHE_SAVES} saves are still going.
+     */
+    private void saveInCache(
+            ChatRequest request,
+            String setupKey,
+            Embedding promptEmbedding,
+            String response
+    ) {
+        if (!pendingCacheSaves.tryAcquire()) {
+            LOG.debug("Too many pending saves, not caching the response");
+            return;
+        }
+        try {
+            cacheWriters.execute(() -> {
+                try {
+                    metrics.time(Stage.cache_save, () -> {
+                        responseCache.saveResponse(
+                                request.conversation(),
+                                setupKey,
+                                request.prompt(),
+                                promptEmbedding,
+                                response,
+                                responseCacheConfig.ttl());
+                        return null;
+                    });
+                } catch (Exception e) {
+                    LOG.warn("Could not save the response in the cache", e);
+                } finally {
+                    pendingCacheSaves.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingCacheSaves.release();
+            LOG.debug("Closing, not caching the response");
+        }
+    }
 
-        List<OpenAiRequestMessage> ctx = repository.contextMessages().stream()
-                .map(c -> new OpenAiRequestMessage(Role.system, c.value()))
-                .toList();
+    /**
+     * Streams the completion as it is generated. Every subscription asks for
+     * a new completion, on its own virtual thread; the whole reply is saved
+     * once the stream has ended, before the subscriber is completed.
+     */
+    public Flow.Publisher<ChatDelta> streamCompletion(ChatRequest request) {
+        return subscriber -> {
+            SubmissionPublisher<ChatDelta> publisher =
+                    new SubmissionPublisher<>(STREAM_EXECUTOR, Flow.defaultBufferSize());
+            publisher.subscribe(subscriber);
+            STREAM_EXECUTOR.execute(() -> {
+                try {
+                    String apiKey = request.apiKey();
+                    CompletionInput input = prepare(apiKey, request.conversation(), request.prompt());
+                    ChatResponse response = metrics.time(Stage.completion, () -> client.streamChatCompletion(
+                            apiKey,
+                            input.messages(),
+                            input.setup().functions(),
+                            OPENAI_RESPONSE_MAX_TOKENS,
+                            publisher::submit));
+                    saveReply(apiKey, request.conversation(), response);
+                    publisher.close();
+                } catch (Exception e) {
+                    publisher.closeExceptionally(e);
+                }
+            });
+        };
+    }
 
-        List<OpenAiRequestMessage> messages = composeMessages(similar, ctx, prompt);
-        List<ModelFunction> functions = repository.functions();
-        ChatResponse response = client.chatCompletion(apiKey, messages, functions, OPENAI_RESPONSE_MAX_TOKENS);
+    private CompletionInput prepare(
+            String apiKey,
+            String conversation,
+            String promptTxt
+    )
+    throws Exception {
+        Message prompt = new Message(Role.user, promptTxt, Instant.now(), conversation);
+        return switch (execution) {
+            case sequential -> prepareSequentially(apiKey, prompt);
+            case concurrent -> prepareConcurrently(apiKey, prompt);
+        };
+    }
 
+    private ChatResponse saveReply(
+            String apiKey,
+            String conversation,
+            ChatResponse response
+    )
+    throws Exception {
         switch (response) {
             case MessageChatResponse msg -> {
-                Embedding completionEmb = client.embed(apiKey, msg.content());
-                repository.saveMessage(
-                        new Message(Role.assistant, msg.content(), Instant.now()),
-                        completionEmb);
+                Message reply = new Message(Role.assistant, msg.content(), Instant.now(), conversation);
+                if (replyWriter != null) {
+                    replyWriter.submit(apiKey, reply);
+                } else {
+                    Embedding completionEmb =
+                            metrics.time(Stage.embed_reply, () -> client.embed(apiKey, conversation, msg.content()));
+                    metrics.time(Stage.save_reply, () -> {
+                        repository.saveMessage(reply, completionEmb);
+                        return null;
+                    });
+                }
                 return msg;
             }
             case FunctionCallChatResponse fn -> {
@@ -148,6 +543,138 @@ public class Chat
         }
     }
 
+    /**
+     * Does ahead of time what the first requests would otherwise do: loads
+     * the tokenizer, reads the contexts and functions, opening connections
+     * to the repository, and runs the JSON codecs {@code iterations} times,
+     * so that the JIT has compiled them. Nothing is sent to OpenAI, and
+     * nothing is saved.
+     */
+    public void warmUp(int iterations)
+    throws Exception {
+        PromptSetup setup = repository.promptSetup();
+        repository.findEmbedding(Message.DEFAULT_CONVERSATION, "");
+        OpenAiRequestWriter writer = new OpenAiRequestWriter();
+        Message prompt = new Message(Role.user, "Hello, how are you?", Instant.now());
+        for (int i = 0; i < iterations; i++) {
+            tokenBudget(setup, prompt);
+            List<OpenAiRequestMessage> messages = composeMessages(List.of(prompt), setup, prompt);
+            try (JsonBuffer json = writer.chatRequest(
+                    messages, setup.functions(), OPENAI_RESPONSE_MAX_TOKENS, false)) {
+                json.size();
+            }
+            try (JsonBuffer json = writer.embeddingsRequest(List.of(prompt.content()))) {
+                json.size();
+            }
+            OpenAiCodec.chatResponse(new ByteArrayInputStream(WARM_UP_COMPLETION));
+            OpenAiCodec.embeddings(new ByteArrayInputStream(WARM_UP_EMBEDDINGS));
+        }
+    }
+
+    @Override
+    public void close()
+    throws Exception {
+        if (compactor != null)
+            compactor.close();
+        if (replyWriter != null)
+            replyWriter.close();
+        // Waits for the replies being saved in the response cache
+        cacheWriters.close();
+        if (client instanceof AutoCloseable closeable)
+            closeable.close();
+        if (repository instanceof AutoCloseable closeable)
+            closeable.close();
+    }
+
+    private CompletionInput prepareSequentially(
+            String apiKey,
+            Message prompt
+    )
+    throws Exception {
+        Embedding promptEmb = metrics.time(Stage.embed_prompt, () -> client.embed(apiKey, prompt.conversation(), prompt.content()));
+        metrics.time(Stage.save_prompt, () -> {
+            repository.saveMessage(prompt, promptEmb);
+            return null;
+        });
+
+        PromptSetup setup = metrics.time(Stage.setup, repository::promptSetup);
+
+        List<Message> similar = search(prompt, promptEmb, setup);
+
+        List<OpenAiRequestMessage> messages = compose(similar, setup, prompt);
+        return new CompletionInput(messages, setup, promptEmb);
+    }
+
+    /**
+     * Runs the stages that do not depend on each other in parallel, on virtual
+     * threads: contexts and functions are loaded while the prompt is embedded,
+     * and the prompt is saved while similar messages are searched. The first
+     * failing stage cancels its siblings, and its exception is rethrown as is.
+     *
+     * @see <a href="https://openjdk.org/jeps/453"/>
+     */
+    private CompletionInput prepareConcurrently(
+            String apiKey,
+            Message prompt
+    )
+    throws Exception {
+        Embedding promptEmb;
+        PromptSetup setup;
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+            Subtask<Embedding> embedding = scope.fork(() ->
+                    metrics.time(Stage.embed_prompt, () -> client.embed(apiKey, prompt.conversation(), prompt.content())));
+            Subtask<PromptSetup> promptSetup = scope.fork(() ->
+                    metrics.time(Stage.setup, repository::promptSetup));
+            scope.join().throwIfFailed(Chat::asException);
+            promptEmb = embedding.get();
+            setup = promptSetup.get();
+        }
+
+        List<Message> similar;
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure()) {
+            scope.fork(() -> metrics.time(Stage.save_prompt, () -> {
+                repository.saveMessage(prompt, promptEmb);
+                return null;
+            }));
+            Subtask<List<Message>> search =
+                    scope.fork(() -> search(prompt, promptEmb, setup));
+            scope.join().throwIfFailed(Chat::asException);
+            similar = search.get();
+        }
+
+        List<OpenAiRequestMessage> messages = compose(similar, setup, prompt);
+        return new CompletionInput(messages, setup, promptEmb);
+    }
+
+    private List<Message> search(
+            Message prompt,
+            Embedding promptEmb,
+            PromptSetup setup
+    )
+    throws Exception {
+        int budget = tokenBudget(setup, prompt);
+        List<Message> similar = metrics.time(Stage.search, () ->
+                repository.semanticSearch(prompt.conversation(), prompt.content(), promptEmb, budget));
+        metrics.retrieved(similar.size(), budget);
+        return similar;
+    }
+
+    private List<OpenAiRequestMessage> compose(
+            List<Message> similar,
+            PromptSetup setup,
+            Message prompt
+    )
+    throws Exception {
+        List<OpenAiRequestMessage> messages =
+                metrics.time(Stage.compose, () -> composeMessages(similar, setup, prompt));
+        metrics.packed(messages.size() - setup.contextMessages().size() - 1);
+        return messages;
+    }
+
+    private static Exception asException(Throwable t) {
+        return t instanceof Exception e ? e : new ExecutionException(t);
+    }
+
     private void updateContext(
             Command command,
             String name,
@@ -175,35 +702,38 @@ public class Chat
         }
     }
 
-    private List<OpenAiRequestMessage> composeMessages(
-            List<Message> similar,
-            List<OpenAiRequestMessage> context,
+    /**
+     * The tokens left for similar messages, once the contexts, the functions
+     * and the prompt are accounted for; one is kept spare, so that the total
+     * stays strictly below the limit.
+     */
+    int tokenBudget(
+            PromptSetup setup,
             Message prompt
     ) {
-        int promptTokens = tokenEncoder.countTokens(prompt.content());
-        int contextTokens = context.stream()
-                .map(OpenAiRequestMessage::content)
-                .mapToInt(tokenEncoder::countTokens)
-                .sum();
-        int tot = promptTokens + contextTokens;
-        List<Message> similarBound = new ArrayList<>();
-        for (Message msg : similar) {
-            int count = tokenEncoder.countTokens(msg.content());
-            if (tot + count < tokenLimit) {
-                similarBound.add(msg);
-                tot += count;
-            }
-        }
+        return tokenLimit - 1 - Tokens.count(prompt.content()) - setup.tokens();
+    }
 
-        List<Message> similarSorted = similarBound.stream()
+    List<OpenAiRequestMessage> composeMessages(
+            List<Message> similar,
+            PromptSetup setup,
+            Message prompt
+    ) {
+        List<Message> similarSorted = similar.stream()
                 .sorted(Comparator.comparing(Message::timestamp))
                 .toList();
 
-        List<OpenAiRequestMessage> messages = new ArrayList<>(context);
+        List<OpenAiRequestMessage> messages = new ArrayList<>(setup.contextMessages());
         messages.addAll(similarSorted.stream()
                 .map(m -> new OpenAiRequestMessage(m.role(), m.content()))
                 .toList());
         messages.add(new OpenAiRequestMessage(prompt.role(), prompt.content()));
         return messages;
     }
+
+    private record CompletionInput(
+            List<OpenAiRequestMessage> messages,
+            PromptSetup setup,
+            Embedding promptEmbedding
+    ) {}
 }
@@ -0,0 +1,9 @@
+package chatai;
+
+public sealed interface ChatDelta
+        permits ChatDelta.ContentDelta,
+                ChatDelta.FunctionCallDelta
+{
+    record ContentDelta(String content) implements ChatDelta {}
+    record FunctionCallDelta(String name, String arguments) implements ChatDelta {}
+}
@@ -0,0 +1,119 @@
+package chatai;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Times each stage of a completion, and records how many similar messages
+ * are retrieved, within what token budget, and how many of them are packed
+ * in the prompt, and how often replies are found in the
+ * {@link ResponseCache}. Timers publish histograms, so that percentiles can
+ * be computed across instances.
+ * <p>
+ * Token usage and finish reasons are decoded along with the response, so
+ * they are recorded as a {@link CompletionListener} of the
+ * {@link OpenAiClient}.
+ */
+public class ChatMetrics
+        implements CompletionListener
+{
+    public enum Stage
+    {
+        embed_prompt,
+        save_prompt,
+        setup,
+        search,
+        compose,
+        cache_lookup,
+        completion,
+        cache_save,
+        embed_reply,
+        save_reply
+    }
+
+    private final Map<Stage, Timer> stages = new EnumMap<>(Stage.class);
+    private final DistributionSummary retrievedMessages;
+    private final DistributionSummary packedMessages;
+    private final DistributionSummary tokenBudget;
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private final Counter promptTokens;
+    private final Counter completionTokens;
+    private final MeterRegistry registry;
+
+    public ChatMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (Stage stage : Stage.values())
+            stages.put(stage, Timer.builder("chat.stage")
+                    .description("Time spent in each stage of a completion")
+                    .tag("stage", stage.name())
+                    .publishPercentileHistogram()
+                    .register(registry));
+        this.retrievedMessages = DistributionSummary.builder("chat.messages")
+                .description("Similar messages retrieved, and sent along with the prompt")
+                .tag("kind", "retrieved")
+                .register(registry);
+        this.packedMessages = DistributionSummary.builder("chat.messages")
+                .description("Similar messages retrieved, and sent along with the prompt")
+                .tag("kind", "packed")
+                .register(registry);
+        this.tokenBudget = DistributionSummary.builder("chat.token.budget")
+                .description("Tokens left for similar messages")
+                .baseUnit("tokens")
+                .register(registry);
+        this.cacheHits = Counter.builder("chat.response.cache")
+                .description("Prompts looked up in the response cache")
+                .tag("result", "hit")
+                .register(registry);
+        this.cacheMisses = Counter.builder("chat.response.cache")
+                .description("Prompts looked up in the response cache")
+                .tag("result", "miss")
+                .register(registry);
+        this.promptTokens = Counter.builder("openai.tokens")
+                .description("Tokens used by chat completions")
+                .tag("type", "prompt")
+                .register(registry);
+        this.completionTokens = Counter.builder("openai.tokens")
+                .description("Tokens used by chat completions")
+                .tag("type", "completion")
+                .register(registry);
+    }
+
+    public <T> T time(Stage stage, Callable<T> call)
+    throws Exception {
+        return stages.get(stage).recordCallable(call);
+    }
+
+    public void retrieved(int messages, int budget) {
+        retrievedMessages.record(messages);
+        tokenBudget.record(Math.max(budget, 0));
+    }
+
+    public void packed(int messages) {
+        packedMessages.record(messages);
+    }
+
+    public void cached(boolean hit) {
+        (hit ? cacheHits : cacheMisses).increment();
+    }
+
+    /**
+     * Only counts the finish reasons other than {@code stop}, such as
+     * {@code length}, when the reply was cut by the maximum number of tokens.
+     */
+    @Override
+    public void completed(OpenAiUsage usage, String finishReason) {
+        if (usage != null) {
+            promptTokens.increment(usage.prompt_tokens());
+            completionTokens.increment(usage.completion_tokens());
+        }
+        if (finishReason != null && !"stop".equals(finishReason))
+            registry.counter("openai.finish.reasons", "reason", finishReason).increment();
+    }
+}
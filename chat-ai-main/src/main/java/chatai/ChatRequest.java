@@ -1,8 +1,25 @@
 package chatai;
 
+import java.util.regex.Pattern;
+
+/**
+ * @param conversation the conversation, or tenant, whose history the prompt
+ *                     is searched in and saved to; the default one if null
+ *                     or blank. Only letters, digits, {@code _}, {@code -}
+ *                     and {@code .} are allowed, and at most 100 of them.
+ */
 public record ChatRequest(
         String apiKey,
-        String prompt
+        String prompt,
+        String conversation
 )
 {
+    private static final Pattern CONVERSATION = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9_.-]{0,99}");
+
+    public ChatRequest {
+        if (conversation == null || conversation.isBlank())
+            conversation = Message.DEFAULT_CONVERSATION;
+        else if (!CONVERSATION.matcher(conversation).matches())
+            throw new InvalidRequestException("Invalid conversation: " + conversation);
+    }
 }
@@ -0,0 +1,102 @@
+package chatai;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The operations {@link MessageCompactor} needs to trim the message history.
+ * Each of them works on at most a given number of messages, in a transaction
+ * of its own, so that they can be run a small batch at a time.
+ * <p>
+ * The messages may be shared by several instances: only one of them
+ * compacts at a time, and where a step left off is kept with the messages,
+ * so that it is not scanned again from the start after a restart or by
+ * another instance.
+ */
+public interface CompactableRepository
+{
+    record StoredMessage(long id, Message message) {}
+
+    /**
+     * The steps scanning the messages saved since their previous run.
+     */
+    enum Cursor
+    {
+        duplicates,
+        excess
+    }
+
+    interface Compaction
+    {
+        void run() throws Exception;
+    }
+
+    /**
+     * @param lastId  the greatest id scanned, where the next scan starts
+     * @param scanned how many messages were scanned
+     * @param merged  how many of them were deleted as duplicates
+     */
+    record DuplicateScan(long lastId, int scanned, int merged) {}
+
+    /**
+     * @param lastId the greatest id scanned, where the next scan starts
+     * @param excess how many messages each conversation has in excess
+     */
+    record ExcessScan(long lastId, Map<String, Integer> excess) {}
+
+    /**
+     * Runs {@code compaction} unless another instance is compacting the same
+     * messages, returning whether it ran.
+     */
+    boolean runExclusively(Compaction compaction) throws Exception;
+
+    /**
+     * The id of the last message scanned by {@code cursor}, zero at first.
+     */
+    long cursor(Cursor cursor) throws SQLException;
+
+    void saveCursor(Cursor cursor, long lastId) throws SQLException;
+
+    /**
+     * Deletes at most {@code limit} of the messages older than {@code cutoff},
+     * the oldest first, returning how many were deleted.
+     */
+    int deleteOlderThan(Instant cutoff, int limit) throws SQLException;
+
+    /**
+     * How many messages each conversation holding more than
+     * {@code maxMessages} has in excess, of the ones with a message whose id
+     * is greater than {@code afterId}: the others have not grown since.
+     */
+    ExcessScan excessMessages(long afterId, int maxMessages) throws SQLException;
+
+    /**
+     * Deletes at most {@code limit} of the oldest messages of
+     * {@code conversation}, returning how many were deleted.
+     */
+    int deleteOldest(String conversation, int limit) throws SQLException;
+
+    /**
+     * Scans at most {@code limit} messages with an id greater than
+     * {@code afterId}, in id order, deleting the ones within
+     * {@code maxDistance} of an older message of the same conversation and
+     * role, which is kept in their place.
+     */
+    DuplicateScan mergeNearDuplicates(long afterId, int limit, double maxDistance) throws SQLException;
+
+    /**
+     * At most {@code limit} of the oldest user and assistant messages older
+     * than {@code cutoff}, all from the conversation holding the oldest of
+     * them, among the ones holding at least two; empty if there are none.
+     * Implementations may only look for that conversation among a bounded
+     * number of the oldest messages.
+     */
+    List<StoredMessage> oldestTurns(Instant cutoff, int limit) throws SQLException;
+
+    /**
+     * Saves {@code summary} and deletes {@code turns}, atomically.
+     */
+    void replaceWithSummary(List<StoredMessage> turns, Message summary, Embedding embedding) throws SQLException;
+}
@@ -0,0 +1,57 @@
+package chatai;
+
+import java.time.Duration;
+
+/**
+ * Settings of {@link MessageCompactor}; a zero duration, count or distance
+ * disables the corresponding step.
+ *
+ * @param interval          the time between the start of two runs
+ * @param batchSize         how many messages each statement works on at most
+ * @param pause             the time to wait between two batches, leaving the
+ *                          database to live traffic
+ * @param maxAge            messages older than this are deleted
+ * @param maxMessages       conversations are trimmed to this many messages,
+ *                          deleting the oldest ones
+ * @param duplicateDistance messages within this cosine distance of an older
+ *                          message of the same conversation and role are
+ *                          deleted
+ * @param rollupAge         user and assistant messages older than this are
+ *                          replaced by a summary, {@code rollupTurns} at a time
+ * @param rollupTurns       how many messages are summarized together at most
+ * @param rollupsPerRun     how many summaries are saved by a run at most, the
+ *                          rest being left to the next runs
+ * @param apiKey            the OpenAI key used to summarize and embed
+ */
+public record CompactionConfig(
+        Duration interval,
+        int batchSize,
+        Duration pause,
+        Duration maxAge,
+        int maxMessages,
+        double duplicateDistance,
+        Duration rollupAge,
+        int rollupTurns,
+        int rollupsPerRun,
+        String apiKey
+)
+{
+    public CompactionConfig {
+        if (!rollupAge.isZero() && (apiKey == null || apiKey.isBlank()))
+            throw new IllegalArgumentException("Summarizing old messages needs an OpenAI API key");
+    }
+
+    public static CompactionConfig fromEnv() {
+        return new CompactionConfig(
+                Duration.ofMinutes(Env.longInteger("CHAT_COMPACTION_INTERVAL_MINUTES", 60)),
+                Env.integer("CHAT_COMPACTION_BATCH_SIZE", 500),
+                Duration.ofMillis(Env.longInteger("CHAT_COMPACTION_PAUSE_MS", 200)),
+                Duration.ofHours(Env.longInteger("CHAT_RETENTION_MAX_AGE_HOURS", 0)),
+                Env.integer("CHAT_RETENTION_MAX_MESSAGES", 0),
+                Double.parseDouble(Env.string("CHAT_COMPACTION_DUPLICATE_DISTANCE", "0")),
+                Duration.ofHours(Env.longInteger("CHAT_COMPACTION_ROLLUP_AFTER_HOURS", 0)),
+                Env.integer("CHAT_COMPACTION_ROLLUP_TURNS", 20),
+                Env.integer("CHAT_COMPACTION_ROLLUPS_PER_RUN", 100),
+                Env.string("CHAT_COMPACTION_API_KEY", System.getenv("OPENAI_API_KEY")));
+    }
+}
@@ -0,0 +1,14 @@
+package chatai;
+
+public record CompactionStats(
+        long runs,
+        long expired,
+        long trimmed,
+        long merged,
+        long rolledUp,
+        long summaries,
+        long failures,
+        long duplicateCursor
+)
+{
+}
@@ -0,0 +1,19 @@
+package chatai;
+
+/**
+ * Told about each chat completion decoded by an {@link OpenAiClient}, such
+ * as {@link ChatMetrics}.
+ */
+public interface CompletionListener
+{
+    CompletionListener NONE = (usage, finishReason) -> {};
+
+    /**
+     * @param usage        the tokens used, {@code null} when not sent, as
+     *                     when streaming
+     * @param finishReason why the model stopped, such as {@code stop}, or
+     *                     {@code length} when cut by the maximum number of
+     *                     tokens
+     */
+    void completed(OpenAiUsage usage, String finishReason);
+}
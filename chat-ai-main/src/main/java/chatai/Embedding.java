@@ -1,7 +1,41 @@
 package chatai;
 
-import java.util.List;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
-public record Embedding(List<Float> embeddings)
+/**
+ * An embedding vector, kept as primitive floats: a 1536-dimension ada-002
+ * vector is 6 KB, rather than 1536 boxed {@code Float}s.
+ * <p>
+ * The array is not copied, and must not be modified once the embedding is
+ * created; {@link #asBuffer()} offers a read-only view of it.
+ */
+public record Embedding(float[] values)
 {
+    public static Embedding of(float... values) {
+        return new Embedding(values);
+    }
+
+    public int dimensions() {
+        return values.length;
+    }
+
+    public FloatBuffer asBuffer() {
+        return FloatBuffer.wrap(values).asReadOnlyBuffer();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Embedding other && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        return "Embedding" + Arrays.toString(values);
+    }
 }
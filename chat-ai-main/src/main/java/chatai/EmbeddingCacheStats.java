@@ -0,0 +1,11 @@
+package chatai;
+
+public record EmbeddingCacheStats(
+        long hits,
+        long persistentHits,
+        long misses,
+        long evictions,
+        long size
+)
+{
+}
@@ -0,0 +1,24 @@
+package chatai;
+
+public class Env
+{
+    public static String string(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public static int integer(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    public static long longInteger(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    public static boolean bool(String name, boolean defaultValue) {
+        String value = System.getenv(name);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+}
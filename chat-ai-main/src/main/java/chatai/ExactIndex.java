@@ -0,0 +1,155 @@
+package chatai;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Brute-force search with exact recall: vectors are stored contiguously,
+ * with their inverse norms, so that the cosine distance to each of them is a
+ * single dot product; the {@code k} closest are kept in a bounded heap,
+ * rather than sorting all of them.
+ */
+public class ExactIndex
+        implements VectorIndex
+{
+    private static final int MAGIC = 0x45584354;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int dimensions;
+    private final SimilarityKernel kernel;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private float[] vectors;
+    private float[] inverseNorms;
+    private int size;
+
+    public ExactIndex(int dimensions) {
+        this(dimensions, SimilarityKernel.best());
+    }
+
+    public ExactIndex(int dimensions, SimilarityKernel kernel) {
+        this.dimensions = dimensions;
+        this.kernel = kernel;
+        this.vectors = new float[INITIAL_CAPACITY * dimensions];
+        this.inverseNorms = new float[INITIAL_CAPACITY];
+    }
+
+    @Override
+    public int add(float[] vector) {
+        if (vector.length != dimensions)
+            throw new IllegalArgumentException(
+                    "Expected " + dimensions + " dimensions, got " + vector.length);
+        lock.writeLock().lock();
+        try {
+            int id = size;
+            ensureCapacity(id + 1);
+            System.arraycopy(vector, 0, vectors, id * dimensions, dimensions);
+            inverseNorms[id] = inverse(kernel.norm(vector, 0, dimensions));
+            size++;
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Neighbor> search(float[] query, int k) {
+        lock.readLock().lock();
+        try {
+            if (k <= 0 || size == 0)
+                return List.of();
+            TopK top = new TopK(Math.min(k, size));
+            float inverseQueryNorm = inverse(kernel.norm(query, 0, dimensions));
+            for (int id = 0, offset = 0; id < size; id++, offset += dimensions) {
+                float dot = kernel.dot(query, 0, vectors, offset, dimensions);
+                float distance = inverseNorms[id] == 0 || inverseQueryNorm == 0
+                        ? 1
+                        : 1 - dot * inverseQueryNorm * inverseNorms[id];
+                top.offer(id, distance);
+            }
+            return top.closestFirst();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public float[] vector(int id) {
+        lock.readLock().lock();
+        try {
+            Objects.checkIndex(id, size);
+            return Arrays.copyOfRange(vectors, id * dimensions, (id + 1) * dimensions);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void save(Path file)
+    throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        lock.readLock().lock();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(dimensions);
+            out.writeInt(size);
+            for (int i = 0; i < size * dimensions; i++)
+                out.writeFloat(vectors[i]);
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static ExactIndex load(Path file)
+    throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not an exact index: " + file);
+            ExactIndex index = new ExactIndex(in.readInt());
+            int size = in.readInt();
+            float[] vector = new float[index.dimensions];
+            for (int id = 0; id < size; id++) {
+                for (int i = 0; i < vector.length; i++)
+                    vector[i] = in.readFloat();
+                index.add(vector);
+            }
+            return index;
+        }
+    }
+
+    private static float inverse(float norm) {
+        return norm == 0 ? 0 : 1 / norm;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= inverseNorms.length)
+            return;
+        int grown = Math.max(inverseNorms.length * 2, capacity);
+        vectors = Arrays.copyOf(vectors, grown * dimensions);
+        inverseNorms = Arrays.copyOf(inverseNorms, grown);
+    }
+}
@@ -0,0 +1,496 @@
+package chatai;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hierarchical Navigable Small World graph: each vector is linked to up to
+ * {@code m} close vectors ({@code 2 * m} on the bottom layer), and searches
+ * descend greedily from the sparse upper layers to the bottom one, where
+ * they explore the {@code ef} closest candidates.
+ * <p>
+ * Larger {@code m} and {@code efConstruction} build a better connected graph,
+ * at the cost of memory and insertion time; larger {@code efSearch} trades
+ * search latency for recall.
+ * <p>
+ * Searches and inserts run concurrently: the links of each node are guarded
+ * by a lock of their own, held while they are read or changed, and an
+ * insert only excludes the others while its vector is copied in. Inserts
+ * raising the top level of the graph are serialized, as they move the
+ * entry point.
+ *
+ * @see <a href="https://arxiv.org/abs/1603.09320"/>
+ */
+public class HnswIndex
+        implements VectorIndex
+{
+    private static final int MAGIC = 0x484e5357;
+    private static final int INITIAL_CAPACITY = 1024;
+    // Striped, as a lock per node would take more memory than its links
+    private static final int NODE_LOCKS = 1 << 12;
+
+    private static final Comparator<Neighbor> CLOSEST_FIRST =
+            Comparator.comparingDouble(Neighbor::distance);
+    private static final Comparator<Neighbor> FARTHEST_FIRST = CLOSEST_FIRST.reversed();
+
+    private final int dimensions;
+    private final int m;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final SimilarityKernel kernel = SimilarityKernel.best();
+    // Held for writing to grow the arrays, or to save them, and for reading otherwise
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object[] nodeLocks = new Object[NODE_LOCKS];
+    private final Object sizeLock = new Object();
+    private final Object entryLock = new Object();
+
+    private float[] vectors;
+    private float[] norms;
+    // links[node][level] holds the number of neighbours, followed by their ids,
+    // guarded by the lock of the node
+    private int[][][] links;
+    // Guarded by sizeLock, counting the nodes still being linked
+    private int size;
+    // Changed under entryLock
+    private volatile Entry entry = new Entry(-1, -1);
+
+    public HnswIndex(
+            int dimensions,
+            int m,
+            int efConstruction,
+            int efSearch
+    ) {
+        if (m < 2)
+            throw new IllegalArgumentException("m must be at least 2, got " + m);
+        this.dimensions = dimensions;
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1 / Math.log(m);
+        this.vectors = new float[INITIAL_CAPACITY * dimensions];
+        this.norms = new float[INITIAL_CAPACITY];
+        this.links = new int[INITIAL_CAPACITY][][];
+        for (int i = 0; i < NODE_LOCKS; i++)
+            nodeLocks[i] = new Object();
+    }
+
+    @Override
+    public int add(float[] vector) {
+        if (vector.length != dimensions)
+            throw new IllegalArgumentException(
+                    "Expected " + dimensions + " dimensions, got " + vector.length);
+        while (true) {
+            lock.readLock().lock();
+            try {
+                int id;
+                int level;
+                synchronized (sizeLock) {
+                    id = size;
+                    if (id == norms.length) {
+                        id = -1;
+                        level = -1;
+                    } else {
+                        size++;
+                        level = randomLevel();
+                    }
+                }
+                if (id >= 0) {
+                    insert(id, level, vector);
+                    return id;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            lock.writeLock().lock();
+            try {
+                ensureCapacity(size + 1);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes node {@code id}, which no other thread sees until it is linked
+     * to, and links it; the one raising the top level becomes the entry
+     * point.
+     */
+    private void insert(int id, int level, float[] vector) {
+        System.arraycopy(vector, 0, vectors, id * dimensions, dimensions);
+        norms[id] = kernel.norm(vector, 0, dimensions);
+        int[][] levels = new int[level + 1][];
+        for (int l = 0; l <= level; l++)
+            levels[l] = new int[maxLinks(l) + 1];
+        links[id] = levels;
+        Entry top = entry;
+        if (level > top.level()) {
+            synchronized (entryLock) {
+                top = entry;
+                if (level > top.level()) {
+                    link(id, level, top);
+                    entry = new Entry(id, level);
+                    return;
+                }
+            }
+        }
+        link(id, level, top);
+    }
+
+    /**
+     * Links node {@code id} to its closest nodes on each of its levels,
+     * searched from {@code top}.
+     */
+    private void link(int id, int level, Entry top) {
+        if (top.node() < 0)
+            return;
+        float[] vector = Arrays.copyOfRange(vectors, id * dimensions, (id + 1) * dimensions);
+        float norm = norms[id];
+        int ep = top.node();
+        for (int l = top.level(); l > level; l--)
+            ep = greedy(vector, norm, ep, l);
+        for (int l = Math.min(level, top.level()); l >= 0; l--) {
+            List<Neighbor> candidates = searchLayer(vector, norm, ep, efConstruction, l);
+            List<Neighbor> neighbours = selectNeighbours(candidates, maxLinks(l));
+            // Others may have linked to it already, once linked on the levels above
+            for (Neighbor n : neighbours)
+                connect(id, n.id(), n.distance(), l);
+            for (Neighbor n : neighbours)
+                connect(n.id(), id, n.distance(), l);
+            ep = candidates.get(0).id();
+        }
+    }
+
+    @Override
+    public List<Neighbor> search(float[] query, int k) {
+        lock.readLock().lock();
+        try {
+            Entry top = entry;
+            if (top.node() < 0 || k <= 0)
+                return List.of();
+            float norm = kernel.norm(query, 0, dimensions);
+            int ep = top.node();
+            for (int l = top.level(); l > 0; l--)
+                ep = greedy(query, norm, ep, l);
+            List<Neighbor> found = searchLayer(query, norm, ep, Math.max(efSearch, k), 0);
+            return found.size() > k ? found.subList(0, k) : found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public float[] vector(int id) {
+        lock.readLock().lock();
+        try {
+            Objects.checkIndex(id, size());
+            return Arrays.copyOfRange(vectors, id * dimensions, (id + 1) * dimensions);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        synchronized (sizeLock) {
+            return size;
+        }
+    }
+
+    /**
+     * Writes the vectors and the graph to {@code file}, replacing it only
+     * once completely written.
+     */
+    @Override
+    public void save(Path file)
+    throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        // Excludes the inserts still linking their node
+        lock.writeLock().lock();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(dimensions);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(size);
+            out.writeInt(entry.node());
+            out.writeInt(entry.level());
+            for (int i = 0; i < size * dimensions; i++)
+                out.writeFloat(vectors[i]);
+            for (int id = 0; id < size; id++) {
+                out.writeInt(links[id].length);
+                for (int[] level : links[id]) {
+                    out.writeInt(level[0]);
+                    for (int i = 1; i <= level[0]; i++)
+                        out.writeInt(level[i]);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an index written by {@link #save(Path)}, searching it with the
+     * given {@code efSearch}, as it only affects queries.
+     */
+    public static HnswIndex load(Path file, int efSearch)
+    throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not an HNSW index: " + file);
+            int dimensions = in.readInt();
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            in.readInt();
+            HnswIndex index = new HnswIndex(dimensions, m, efConstruction, efSearch);
+            int size = in.readInt();
+            index.ensureCapacity(size);
+            index.size = size;
+            index.entry = new Entry(in.readInt(), in.readInt());
+            for (int i = 0; i < size * dimensions; i++)
+                index.vectors[i] = in.readFloat();
+            for (int id = 0; id < size; id++) {
+                index.norms[id] = index.kernel.norm(index.vectors, id * dimensions, dimensions);
+                int[][] levels = new int[in.readInt()][];
+                for (int l = 0; l < levels.length; l++) {
+                    levels[l] = new int[index.maxLinks(l) + 1];
+                    levels[l][0] = in.readInt();
+                    for (int i = 1; i <= levels[l][0]; i++)
+                        levels[l][i] = in.readInt();
+                }
+                index.links[id] = levels;
+            }
+            // Keeps drawing levels from where a fresh index would be
+            for (int i = 0; i < size; i++)
+                index.randomLevel();
+            return index;
+        }
+    }
+
+    private int greedy(float[] query, float norm, int ep, int level) {
+        float best = distance(query, norm, ep);
+        int[] neighbours = new int[maxLinks(level) + 1];
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            neighbours(ep, level, neighbours);
+            for (int i = 1; i <= neighbours[0]; i++) {
+                float d = distance(query, norm, neighbours[i]);
+                if (d < best) {
+                    best = d;
+                    ep = neighbours[i];
+                    improved = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * The {@code ef} closest vectors found from {@code ep}, from the closest.
+     */
+    private List<Neighbor> searchLayer(
+            float[] query,
+            float norm,
+            int ep,
+            int ef,
+            int level
+    ) {
+        IntSet visited = new IntSet();
+        PriorityQueue<Neighbor> candidates = new PriorityQueue<>(CLOSEST_FIRST);
+        PriorityQueue<Neighbor> results = new PriorityQueue<>(ef + 1, FARTHEST_FIRST);
+        Neighbor start = new Neighbor(ep, distance(query, norm, ep));
+        visited.add(ep);
+        candidates.add(start);
+        results.add(start);
+        int[] neighbours = new int[maxLinks(level) + 1];
+        while (!candidates.isEmpty()) {
+            Neighbor current = candidates.poll();
+            if (current.distance() > results.peek().distance())
+                break;
+            neighbours(current.id(), level, neighbours);
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int id = neighbours[i];
+                if (!visited.add(id))
+                    continue;
+                float d = distance(query, norm, id);
+                if (results.size() < ef || d < results.peek().distance()) {
+                    Neighbor n = new Neighbor(id, d);
+                    candidates.add(n);
+                    results.add(n);
+                    if (results.size() > ef)
+                        results.poll();
+                }
+            }
+        }
+        List<Neighbor> found = new ArrayList<>(results);
+        found.sort(CLOSEST_FIRST);
+        return found;
+    }
+
+    /**
+     * Keeps the candidates closer to the new vector than to the neighbours
+     * already selected, so that links spread in different directions; then
+     * fills up with the closest among the discarded ones.
+     */
+    private List<Neighbor> selectNeighbours(List<Neighbor> candidates, int max) {
+        if (candidates.size() <= max)
+            return candidates;
+        List<Neighbor> selected = new ArrayList<>(max);
+        List<Neighbor> discarded = new ArrayList<>();
+        for (Neighbor candidate : candidates) {
+            if (selected.size() == max)
+                break;
+            boolean diverse = true;
+            for (Neighbor s : selected) {
+                if (distance(candidate.id(), s.id()) < candidate.distance()) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse)
+                selected.add(candidate);
+            else
+                discarded.add(candidate);
+        }
+        for (int i = 0; selected.size() < max && i < discarded.size(); i++)
+            selected.add(discarded.get(i));
+        return selected;
+    }
+
+    /**
+     * Copies the number and ids of the neighbours of {@code node} on
+     * {@code level} to {@code copy}, as they may be changed meanwhile.
+     */
+    private void neighbours(int node, int level, int[] copy) {
+        synchronized (nodeLock(node)) {
+            int[] neighbours = links[node][level];
+            System.arraycopy(neighbours, 0, copy, 0, neighbours[0] + 1);
+        }
+    }
+
+    private void connect(int node, int added, float distance, int level) {
+        synchronized (nodeLock(node)) {
+            int[] neighbours = links[node][level];
+            for (int i = 1; i <= neighbours[0]; i++)
+                if (neighbours[i] == added)
+                    return;
+            if (neighbours[0] < neighbours.length - 1) {
+                neighbours[++neighbours[0]] = added;
+                return;
+            }
+            List<Neighbor> candidates = new ArrayList<>(neighbours[0] + 1);
+            candidates.add(new Neighbor(added, distance));
+            for (int i = 1; i <= neighbours[0]; i++)
+                candidates.add(new Neighbor(neighbours[i], distance(node, neighbours[i])));
+            candidates.sort(CLOSEST_FIRST);
+            List<Neighbor> kept = selectNeighbours(candidates, neighbours.length - 1);
+            neighbours[0] = kept.size();
+            for (int i = 0; i < kept.size(); i++)
+                neighbours[i + 1] = kept.get(i).id();
+        }
+    }
+
+    private Object nodeLock(int node) {
+        return nodeLocks[node & (NODE_LOCKS - 1)];
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    private int randomLevel() {
+        return (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+    }
+
+    private float distance(float[] query, float norm, int id) {
+        float dot = kernel.dot(query, 0, vectors, id * dimensions, dimensions);
+        return cosineDistance(dot, norm, norms[id]);
+    }
+
+    private float distance(int a, int b) {
+        float dot = kernel.dot(vectors, a * dimensions, vectors, b * dimensions, dimensions);
+        return cosineDistance(dot, norms[a], norms[b]);
+    }
+
+    private static float cosineDistance(float dot, float normA, float normB) {
+        float norms = normA * normB;
+        return norms == 0 ? 1 : 1 - dot / norms;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= norms.length)
+            return;
+        int grown = Math.max(norms.length * 2, capacity);
+        vectors = Arrays.copyOf(vectors, grown * dimensions);
+        norms = Arrays.copyOf(norms, grown);
+        links = Arrays.copyOf(links, grown);
+    }
+
+    private record Entry(int node, int level) {}
+
+    /**
+     * Open-addressing set of node ids, much smaller than a bit set over the
+     * whole index, as a search visits a few thousand nodes at most.
+     */
+    private static class IntSet
+    {
+        private int[] slots = new int[256];
+        private int size;
+
+        boolean add(int id) {
+            if (2 * (size + 1) > slots.length)
+                grow();
+            int key = id + 1;
+            int mask = slots.length - 1;
+            for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == key)
+                    return false;
+                if (slots[i] == 0) {
+                    slots[i] = key;
+                    size++;
+                    return true;
+                }
+            }
+        }
+
+        private void grow() {
+            int[] old = slots;
+            slots = new int[old.length * 2];
+            int mask = slots.length - 1;
+            for (int key : old) {
+                if (key == 0)
+                    continue;
+                int i = mix(key) & mask;
+                while (slots[i] != 0)
+                    i = (i + 1) & mask;
+                slots[i] = key;
+            }
+        }
+
+        private static int mix(int key) {
+            return key * 0x9e3779b9 >>> 7 ^ key;
+        }
+    }
+}
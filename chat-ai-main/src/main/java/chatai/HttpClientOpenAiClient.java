@@ -0,0 +1,267 @@
+package chatai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * {@link OpenAiClient} on the JDK {@link HttpClient}: requests share the
+ * client's pool of HTTP/2 connections, and the asynchronous methods do not
+ * hold a thread while waiting for OpenAI.
+ * <p>
+ * Timeouts are applied separately: {@code connectTimeout} to establish a
+ * connection, {@code requestTimeout} to receive the response headers, and
+ * {@code readTimeout} to the whole exchange, including reading the body;
+ * a streamed response still being read then is closed, failing the read.
+ * Requests go to {@code baseUrl}, such as {@code https://api.openai.com/v1}.
+ *
+ * @see <a href="https://openjdk.org/groups/net/httpclient/intro.html"/>
+ */
+public class HttpClientOpenAiClient
+        implements OpenAiClient, AsyncOpenAiClient, AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(OpenAiClient.class);
+
+    private final OpenAiRequestWriter writer = new OpenAiRequestWriter();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final HttpClient http;
+    private final String baseUrl;
+    private final Duration requestTimeout;
+    private final Duration readTimeout;
+    private final CompletionListener listener;
+
+    public HttpClientOpenAiClient(
+            Duration connectTimeout,
+            Duration requestTimeout,
+            Duration readTimeout
+    ) {
+        this(OpenAiClient.DEFAULT_BASE_URL, connectTimeout, requestTimeout, readTimeout);
+    }
+
+    public HttpClientOpenAiClient(
+            String baseUrl,
+            Duration connectTimeout,
+            Duration requestTimeout,
+            Duration readTimeout
+    ) {
+        this(baseUrl, connectTimeout, requestTimeout, readTimeout, CompletionListener.NONE);
+    }
+
+    /**
+     * Tells {@code listener} about each completion.
+     */
+    public HttpClientOpenAiClient(
+            String baseUrl,
+            Duration connectTimeout,
+            Duration requestTimeout,
+            Duration readTimeout,
+            CompletionListener listener
+    ) {
+        this.baseUrl = baseUrl.replaceAll("/+$", "");
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+        this.requestTimeout = requestTimeout;
+        this.readTimeout = readTimeout;
+        this.listener = listener;
+    }
+
+    @Override
+    public Embedding embed(
+            String apiKey,
+            String value
+    ) throws Exception {
+        return await(embedAsync(apiKey, value));
+    }
+
+    @Override
+    public List<Embedding> embedBatch(
+            String apiKey,
+            List<String> values
+    ) throws Exception {
+        return await(embedBatchAsync(apiKey, values));
+    }
+
+    @Override
+    public ChatResponse chatCompletion(
+            String apiKey,
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens
+    ) throws Exception {
+        return await(chatCompletionAsync(apiKey, messages, functions, maxTokens));
+    }
+
+    @Override
+    public ChatResponse streamChatCompletion(
+            String apiKey,
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens,
+            Consumer<ChatDelta> deltas
+    ) throws Exception {
+        long deadline = System.nanoTime() + readTimeout.toNanos();
+        try (JsonBuffer json = writer.chatRequest(messages, functions, maxTokens, true)) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Sending JSON to chat completion API:\n" + json);
+            HttpResponse<InputStream> response = http.send(
+                    post(baseUrl + "/chat/completions", apiKey, "text/event-stream", json),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream is = response.body()) {
+                AtomicBoolean timedOut = new AtomicBoolean();
+                // Closing the body wakes up the read blocked on it
+                CompletableFuture<Void> timeout = CompletableFuture.runAsync(
+                        () -> {
+                            timedOut.set(true);
+                            try {
+                                is.close();
+                            } catch (IOException e) {
+                                LOG.debug("Could not close timed out stream", e);
+                            }
+                        },
+                        CompletableFuture.delayedExecutor(
+                                Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                try {
+                    if (response.statusCode() >= 400)
+                        throw failure(response.statusCode(), new String(is.readAllBytes(), UTF_8));
+                    return OpenAiStreamReader.read(is, deltas, listener);
+                } catch (IOException e) {
+                    if (timedOut.get())
+                        throw new HttpTimeoutException("OpenAI stream not over after " + readTimeout);
+                    throw e;
+                } finally {
+                    timeout.cancel(false);
+                }
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Embedding> embedAsync(
+            String apiKey,
+            String value
+    ) {
+        return embedBatchAsync(apiKey, List.of(value))
+                .thenApply(embeddings -> embeddings.get(0));
+    }
+
+    @Override
+    public CompletableFuture<List<Embedding>> embedBatchAsync(
+            String apiKey,
+            List<String> values
+    ) {
+        JsonBuffer json = writer.embeddingsRequest(values);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Sending JSON to embeddings API:\n" + json);
+        return send(baseUrl + "/embeddings", apiKey, json)
+                .thenApply(body -> OpenAiCodec.embeddings(new ByteArrayInputStream(body)));
+    }
+
+    @Override
+    public CompletableFuture<ChatResponse> chatCompletionAsync(
+            String apiKey,
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens
+    ) {
+        JsonBuffer json = writer.chatRequest(messages, functions, maxTokens, false);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Sending JSON to chat completion API:\n" + json);
+        return send(baseUrl + "/chat/completions", apiKey, json)
+                .thenApply(body -> OpenAiCodec.chatResponse(new ByteArrayInputStream(body), listener));
+    }
+
+    @Override
+    public void close() {
+        http.close();
+        executor.close();
+    }
+
+    /**
+     * Closes {@code json} once the exchange is over, as the request body is
+     * read from its buffer while being sent, even after the read timeout.
+     * An exchange timing out is cancelled, releasing its HTTP/2 stream.
+     */
+    private CompletableFuture<byte[]> send(
+            String endpoint,
+            String apiKey,
+            JsonBuffer json
+    ) {
+        CompletableFuture<HttpResponse<byte[]>> exchange;
+        try {
+            exchange = http.sendAsync(
+                    post(endpoint, apiKey, "application/json", json),
+                    HttpResponse.BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {
+            json.close();
+            throw e;
+        }
+        exchange.whenComplete((response, e) -> json.close());
+        CompletableFuture<HttpResponse<byte[]>> timed = exchange.copy()
+                .orTimeout(readTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        timed.whenComplete((response, e) -> {
+            if (e instanceof TimeoutException)
+                exchange.cancel(true);
+        });
+        return timed.thenApply(response -> {
+                    if (response.statusCode() >= 400)
+                        throw new CompletionException(failure(
+                                response.statusCode(),
+                                new String(response.body(), UTF_8)));
+                    return response.body();
+                });
+    }
+
+    private HttpRequest post(
+            String endpoint,
+            String apiKey,
+            String accept,
+            JsonBuffer json
+    ) {
+        return HttpRequest.newBuilder(URI.create(endpoint))
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json")
+                .header("Accept", accept)
+                .header("Authorization", "Bearer " + apiKey)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(json.bytes(), 0, json.size()))
+                .build();
+    }
+
+    private static IOException failure(int status, String body) {
+        return new IOException("OpenAI responded with status " + status + ": " + body);
+    }
+
+    private static <T> T await(CompletableFuture<T> future)
+    throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause)
+                throw cause;
+            throw e;
+        }
+    }
+}
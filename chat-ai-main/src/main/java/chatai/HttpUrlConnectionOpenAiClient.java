@@ -3,58 +3,63 @@ package chatai;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.json.bind.Jsonb;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.List;
-import java.util.stream.Collectors;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.function.Consumer;
 
 public class HttpUrlConnectionOpenAiClient
         implements OpenAiClient
 {
     private static final Logger LOG = LoggerFactory.getLogger(OpenAiClient.class);
 
-    private static final String OPENAI_CHAT_MODEL = "gpt-3.5-turbo-0613";
-    private static final String OPENAI_EMB_MODEL = "text-embedding-ada-002";
+    private final OpenAiRequestWriter writer = new OpenAiRequestWriter();
+    private final String baseUrl;
+    private final CompletionListener listener;
+
+    public HttpUrlConnectionOpenAiClient() {
+        this(OpenAiClient.DEFAULT_BASE_URL);
+    }
+
+    public HttpUrlConnectionOpenAiClient(String baseUrl) {
+        this(baseUrl, CompletionListener.NONE);
+    }
+
+    /**
+     * @param baseUrl  where the OpenAI API is served, such as
+     *                 {@code https://api.openai.com/v1}
+     * @param listener told about each completion
+     */
+    public HttpUrlConnectionOpenAiClient(String baseUrl, CompletionListener listener) {
+        this.baseUrl = baseUrl.replaceAll("/+$", "");
+        this.listener = listener;
+    }
 
     @Override
     public Embedding embed(
             String apiKey,
             String value
     ) throws Exception {
-        URL url = new URL("https://api.openai.com/v1/embeddings");
-        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-        con.setDoOutput(true);
-        con.setRequestMethod("POST");
-        con.setRequestProperty("Content-Type", "application/json");
-        con.setRequestProperty("Accept", "application/json");
-        con.setRequestProperty("Authorization", "Bearer " + apiKey);
-        con.setConnectTimeout(300_000);
-        con.setReadTimeout(300_000);
-        try (OutputStream os = con.getOutputStream()) {
-            String json = String.format("""
-                    {
-                        "model": "%s",
-                        "input": "%s"
-                    }
-                    """, OPENAI_EMB_MODEL, clean(value));
+        return embedBatch(apiKey, List.of(value)).get(0);
+    }
+
+    @Override
+    public List<Embedding> embedBatch(
+            String apiKey,
+            List<String> values
+    ) throws Exception {
+        JsonBuffer json = writer.embeddingsRequest(values);
+        if (LOG.isDebugEnabled())
             LOG.debug("Sending JSON to embeddings API:\n" + json);
-            byte[] bytes = json.getBytes(UTF_8);
-            os.write(bytes, 0, bytes.length);
-        }
-        try (InputStream is = con.getInputStream();
-             Jsonb jsonb = Json.jsonb()
-        ) {
-            String res = new String(is.readAllBytes(), UTF_8);
-            OpenAiEmbeddingsResponse resp =
-                    jsonb.fromJson(res, OpenAiEmbeddingsResponse.class);
-            OpenAiEmbeddingResponse emb =
-                    resp.data().get(0);
-            return new Embedding(emb.embedding());
+        HttpURLConnection con = post(
+                baseUrl + "/embeddings",
+                apiKey,
+                "application/json",
+                json);
+        try (InputStream is = con.getInputStream()) {
+            return OpenAiCodec.embeddings(is);
         }
     }
 
@@ -66,87 +71,61 @@ public class HttpUrlConnectionOpenAiClient
             int maxTokens
     )
     throws Exception {
-        try (Jsonb jsonb = Json.jsonb()) {
-            String json = toJson(messages, functions, maxTokens);
-            URL url = new URL("https://api.openai.com/v1/chat/completions");
-            HttpURLConnection con = (HttpURLConnection) url.openConnection();
-            con.setDoOutput(true);
-            con.setRequestMethod("POST");
-            con.setRequestProperty("Content-Type", "application/json");
-            con.setRequestProperty("Accept", "application/json");
-            con.setRequestProperty("Authorization", "Bearer " + apiKey);
-            con.setConnectTimeout(300_000);
-            con.setReadTimeout(300_000);
-            try (OutputStream os = con.getOutputStream()) {
-                LOG.debug("Sending JSON to chat completion API:\n" + json);
-                byte[] bytes = json.getBytes(UTF_8);
-                os.write(bytes, 0, bytes.length);
-            }
-            try (InputStream is = con.getInputStream()) {
-                String res = new String(is.readAllBytes(), UTF_8);
-                OpenAiResponse resp = jsonb.fromJson(res, OpenAiResponse.class);
-                OpenAiChoice choice = resp.choices().get(0);
-                if (!"stop".equals(choice.finish_reason()))
-                    LOG.info("Finish reason: " + choice.finish_reason());
-                LOG.debug("Usage: " + resp.usage());
-                OpenAiResponseMessage msg = choice.message();
-                if (msg.function_call() != null)
-                    return new ChatResponse.FunctionCallChatResponse(
-                            msg.function_call().name(),
-                            msg.function_call().arguments()
-                    );
-                else return new ChatResponse.MessageChatResponse(msg.content());
-            }
+        JsonBuffer json = writer.chatRequest(messages, functions, maxTokens, false);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Sending JSON to chat completion API:\n" + json);
+        HttpURLConnection con = post(
+                baseUrl + "/chat/completions",
+                apiKey,
+                "application/json",
+                json);
+        try (InputStream is = con.getInputStream()) {
+            return OpenAiCodec.chatResponse(is, listener);
         }
     }
 
-    private String clean(String prompt) {
-        return prompt
-                .replace("\n", " ")
-                .replace("'", "''")
-                .replace("\"", "\\\"")
-                .replaceAll("\s+", " ")
-                .trim();
-    }
-
-    private String toJson(
+    @Override
+    public ChatResponse streamChatCompletion(
+            String apiKey,
             List<OpenAiRequestMessage> messages,
             List<ModelFunction> functions,
-            int maxTokens
+            int maxTokens,
+            Consumer<ChatDelta> deltas
     )
     throws Exception {
-        try (Jsonb jsonb = Json.jsonb()) {
-            if (functions.isEmpty()) {
-                return String.format(
-                        """
-                        {
-                            "model": "%s",
-                            "messages": %s,
-                            "temperature": 0.7,
-                            "max_tokens": %d
-                        }
-                        """,
-                        OPENAI_CHAT_MODEL,
-                        jsonb.toJson(messages),
-                        maxTokens);
-            } else {
-                return String.format(
-                        """
-                        {
-                            "model": "%s",
-                            "messages": %s,
-                            "functions": %s,
-                            "temperature": 0.7,
-                            "max_tokens": %d
-                        }
-                        """,
-                        OPENAI_CHAT_MODEL,
-                        jsonb.toJson(messages),
-                        "[" + functions.stream()
-                                .map(ModelFunction::body)
-                                .collect(Collectors.joining(",\n")) + "]",
-                        maxTokens);
-            }
+        JsonBuffer json = writer.chatRequest(messages, functions, maxTokens, true);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Sending JSON to chat completion API:\n" + json);
+        HttpURLConnection con = post(
+                baseUrl + "/chat/completions",
+                apiKey,
+                "text/event-stream",
+                json);
+        try (InputStream is = con.getInputStream()) {
+            return OpenAiStreamReader.read(is, deltas, listener);
+        }
+    }
+
+    private HttpURLConnection post(
+            String endpoint,
+            String apiKey,
+            String accept,
+            JsonBuffer json
+    )
+    throws Exception {
+        URL url = new URL(endpoint);
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setDoOutput(true);
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", "application/json");
+        con.setRequestProperty("Accept", accept);
+        con.setRequestProperty("Authorization", "Bearer " + apiKey);
+        con.setConnectTimeout(300_000);
+        con.setReadTimeout(300_000);
+        con.setFixedLengthStreamingMode(json.size());
+        try (json; OutputStream os = con.getOutputStream()) {
+            json.writeTo(os);
         }
+        return con;
     }
 }
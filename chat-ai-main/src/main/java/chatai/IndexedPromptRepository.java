@@ -0,0 +1,487 @@
+package chatai;
+
+import chatai.VectorIndex.Neighbor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps messages in memory and searches them with a {@link VectorIndex},
+ * without a database round trip.
+ * <p>
+ * When given a directory, messages, with their conversation, token counts
+ * and embeddings, are appended to a log as they are saved, and the index is written on
+ * {@link #close()}; on restart the index is loaded, and the messages logged
+ * after it was written are added again, without tokenizing any of them.
+ * Contexts and functions are rewritten on every change.
+ */
+public class IndexedPromptRepository
+        implements PromptRepository, AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(IndexedPromptRepository.class);
+
+    public static final String HNSW_INDEX = "hnsw.index";
+    public static final String EXACT_INDEX = "exact.index";
+    public static final String QUANTIZED_INDEX = "quantized.f32";
+
+    // Same as the limit of PgVectorPromptRepository
+    private static final int SEARCH_LIMIT = 100;
+    private static final String MESSAGES_LOG = "messages.log";
+    private static final String CONTEXTS = "contexts.json";
+    private static final String FUNCTIONS = "functions.json";
+    // Tells a log with conversations from the ones written before: with
+    // token counts only, or starting with a role
+    private static final int LOG_MAGIC = 0x4d4c4f48;
+    private static final int TOKENS_LOG_MAGIC = 0x4d4c4f47;
+
+    private final VectorIndex index;
+    private final Path directory;
+    private final String indexFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Message> messages = new ArrayList<>();
+    private int[] tokenCounts = new int[1024];
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<String, Context> contexts = new ConcurrentHashMap<>();
+    private final Map<String, ModelFunction> functions = new ConcurrentHashMap<>();
+    private final DataOutputStream log;
+
+    /**
+     * Not persisted.
+     */
+    public IndexedPromptRepository(VectorIndex index) {
+        this.index = index;
+        this.directory = null;
+        this.indexFile = null;
+        this.log = null;
+    }
+
+    /**
+     * Persisted to {@code directory}, where the index is written to
+     * {@code indexFile}.
+     */
+    public IndexedPromptRepository(
+            VectorIndex index,
+            Path directory,
+            String indexFile
+    ) throws IOException {
+        this.index = index;
+        this.directory = directory;
+        this.indexFile = indexFile;
+        Files.createDirectories(directory);
+        upgradeLog(directory.resolve(MESSAGES_LOG));
+        replay(directory.resolve(MESSAGES_LOG));
+        for (Context context : Json.readArray(directory.resolve(CONTEXTS), Context[].class))
+            contexts.put(context.name(), context);
+        for (ModelFunction function : Json.readArray(directory.resolve(FUNCTIONS), ModelFunction[].class))
+            functions.put(function.name(), function);
+        boolean created = !Files.exists(directory.resolve(MESSAGES_LOG));
+        this.log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                directory.resolve(MESSAGES_LOG),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)));
+        if (created) {
+            log.writeInt(LOG_MAGIC);
+            log.flush();
+        }
+    }
+
+    /**
+     * Backed by an {@link HnswIndex}, loaded from {@code directory} if
+     * written there before.
+     */
+    public static IndexedPromptRepository hnsw(
+            Path directory,
+            int dimensions,
+            int m,
+            int efConstruction,
+            int efSearch
+    ) throws IOException {
+        Path file = directory.resolve(HNSW_INDEX);
+        HnswIndex index = Files.exists(file)
+                ? HnswIndex.load(file, efSearch)
+                : new HnswIndex(dimensions, m, efConstruction, efSearch);
+        return new IndexedPromptRepository(index, directory, HNSW_INDEX);
+    }
+
+    /**
+     * Backed by an {@link ExactIndex}, loaded from {@code directory} if
+     * written there before.
+     */
+    public static IndexedPromptRepository exact(
+            Path directory,
+            int dimensions
+    ) throws IOException {
+        Path file = directory.resolve(EXACT_INDEX);
+        ExactIndex index = Files.exists(file)
+                ? ExactIndex.load(file)
+                : new ExactIndex(dimensions);
+        return new IndexedPromptRepository(index, directory, EXACT_INDEX);
+    }
+
+    /**
+     * Backed by a {@link QuantizedIndex}, its vectors mapped from
+     * {@code directory}.
+     */
+    public static IndexedPromptRepository quantized(
+            Path directory,
+            int dimensions,
+            QuantizedIndex.Quantization quantization,
+            int rerankFactor
+    ) throws IOException {
+        Files.createDirectories(directory);
+        QuantizedIndex index = QuantizedIndex.open(
+                directory.resolve(QUANTIZED_INDEX), dimensions, quantization, rerankFactor);
+        try {
+            return new IndexedPromptRepository(index, directory, QUANTIZED_INDEX);
+        } catch (IOException | RuntimeException e) {
+            index.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void saveContext(Context context)
+    throws SQLException {
+        contexts.put(context.name(), context);
+        write(CONTEXTS, contexts.values());
+    }
+
+    @Override
+    public void deleteContext(String name)
+    throws SQLException {
+        contexts.remove(name);
+        write(CONTEXTS, contexts.values());
+    }
+
+    @Override
+    public void saveFunction(ModelFunction function)
+    throws SQLException {
+        functions.put(function.name(), function);
+        write(FUNCTIONS, functions.values());
+    }
+
+    @Override
+    public void deleteFunction(String name)
+    throws SQLException {
+        functions.remove(name);
+        write(FUNCTIONS, functions.values());
+    }
+
+    /**
+     * Searches all the messages saved here, whatever their conversation: a
+     * {@link PartitionedPromptRepository} keeps each conversation apart.
+     */
+    @Override
+    public List<Message> semanticSearch(
+            String conversation,
+            String promptTxt,
+            Embedding promptEmb,
+            int tokenBudget
+    ) {
+        lock.readLock().lock();
+        try {
+            List<Neighbor> found = index.search(promptEmb.values(), SEARCH_LIMIT + 1);
+            List<Message> similar = new ArrayList<>(Math.min(found.size(), SEARCH_LIMIT));
+            int tokens = 0;
+            for (Neighbor neighbor : found) {
+                Message message = messages.get(neighbor.id());
+                if (message.content().equals(promptTxt))
+                    continue;
+                tokens += tokenCounts[neighbor.id()];
+                if (tokens > tokenBudget)
+                    break;
+                LOG.debug(String.format("Distance %f - %s\n", neighbor.distance(), message.content()));
+                similar.add(message);
+                if (similar.size() == SEARCH_LIMIT)
+                    break;
+            }
+            return similar;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Context> contextMessages() {
+        return new ArrayList<>(contexts.values());
+    }
+
+    @Override
+    public List<ModelFunction> functions() {
+        return new ArrayList<>(functions.values());
+    }
+
+    @Override
+    public void saveMessage(
+            Message message,
+            Embedding embedding
+    ) throws SQLException {
+        saveMessages(List.of(message), List.of(embedding));
+    }
+
+    /**
+     * Skips the messages whose contents were already saved.
+     */
+    @Override
+    public void saveMessages(
+            List<Message> messages,
+            List<Embedding> embeddings
+    ) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            List<Integer> added = new ArrayList<>(messages.size());
+            Set<String> contents = new HashSet<>();
+            for (int i = 0; i < messages.size(); i++) {
+                String content = messages.get(i).content();
+                if (!ids.containsKey(content) && contents.add(content))
+                    added.add(i);
+            }
+            int[] counts = new int[added.size()];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = Tokens.count(messages.get(added.get(i)).content());
+            if (log != null) {
+                for (int i = 0; i < counts.length; i++)
+                    append(log, messages.get(added.get(i)), counts[i], embeddings.get(added.get(i)).values());
+                log.flush();
+            }
+            for (int i = 0; i < counts.length; i++)
+                add(messages.get(added.get(i)), counts[i], embeddings.get(added.get(i)).values());
+        } catch (IOException e) {
+            throw new SQLException("Cannot log messages", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks in all the messages saved here, whatever their conversation, as
+     * {@link #semanticSearch} does.
+     */
+    @Override
+    public Optional<Embedding> findEmbedding(String conversation, String contents) {
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(contents);
+            return id == null
+                    ? Optional.empty()
+                    : Optional.of(new Embedding(index.vector(id)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the index, so that the next start does not rebuild it from the log.
+     */
+    @Override
+    public void close()
+    throws IOException {
+        if (directory == null)
+            return;
+        lock.writeLock().lock();
+        try {
+            log.close();
+            index.save(directory.resolve(indexFile));
+            if (index instanceof Closeable closeable)
+                closeable.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void add(Message message, int tokenCount, float[] embedding) {
+        int id = index.add(embedding);
+        if (id != messages.size())
+            throw new IllegalStateException(
+                    "Index has " + id + " vectors, but there are " + messages.size() + " messages");
+        track(message, tokenCount);
+    }
+
+    private void track(Message message, int tokenCount) {
+        int id = messages.size();
+        if (id == tokenCounts.length)
+            tokenCounts = Arrays.copyOf(tokenCounts, id * 2);
+        tokenCounts[id] = tokenCount;
+        messages.add(message);
+        ids.put(message.content(), id);
+    }
+
+    private static void append(DataOutputStream log, Message message, int tokenCount, float[] embedding)
+    throws IOException {
+        byte[] conversation = message.conversation().getBytes(UTF_8);
+        byte[] content = message.content().getBytes(UTF_8);
+        log.writeByte(message.role().ordinal());
+        log.writeLong(message.timestamp().toEpochMilli());
+        log.writeInt(tokenCount);
+        log.writeInt(conversation.length);
+        log.write(conversation);
+        log.writeInt(content.length);
+        log.write(content);
+        log.writeInt(embedding.length);
+        for (float value : embedding)
+            log.writeFloat(value);
+    }
+
+    private void replay(Path file)
+    throws IOException {
+        if (!Files.exists(file))
+            return;
+        int indexed = index.size();
+        long valid = Integer.BYTES;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            in.readInt();
+            while (true) {
+                Message message;
+                int tokenCount;
+                byte[] conversation;
+                byte[] content;
+                float[] embedding;
+                try {
+                    Role role = Role.values()[in.readByte()];
+                    Instant timestamp = Instant.ofEpochMilli(in.readLong());
+                    tokenCount = in.readInt();
+                    int conversationLength = in.readInt();
+                    conversation = in.readNBytes(conversationLength);
+                    if (conversation.length < conversationLength)
+                        break;
+                    int length = in.readInt();
+                    content = in.readNBytes(length);
+                    if (content.length < length)
+                        break;
+                    message = new Message(
+                            role, new String(content, UTF_8), timestamp, new String(conversation, UTF_8));
+                    embedding = new float[in.readInt()];
+                    for (int i = 0; i < embedding.length; i++)
+                        embedding[i] = in.readFloat();
+                } catch (EOFException e) {
+                    // Last record partially written, or end of log
+                    break;
+                }
+                valid += 1 + 8 + 4 + 4 + conversation.length + 4 + content.length + 4 + 4L * embedding.length;
+                if (messages.size() < indexed) {
+                    track(message, tokenCount);
+                } else {
+                    add(message, tokenCount, embedding);
+                }
+            }
+        }
+        if (Files.size(file) > valid) {
+            LOG.warn("Discarding incomplete record at the end of " + file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        if (messages.size() < indexed)
+            throw new IOException(
+                    "Index has " + indexed + " vectors, but the log only " + messages.size() + " messages");
+        LOG.info("Loaded " + messages.size() + " messages, " + (messages.size() - indexed) + " from the log");
+    }
+
+    /**
+     * Rewrites a log written before conversations were logged, with the
+     * default one, as the messages of others were not kept apart then; and
+     * before token counts were logged, counting them this once.
+     */
+    private static void upgradeLog(Path file)
+    throws IOException {
+        if (!Files.exists(file))
+            return;
+        if (Files.size(file) < Integer.BYTES) {
+            // Not even a whole message, nor a whole header
+            Files.delete(file);
+            return;
+        }
+        boolean counted;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic == LOG_MAGIC)
+                return;
+            counted = magic == TOKENS_LOG_MAGIC;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(LOG_MAGIC);
+            if (counted)
+                in.readInt();
+            while (true) {
+                Message message;
+                int tokenCount;
+                float[] embedding;
+                try {
+                    Role role = Role.values()[in.readByte()];
+                    Instant timestamp = Instant.ofEpochMilli(in.readLong());
+                    tokenCount = counted ? in.readInt() : -1;
+                    int length = in.readInt();
+                    byte[] content = in.readNBytes(length);
+                    if (content.length < length)
+                        break;
+                    message = new Message(role, new String(content, UTF_8), timestamp);
+                    embedding = new float[in.readInt()];
+                    for (int i = 0; i < embedding.length; i++)
+                        embedding[i] = in.readFloat();
+                } catch (EOFException e) {
+                    // Last record partially written, or end of log
+                    break;
+                }
+                append(out, message, counted ? tokenCount : Tokens.count(message.content()), embedding);
+                count++;
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Logged the conversations" + (counted ? "" : " and token counts") + " of " + count + " messages in " + file);
+    }
+
+    private synchronized void write(String name, Collection<?> values)
+    throws SQLException {
+        if (directory == null)
+            return;
+        try {
+            Json.writeArray(directory.resolve(name), values);
+        } catch (IOException e) {
+            throw new SQLException("Cannot write " + name, e);
+        }
+    }
+}
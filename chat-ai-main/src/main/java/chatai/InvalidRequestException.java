@@ -0,0 +1,13 @@
+package chatai;
+
+/**
+ * A request that cannot be served as it was sent, such as one naming a
+ * malformed conversation, as opposed to a failure while serving it.
+ */
+public class InvalidRequestException
+        extends IllegalArgumentException
+{
+    public InvalidRequestException(String message) {
+        super(message);
+    }
+}
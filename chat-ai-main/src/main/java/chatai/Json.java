@@ -2,14 +2,64 @@ package chatai;
 
 import javax.json.bind.Jsonb;
 import javax.json.bind.JsonbBuilder;
-import javax.json.bind.JsonbConfig;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Shared JSON codecs: both {@link Jsonb} and {@link JsonParserFactory} are
+ * thread-safe, and expensive enough to create that they should not be
+ * created per call.
+ */
 public class Json
 {
-    private static final JsonbConfig jsonbConfig = new JsonbConfig()
-            .withFormatting(true);
+    private static final Jsonb jsonb = JsonbBuilder.create();
+
+    private static final JsonParserFactory parsers =
+            javax.json.Json.createParserFactory(Map.of());
 
     public static Jsonb jsonb() {
-        return JsonbBuilder.create(jsonbConfig);
+        return jsonb;
+    }
+
+    public static JsonParser parser(InputStream is) {
+        return parsers.createParser(is, UTF_8);
+    }
+
+    /**
+     * The array stored in {@code file}, or an empty list if there is no such file.
+     */
+    public static <T> List<T> readArray(Path file, Class<T[]> type)
+    throws IOException {
+        if (!Files.exists(file))
+            return List.of();
+        try (Reader reader = Files.newBufferedReader(file, UTF_8)) {
+            return Arrays.asList(jsonb.fromJson(reader, type));
+        }
+    }
+
+    /**
+     * Replaces {@code file} with {@code values}, only once completely written.
+     */
+    public static void writeArray(Path file, Collection<?> values)
+    throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, UTF_8)) {
+            jsonb.toJson(new ArrayList<>(values), writer);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 }
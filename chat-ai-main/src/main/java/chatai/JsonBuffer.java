@@ -0,0 +1,201 @@
+package chatai;
+
+import java.io.OutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Growable buffer of UTF-8 encoded JSON, pooled so that request bodies do not
+ * allocate a new buffer each time. Strings are escaped and encoded in a
+ * single pass, without intermediate copies.
+ * <p>
+ * A buffer must not be used after {@link #close()}, which returns it to the pool.
+ *
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc8259#section-7"/>
+ */
+public class JsonBuffer
+        implements AutoCloseable
+{
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    // Larger buffers are left to the GC, rather than pinning their memory
+    private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+    private static final BlockingQueue<JsonBuffer> pool = new ArrayBlockingQueue<>(32);
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF_8);
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int size;
+
+    public static JsonBuffer acquire() {
+        JsonBuffer buffer = pool.poll();
+        return buffer != null ? buffer : new JsonBuffer();
+    }
+
+    public JsonBuffer raw(byte[] fragment) {
+        ensure(fragment.length);
+        System.arraycopy(fragment, 0, bytes, size, fragment.length);
+        size += fragment.length;
+        return this;
+    }
+
+    public JsonBuffer raw(char ascii) {
+        ensure(1);
+        bytes[size++] = (byte) ascii;
+        return this;
+    }
+
+    public JsonBuffer number(int value) {
+        // Negated as a long, as -Integer.MIN_VALUE overflows
+        long magnitude = value;
+        if (magnitude < 0) {
+            raw('-');
+            magnitude = -magnitude;
+        }
+        int digits = 1;
+        for (long v = magnitude / 10; v > 0; v /= 10)
+            digits++;
+        ensure(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            bytes[i] = (byte) ('0' + magnitude % 10);
+            magnitude /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    public JsonBuffer string(String value) {
+        return string(value, 0, value.length(), false);
+    }
+
+    /**
+     * Writes {@code value} as a JSON string, trimmed, and with each run of
+     * whitespace replaced by a single space.
+     */
+    public JsonBuffer normalizedString(String value) {
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ')
+            start++;
+        while (end > start && value.charAt(end - 1) <= ' ')
+            end--;
+        return string(value, start, end, true);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The underlying array, valid up to {@link #size()}, and until the buffer is closed.
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public void writeTo(OutputStream os)
+    throws IOException {
+        os.write(bytes, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size, UTF_8);
+    }
+
+    @Override
+    public void close() {
+        size = 0;
+        if (bytes.length <= MAX_POOLED_CAPACITY)
+            pool.offer(this);
+    }
+
+    private JsonBuffer string(
+            String value,
+            int start,
+            int end,
+            boolean collapseWhitespace
+    ) {
+        // Worst case: 6 bytes per char (an escaped control char), plus quotes
+        ensure((end - start) * 6 + 2);
+        byte[] b = bytes;
+        int n = size;
+        b[n++] = '"';
+        boolean inWhitespace = false;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (collapseWhitespace && isWhitespace(c)) {
+                if (!inWhitespace)
+                    b[n++] = ' ';
+                inWhitespace = true;
+                continue;
+            }
+            inWhitespace = false;
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    b[n++] = '\\';
+                    b[n++] = (byte) c;
+                } else if (c < 0x20) {
+                    n = control(b, n, c);
+                } else {
+                    b[n++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                b[n++] = (byte) (0xc0 | c >> 6);
+                b[n++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < end
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                b[n++] = (byte) (0xf0 | cp >> 18);
+                b[n++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                b[n++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                b[n++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: replaced like String.getBytes(UTF_8) does
+                b[n++] = '?';
+            } else {
+                b[n++] = (byte) (0xe0 | c >> 12);
+                b[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+                b[n++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        b[n++] = '"';
+        size = n;
+        return this;
+    }
+
+    private static int control(byte[] b, int n, char c) {
+        b[n++] = '\\';
+        switch (c) {
+            case '\n' -> b[n++] = 'n';
+            case '\r' -> b[n++] = 'r';
+            case '\t' -> b[n++] = 't';
+            case '\b' -> b[n++] = 'b';
+            case '\f' -> b[n++] = 'f';
+            default -> {
+                b[n++] = 'u';
+                b[n++] = '0';
+                b[n++] = '0';
+                b[n++] = HEX[c >> 4];
+                b[n++] = HEX[c & 0xf];
+            }
+        }
+        return n;
+    }
+
+    // Same as \s in java.util.regex
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > bytes.length) {
+            byte[] grown = new byte[Math.max(bytes.length * 2, size + extra)];
+            System.arraycopy(bytes, 0, grown, 0, size);
+            bytes = grown;
+        }
+    }
+}
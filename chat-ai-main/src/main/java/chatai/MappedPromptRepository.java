@@ -0,0 +1,440 @@
+package chatai;
+
+import chatai.VectorIndex.Neighbor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Keeps embeddings in a memory-mapped file of {@link MappedVectors}, so
+ * that searches scan the OS page cache without copying it to the heap, and
+ * restarts do not rebuild anything; the working set can be larger than the
+ * heap.
+ * <p>
+ * Messages are appended to a side log, with their conversation, and only
+ * their offsets and token counts are kept in memory; a message is read back when it is a search
+ * result. Token counts are logged with the messages, so that restarts do
+ * not tokenize them again. The log is the source of truth: an embedding
+ * record only counts once its message is logged.
+ * <p>
+ * Writes are serialized; searches run concurrently with them, and see the
+ * messages saved before they started.
+ */
+public class MappedPromptRepository
+        implements PromptRepository, AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MappedPromptRepository.class);
+
+    // Same as the limit of PgVectorPromptRepository
+    private static final int SEARCH_LIMIT = 100;
+    private static final String EMBEDDINGS = "embeddings.f32";
+    private static final String MESSAGES_LOG = "messages.log";
+    private static final String CONTEXTS = "contexts.json";
+    private static final String FUNCTIONS = "functions.json";
+    // Tells a log with conversations from the ones written before: with
+    // token counts only, or starting with a role
+    private static final int LOG_MAGIC = 0x4d4c4f48;
+    private static final int TOKENS_LOG_MAGIC = 0x4d4c4f47;
+    private static final int LOG_HEADER_BYTES = Integer.BYTES;
+    // Role, timestamp, token count, content length and conversation length
+    private static final int MESSAGE_HEADER_BYTES = 1 + Long.BYTES + 3 * Integer.BYTES;
+    // The same, without the conversation length, or the token count either
+    private static final int TOKENS_MESSAGE_HEADER_BYTES = 1 + Long.BYTES + 2 * Integer.BYTES;
+    private static final int LEGACY_MESSAGE_HEADER_BYTES = 1 + Long.BYTES + Integer.BYTES;
+    private static final int GROWTH_RECORDS = 16 * 1024;
+
+    private final Path directory;
+    private final MappedVectors embeddings;
+    private final FileChannel log;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Ids of the messages by the hash code of their contents
+    private final Map<Integer, int[]> ids = new ConcurrentHashMap<>();
+    private final Map<String, Context> contexts = new ConcurrentHashMap<>();
+    private final Map<String, ModelFunction> functions = new ConcurrentHashMap<>();
+
+    private volatile long[] offsets = new long[GROWTH_RECORDS];
+    // Counted when appended or replayed, so that searches need not read the log
+    private volatile int[] tokenCounts = new int[GROWTH_RECORDS];
+    private volatile int size;
+    private long logSize;
+
+    public MappedPromptRepository(Path directory, int dimensions)
+    throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.embeddings = MappedVectors.open(directory.resolve(EMBEDDINGS), dimensions);
+        upgradeLog(directory.resolve(MESSAGES_LOG));
+        this.log = FileChannel.open(directory.resolve(MESSAGES_LOG), READ, WRITE, CREATE);
+        replay();
+        for (Context context : Json.readArray(directory.resolve(CONTEXTS), Context[].class))
+            contexts.put(context.name(), context);
+        for (ModelFunction function : Json.readArray(directory.resolve(FUNCTIONS), ModelFunction[].class))
+            functions.put(function.name(), function);
+    }
+
+    @Override
+    public void saveContext(Context context)
+    throws SQLException {
+        contexts.put(context.name(), context);
+        write(CONTEXTS, contexts.values());
+    }
+
+    @Override
+    public void deleteContext(String name)
+    throws SQLException {
+        contexts.remove(name);
+        write(CONTEXTS, contexts.values());
+    }
+
+    @Override
+    public void saveFunction(ModelFunction function)
+    throws SQLException {
+        functions.put(function.name(), function);
+        write(FUNCTIONS, functions.values());
+    }
+
+    @Override
+    public void deleteFunction(String name)
+    throws SQLException {
+        functions.remove(name);
+        write(FUNCTIONS, functions.values());
+    }
+
+    /**
+     * Searches all the messages saved here, whatever their conversation: a
+     * {@link PartitionedPromptRepository} keeps each conversation apart.
+     */
+    @Override
+    public List<Message> semanticSearch(
+            String conversation,
+            String promptTxt,
+            Embedding promptEmb,
+            int tokenBudget
+    ) throws SQLException {
+        int count = size;
+        MemorySegment segment = embeddings.segment();
+        int[] counts = tokenCounts;
+        if (count == 0)
+            return List.of();
+        float[] query = promptEmb.values();
+        float inverseQueryNorm = embeddings.inverseNorm(query);
+        TopK top = new TopK(Math.min(SEARCH_LIMIT + 1, count));
+        for (int id = 0; id < count; id++)
+            top.offer(id, embeddings.cosineDistance(segment, id, query, inverseQueryNorm));
+        try {
+            List<Message> similar = new ArrayList<>(SEARCH_LIMIT);
+            int tokens = 0;
+            for (Neighbor neighbor : top.closestFirst()) {
+                Message message = message(neighbor.id());
+                if (message.content().equals(promptTxt))
+                    continue;
+                tokens += counts[neighbor.id()];
+                if (tokens > tokenBudget)
+                    break;
+                LOG.debug(String.format("Distance %f - %s\n", neighbor.distance(), message.content()));
+                similar.add(message);
+                if (similar.size() == SEARCH_LIMIT)
+                    break;
+            }
+            return similar;
+        } catch (IOException e) {
+            throw new SQLException("Cannot read messages", e);
+        }
+    }
+
+    @Override
+    public List<Context> contextMessages() {
+        return new ArrayList<>(contexts.values());
+    }
+
+    @Override
+    public List<ModelFunction> functions() {
+        return new ArrayList<>(functions.values());
+    }
+
+    @Override
+    public void saveMessage(
+            Message message,
+            Embedding embedding
+    ) throws SQLException {
+        saveMessages(List.of(message), List.of(embedding));
+    }
+
+    /**
+     * Skips the messages whose contents were already saved.
+     */
+    @Override
+    public void saveMessages(
+            List<Message> messages,
+            List<Embedding> embeddings
+    ) throws SQLException {
+        writeLock.lock();
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                if (find(message.content()) < 0)
+                    append(message, embeddings.get(i).values());
+            }
+        } catch (IOException e) {
+            throw new SQLException("Cannot save messages", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Looks in all the messages saved here, whatever their conversation, as
+     * {@link #semanticSearch} does.
+     */
+    @Override
+    public Optional<Embedding> findEmbedding(String conversation, String contents)
+    throws SQLException {
+        try {
+            int id = find(contents);
+            if (id < 0)
+                return Optional.empty();
+            return Optional.of(new Embedding(embeddings.get(id)));
+        } catch (IOException e) {
+            throw new SQLException("Cannot read messages", e);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Flushes the embeddings and the log to disk.
+     */
+    @Override
+    public void close()
+    throws IOException {
+        writeLock.lock();
+        try {
+            embeddings.force(size);
+            log.force(false);
+            embeddings.close();
+            log.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void append(Message message, float[] embedding)
+    throws IOException {
+        int id = size;
+        embeddings.set(id, embedding);
+
+        int tokenCount = Tokens.count(message.content());
+        ByteBuffer buffer = record(message, tokenCount);
+        long offset = logSize;
+        while (buffer.hasRemaining())
+            logSize += log.write(buffer, logSize);
+
+        index(id, offset, message.content(), tokenCount);
+        size = id + 1;
+    }
+
+    private static ByteBuffer record(Message message, int tokenCount) {
+        byte[] content = message.content().getBytes(UTF_8);
+        byte[] conversation = message.conversation().getBytes(UTF_8);
+        return ByteBuffer.allocate(MESSAGE_HEADER_BYTES + content.length + conversation.length)
+                .put((byte) message.role().ordinal())
+                .putLong(message.timestamp().toEpochMilli())
+                .putInt(tokenCount)
+                .putInt(content.length)
+                .putInt(conversation.length)
+                .put(content)
+                .put(conversation)
+                .flip();
+    }
+
+    private void index(int id, long offset, String content, int tokenCount) {
+        long[] current = offsets;
+        int[] counts = tokenCounts;
+        if (id == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+            counts = Arrays.copyOf(counts, counts.length * 2);
+            offsets = current;
+            tokenCounts = counts;
+        }
+        current[id] = offset;
+        counts[id] = tokenCount;
+        ids.merge(content.hashCode(), new int[]{id}, MappedPromptRepository::concat);
+    }
+
+    private int find(String contents)
+    throws IOException {
+        int[] candidates = ids.get(contents.hashCode());
+        if (candidates != null) {
+            for (int id : candidates)
+                if (message(id).content().equals(contents))
+                    return id;
+        }
+        return -1;
+    }
+
+    private Message message(int id)
+    throws IOException {
+        long offset = offsets[id];
+        ByteBuffer header = ByteBuffer.allocate(MESSAGE_HEADER_BYTES);
+        readFully(header, offset);
+        header.flip();
+        Role role = Role.values()[header.get()];
+        Instant timestamp = Instant.ofEpochMilli(header.getLong());
+        header.getInt();
+        ByteBuffer content = ByteBuffer.allocate(header.getInt());
+        ByteBuffer conversation = ByteBuffer.allocate(header.getInt());
+        readFully(content, offset + MESSAGE_HEADER_BYTES);
+        readFully(conversation, offset + MESSAGE_HEADER_BYTES + content.capacity());
+        return new Message(
+                role,
+                new String(content.array(), UTF_8),
+                timestamp,
+                new String(conversation.array(), UTF_8));
+    }
+
+    private void readFully(ByteBuffer buffer, long position)
+    throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = log.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of " + MESSAGES_LOG);
+            position += read;
+        }
+    }
+
+    /**
+     * Reads the offset and token count of each logged message, discarding a
+     * record only partially written.
+     */
+    private void replay()
+    throws IOException {
+        long length = log.size();
+        if (length == 0) {
+            ByteBuffer magic = ByteBuffer.allocate(LOG_HEADER_BYTES).putInt(LOG_MAGIC).flip();
+            while (magic.hasRemaining())
+                length += log.write(magic, length);
+        }
+        long offset = LOG_HEADER_BYTES;
+        ByteBuffer header = ByteBuffer.allocate(MESSAGE_HEADER_BYTES);
+        int count = 0;
+        while (offset + MESSAGE_HEADER_BYTES <= length) {
+            header.clear();
+            readFully(header, offset);
+            int tokenCount = header.getInt(1 + Long.BYTES);
+            int contentLength = header.getInt(1 + Long.BYTES + Integer.BYTES);
+            int conversationLength = header.getInt(1 + Long.BYTES + 2 * Integer.BYTES);
+            long next = offset + MESSAGE_HEADER_BYTES + contentLength + conversationLength;
+            if (next > length)
+                break;
+            ByteBuffer content = ByteBuffer.allocate(contentLength);
+            readFully(content, offset + MESSAGE_HEADER_BYTES);
+            index(count++, offset, new String(content.array(), UTF_8), tokenCount);
+            offset = next;
+        }
+        if (offset < length) {
+            LOG.warn("Discarding incomplete record at the end of " + MESSAGES_LOG);
+            log.truncate(offset);
+        }
+        logSize = offset;
+        size = count;
+        LOG.info("Opened " + count + " messages in " + directory);
+    }
+
+    /**
+     * Rewrites a log written before conversations were logged, with the
+     * default one, as the messages of others were not kept apart then; and
+     * before token counts were logged, counting them this once.
+     */
+    private static void upgradeLog(Path file)
+    throws IOException {
+        if (!Files.exists(file))
+            return;
+        if (Files.size(file) < LOG_HEADER_BYTES) {
+            // Not even a whole message, nor a whole header
+            Files.delete(file);
+            return;
+        }
+        try (FileChannel legacy = FileChannel.open(file, READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(LOG_HEADER_BYTES);
+            legacy.read(magic, 0);
+            int version = magic.flip().getInt();
+            if (version == LOG_MAGIC)
+                return;
+            boolean counted = version == TOKENS_LOG_MAGIC;
+            int headerBytes = counted ? TOKENS_MESSAGE_HEADER_BYTES : LEGACY_MESSAGE_HEADER_BYTES;
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            int count = 0;
+            try (FileChannel upgraded = FileChannel.open(tmp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+                upgraded.write(ByteBuffer.allocate(LOG_HEADER_BYTES).putInt(LOG_MAGIC).flip());
+                long length = legacy.size();
+                long offset = counted ? LOG_HEADER_BYTES : 0;
+                ByteBuffer header = ByteBuffer.allocate(headerBytes);
+                while (offset + headerBytes <= length) {
+                    header.clear();
+                    while (header.hasRemaining())
+                        legacy.read(header, offset + header.position());
+                    header.flip();
+                    Role role = Role.values()[header.get()];
+                    Instant timestamp = Instant.ofEpochMilli(header.getLong());
+                    int tokenCount = counted ? header.getInt() : -1;
+                    int contentLength = header.getInt();
+                    long next = offset + headerBytes + contentLength;
+                    if (contentLength < 0 || next > length)
+                        break;
+                    ByteBuffer content = ByteBuffer.allocate(contentLength);
+                    while (content.hasRemaining())
+                        legacy.read(content, offset + headerBytes + content.position());
+                    Message message = new Message(role, new String(content.array(), UTF_8), timestamp);
+                    ByteBuffer record = record(message, counted ? tokenCount : Tokens.count(message.content()));
+                    while (record.hasRemaining())
+                        upgraded.write(record);
+                    count++;
+                    offset = next;
+                }
+                upgraded.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("Logged the conversations" + (counted ? "" : " and token counts") + " of " + count + " messages in " + file);
+        }
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] ids = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ids, a.length, b.length);
+        return ids;
+    }
+
+    private synchronized void write(String name, Collection<?> values)
+    throws SQLException {
+        try {
+            Json.writeArray(directory.resolve(name), values);
+        } catch (IOException e) {
+            throw new SQLException("Cannot write " + name, e);
+        }
+    }
+}
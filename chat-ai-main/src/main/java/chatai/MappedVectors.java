@@ -0,0 +1,193 @@
+package chatai;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Embeddings as fixed-width float32 records, each followed by the inverse
+ * norm of the vector, in a memory-mapped file, so that they are read from
+ * the OS page cache without being copied to the heap; or, when not
+ * persisted, in native memory.
+ * <p>
+ * Records are written by one thread at a time. Readers use the segment
+ * returned by {@link #segment()}, which stays valid, and holds the records
+ * written before it was returned, after later writes grow the file.
+ */
+class MappedVectors
+        implements AutoCloseable
+{
+    private static final int MAGIC = 0x46333253;
+    // Keeps records aligned, leaving room for the header to grow
+    private static final long HEADER_BYTES = 64;
+    private static final long COUNT_OFFSET = 2 * Integer.BYTES;
+    private static final int GROWTH_RECORDS = 16 * 1024;
+    // As written by a ByteBuffer
+    private static final ValueLayout.OfInt HEADER_INT = ValueLayout.JAVA_INT.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final FileChannel channel;
+    private final int dimensions;
+    private final long recordBytes;
+    private final SimilarityKernel kernel = SimilarityKernel.best();
+    private volatile MemorySegment segment;
+
+    private MappedVectors(FileChannel channel, int dimensions) {
+        this.channel = channel;
+        this.dimensions = dimensions;
+        this.recordBytes = (dimensions + 1L) * Float.BYTES;
+    }
+
+    /**
+     * Opens {@code file}, created with {@code dimensions} if missing; the
+     * dimensions of an existing file are the ones it was created with.
+     */
+    static MappedVectors open(Path file, int dimensions)
+    throws IOException {
+        FileChannel channel = FileChannel.open(file, READ, WRITE, CREATE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(3 * Integer.BYTES);
+            int count = 0;
+            if (channel.size() == 0) {
+                header.putInt(MAGIC).putInt(dimensions).putInt(count).flip();
+                channel.write(header, 0);
+            } else {
+                channel.read(header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC)
+                    throw new IOException("Not an embeddings file: " + file);
+                dimensions = header.getInt();
+                count = Math.max(header.getInt(), 0);
+            }
+            MappedVectors vectors = new MappedVectors(channel, dimensions);
+            vectors.grow(count + GROWTH_RECORDS);
+            return vectors;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Not persisted.
+     */
+    static MappedVectors inMemory(int dimensions) {
+        MappedVectors vectors = new MappedVectors(null, dimensions);
+        vectors.segment = Arena.ofAuto().allocate(vectors.bytes(GROWTH_RECORDS), Float.BYTES);
+        vectors.segment.set(HEADER_INT, 0, MAGIC);
+        vectors.segment.set(HEADER_INT, Integer.BYTES, dimensions);
+        return vectors;
+    }
+
+    int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * The number of records as of the last {@link #force(int)}, which is
+     * left to the caller to keep track of.
+     */
+    int count() {
+        return segment.get(HEADER_INT, COUNT_OFFSET);
+    }
+
+    MemorySegment segment() {
+        return segment;
+    }
+
+    /**
+     * Writes record {@code id}, growing the file as needed, and returns the
+     * inverse norm of {@code vector}.
+     */
+    float set(int id, float[] vector)
+    throws IOException {
+        if (vector.length != dimensions)
+            throw new IllegalArgumentException(
+                    "Expected " + dimensions + " dimensions, got " + vector.length);
+        if (bytes(id + 1) > segment.byteSize())
+            grow(id + GROWTH_RECORDS);
+        long record = record(id);
+        float inverseNorm = inverse(kernel.norm(vector, 0, dimensions));
+        MemorySegment.copy(vector, 0, segment, ValueLayout.JAVA_FLOAT, record, dimensions);
+        segment.set(ValueLayout.JAVA_FLOAT, record + dimensions * (long) Float.BYTES, inverseNorm);
+        return inverseNorm;
+    }
+
+    float[] get(int id) {
+        float[] values = new float[dimensions];
+        MemorySegment.copy(segment, ValueLayout.JAVA_FLOAT, record(id), values, 0, dimensions);
+        return values;
+    }
+
+    float inverseNorm(int id) {
+        return segment.get(ValueLayout.JAVA_FLOAT, record(id) + dimensions * (long) Float.BYTES);
+    }
+
+    /**
+     * The cosine distance between {@code query} and record {@code id} of
+     * {@code segment}, the same as the pgvector {@code <=>} operator.
+     */
+    float cosineDistance(MemorySegment segment, int id, float[] query, float inverseQueryNorm) {
+        long record = record(id);
+        float inverseNorm = segment.get(ValueLayout.JAVA_FLOAT, record + dimensions * (long) Float.BYTES);
+        return inverseNorm == 0 || inverseQueryNorm == 0
+                ? 1
+                : 1 - kernel.dot(query, segment, record, dimensions) * inverseQueryNorm * inverseNorm;
+    }
+
+    float inverseNorm(float[] vector) {
+        return inverse(kernel.norm(vector, 0, dimensions));
+    }
+
+    /**
+     * Records {@code count} in the header, and flushes the file to disk.
+     */
+    void force(int count) {
+        segment.set(HEADER_INT, COUNT_OFFSET, count);
+        if (channel != null)
+            segment.force();
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+
+    /**
+     * Maps, or allocates, room for {@code records}; the previous segment
+     * stays valid for the readers still using it, until collected.
+     */
+    private void grow(int records)
+    throws IOException {
+        if (channel != null) {
+            segment = channel.map(MapMode.READ_WRITE, 0, bytes(records), Arena.ofAuto());
+        } else {
+            MemorySegment grown = Arena.ofAuto().allocate(bytes(records), Float.BYTES);
+            MemorySegment.copy(segment, 0, grown, 0, segment.byteSize());
+            segment = grown;
+        }
+    }
+
+    private long bytes(int records) {
+        return HEADER_BYTES + records * recordBytes;
+    }
+
+    private long record(int id) {
+        return HEADER_BYTES + id * recordBytes;
+    }
+
+    private static float inverse(float norm) {
+        return norm == 0 ? 0 : 1 / norm;
+    }
+}
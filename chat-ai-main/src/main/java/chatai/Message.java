@@ -2,10 +2,24 @@ package chatai;
 
 import java.time.Instant;
 
+/**
+ * A prompt or a reply, saved in {@code conversation}: similar messages are
+ * only searched within the conversation of the prompt.
+ */
 public record Message(
         Role role,
         String content,
-        Instant timestamp
+        Instant timestamp,
+        String conversation
 )
 {
+    public static final String DEFAULT_CONVERSATION = "default";
+
+    public Message(
+            Role role,
+            String content,
+            Instant timestamp
+    ) {
+        this(role, content, timestamp, DEFAULT_CONVERSATION);
+    }
 }
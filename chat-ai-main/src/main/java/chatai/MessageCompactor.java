@@ -0,0 +1,315 @@
+package chatai;
+
+import chatai.ChatResponse.MessageChatResponse;
+import chatai.CompactableRepository.Cursor;
+import chatai.CompactableRepository.DuplicateScan;
+import chatai.CompactableRepository.ExcessScan;
+import chatai.CompactableRepository.StoredMessage;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the message history from growing forever, so that the vector index,
+ * and the time spent searching and vacuuming it, stay bounded. Every
+ * {@link CompactionConfig#interval()}, in this order:
+ * <ol>
+ *     <li>deletes the messages older than {@link CompactionConfig#maxAge()};</li>
+ *     <li>replaces the user and assistant messages older than
+ *     {@link CompactionConfig#rollupAge()} with system messages summarizing
+ *     them, embedded like any other message, up to
+ *     {@link CompactionConfig#rollupsPerRun()} summaries;</li>
+ *     <li>deletes the messages that are near duplicates of older ones, only
+ *     scanning the messages saved since the previous run;</li>
+ *     <li>deletes the oldest messages of the conversations holding more than
+ *     {@link CompactionConfig#maxMessages()}, only counting the messages of
+ *     the conversations that received some since the previous run.</li>
+ * </ol>
+ * Where the last two steps left off is kept by the repository, and a run is
+ * skipped while another instance sharing the repository is compacting.
+ * Messages are deleted {@link CompactionConfig#batchSize()} at a time, each
+ * batch in a short transaction of its own, waiting for
+ * {@link CompactionConfig#pause()} in between, so that live requests are
+ * never held up for long. A failed run is logged, and retried at the next one.
+ */
+public class MessageCompactor
+        implements AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MessageCompactor.class);
+
+    static final String SUMMARY_PREFIX = "Summary of earlier messages: ";
+    private static final String SUMMARY_INSTRUCTIONS =
+            "Summarize the following messages of a conversation in a few sentences, "
+            + "keeping names, facts and decisions.";
+    private static final int SUMMARY_MAX_TOKENS = 300;
+    private static final int SUMMARY_INPUT_MAX_TOKENS = 3000;
+
+    private final CompactableRepository repository;
+    private final OpenAiClient client;
+    private final CompactionConfig config;
+    private final Timer runTimer;
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder trimmed = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder rolledUp = new LongAdder();
+    private final LongAdder summaries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicLong duplicateCursor = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile Thread scheduler;
+
+    public MessageCompactor(
+            CompactableRepository repository,
+            OpenAiClient client,
+            CompactionConfig config,
+            MeterRegistry registry
+    ) {
+        this.repository = repository;
+        this.client = client;
+        this.config = config;
+        this.runTimer = Timer.builder("chat.compaction.runs")
+                .description("Time spent compacting the message history")
+                .register(registry);
+        counter(registry, "expired", expired);
+        counter(registry, "trimmed", trimmed);
+        counter(registry, "merged", merged);
+        counter(registry, "rolled_up", rolledUp);
+        FunctionCounter.builder("chat.compaction.summaries", summaries, LongAdder::sum)
+                .description("Summaries saved in place of old messages")
+                .register(registry);
+        FunctionCounter.builder("chat.compaction.failures", failures, LongAdder::sum)
+                .description("Compaction runs that failed")
+                .register(registry);
+        Gauge.builder("chat.compaction.duplicate.cursor", duplicateCursor, AtomicLong::get)
+                .description("The id of the last message scanned for duplicates")
+                .register(registry);
+    }
+
+    private static void counter(MeterRegistry registry, String action, LongAdder count) {
+        FunctionCounter.builder("chat.compaction.messages", count, LongAdder::sum)
+                .description("Messages removed by compaction")
+                .tag("action", action)
+                .register(registry);
+    }
+
+    /**
+     * Runs now, and then every {@link CompactionConfig#interval()}, on a
+     * virtual thread, until closed.
+     */
+    public synchronized MessageCompactor start() {
+        if (scheduler != null)
+            throw new IllegalStateException("Already started");
+        scheduler = Thread.ofVirtual()
+                .name("message-compactor")
+                .start(this::schedule);
+        return this;
+    }
+
+    public CompactionStats stats() {
+        return new CompactionStats(
+                runs.sum(),
+                expired.sum(),
+                trimmed.sum(),
+                merged.sum(),
+                rolledUp.sum(),
+                summaries.sum(),
+                failures.sum(),
+                duplicateCursor.get());
+    }
+
+    /**
+     * Runs every step once, unless another instance is compacting, returning
+     * the totals so far.
+     */
+    public synchronized CompactionStats runOnce()
+    throws Exception {
+        long start = System.nanoTime();
+        CompactionStats before = stats();
+        boolean ran;
+        try {
+            ran = repository.runExclusively(() -> {
+                expire();
+                rollUp();
+                mergeDuplicates();
+                trim();
+            });
+        } finally {
+            runTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        if (!ran) {
+            LOG.info("Skipped compacting messages, as another instance is compacting them");
+            return before;
+        }
+        runs.increment();
+        CompactionStats after = stats();
+        LOG.info("Compacted messages in " + (System.nanoTime() - start) / 1_000_000 + " ms: "
+                 + (after.expired() - before.expired()) + " expired, "
+                 + (after.rolledUp() - before.rolledUp()) + " rolled up into "
+                 + (after.summaries() - before.summaries()) + " summaries, "
+                 + (after.merged() - before.merged()) + " merged, "
+                 + (after.trimmed() - before.trimmed()) + " trimmed");
+        return after;
+    }
+
+    /**
+     * Stops after the current batch, without interrupting it.
+     */
+    @Override
+    public void close()
+    throws InterruptedException {
+        stopped.countDown();
+        Thread running = scheduler;
+        if (running != null)
+            running.join();
+    }
+
+    private void schedule() {
+        try {
+            do {
+                try {
+                    runOnce();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    failures.increment();
+                    LOG.error("Could not compact messages", e);
+                }
+            } while (!stopped.await(config.interval().toMillis(), TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits between two batches, returning false if closed meanwhile.
+     */
+    private boolean pause()
+    throws InterruptedException {
+        return !stopped.await(config.pause().toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private boolean closed() {
+        return stopped.getCount() == 0;
+    }
+
+    private void expire()
+    throws Exception {
+        if (config.maxAge().isZero() || closed())
+            return;
+        Instant cutoff = Instant.now().minus(config.maxAge());
+        int deleted;
+        do {
+            deleted = repository.deleteOlderThan(cutoff, config.batchSize());
+            expired.add(deleted);
+        } while (deleted == config.batchSize() && pause());
+    }
+
+    private void rollUp()
+    throws Exception {
+        if (config.rollupAge().isZero() || closed())
+            return;
+        Instant cutoff = Instant.now().minus(config.rollupAge());
+        for (int rollups = 0; rollups < config.rollupsPerRun(); rollups++) {
+            List<StoredMessage> turns = summarized(repository.oldestTurns(cutoff, config.rollupTurns()));
+            if (turns.size() < 2)
+                return;
+            Message last = turns.getLast().message();
+            String summary = summarize(turns);
+            repository.replaceWithSummary(
+                    turns,
+                    new Message(Role.system, summary, last.timestamp(), last.conversation()),
+                    client.embed(config.apiKey(), last.conversation(), summary));
+            rolledUp.add(turns.size());
+            summaries.increment();
+            if (!pause())
+                return;
+        }
+    }
+
+    /**
+     * The first turns fitting in the summary request, and at least two.
+     */
+    private static List<StoredMessage> summarized(List<StoredMessage> turns) {
+        List<StoredMessage> fitting = new ArrayList<>();
+        int tokens = 0;
+        for (StoredMessage turn : turns) {
+            tokens += Tokens.count(turn.message().content());
+            if (fitting.size() >= 2 && tokens > SUMMARY_INPUT_MAX_TOKENS)
+                break;
+            fitting.add(turn);
+        }
+        return fitting;
+    }
+
+    private String summarize(List<StoredMessage> turns)
+    throws Exception {
+        StringBuilder transcript = new StringBuilder();
+        for (StoredMessage turn : turns)
+            transcript.append(turn.message().role())
+                    .append(": ")
+                    .append(turn.message().content())
+                    .append('\n');
+        ChatResponse response = client.chatCompletion(
+                config.apiKey(),
+                List.of(new OpenAiRequestMessage(Role.system, SUMMARY_INSTRUCTIONS),
+                        new OpenAiRequestMessage(Role.user, transcript.toString())),
+                List.of(),
+                SUMMARY_MAX_TOKENS);
+        if (!(response instanceof MessageChatResponse summary))
+            throw new IllegalStateException("Expected a summary, got " + response);
+        return SUMMARY_PREFIX + summary.content().strip();
+    }
+
+    private void mergeDuplicates()
+    throws Exception {
+        if (config.duplicateDistance() <= 0 || closed())
+            return;
+        duplicateCursor.set(repository.cursor(Cursor.duplicates));
+        DuplicateScan scan;
+        do {
+            scan = repository.mergeNearDuplicates(
+                    duplicateCursor.get(), config.batchSize(), config.duplicateDistance());
+            merged.add(scan.merged());
+            if (scan.scanned() > 0) {
+                repository.saveCursor(Cursor.duplicates, scan.lastId());
+                duplicateCursor.set(scan.lastId());
+            }
+        } while (scan.scanned() == config.batchSize() && pause());
+    }
+
+    private void trim()
+    throws Exception {
+        if (config.maxMessages() <= 0 || closed())
+            return;
+        long afterId = repository.cursor(Cursor.excess);
+        ExcessScan scan = repository.excessMessages(afterId, config.maxMessages());
+        for (Map.Entry<String, Integer> excess : scan.excess().entrySet()) {
+            int remaining = excess.getValue();
+            while (remaining > 0) {
+                int deleted = repository.deleteOldest(excess.getKey(), Math.min(remaining, config.batchSize()));
+                trimmed.add(deleted);
+                remaining -= deleted;
+                // Left for the next run to count again
+                if (!pause())
+                    return;
+                if (deleted == 0)
+                    break;
+            }
+        }
+        if (scan.lastId() > afterId)
+            repository.saveCursor(Cursor.excess, scan.lastId());
+    }
+}
@@ -1,18 +1,68 @@
 package chatai;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface OpenAiClient
 {
+    /**
+     * Overridden with {@code OPENAI_BASE_URL}, for example to point at a
+     * stand-in server during load tests.
+     */
+    String DEFAULT_BASE_URL = "https://api.openai.com/v1";
+
     Embedding embed(
             String apiKey,
             String promptTxt
     ) throws Exception;
 
+    List<Embedding> embedBatch(
+            String apiKey,
+            List<String> values
+    ) throws Exception;
+
+    /**
+     * Like {@link #embed(String, String)}, for a message of
+     * {@code conversation}, whose stored messages a client may look into.
+     */
+    default Embedding embed(
+            String apiKey,
+            String conversation,
+            String value
+    ) throws Exception {
+        return embed(apiKey, value);
+    }
+
+    /**
+     * Like {@link #embedBatch(String, List)}, for messages of
+     * {@code conversation}.
+     */
+    default List<Embedding> embedBatch(
+            String apiKey,
+            String conversation,
+            List<String> values
+    ) throws Exception {
+        return embedBatch(apiKey, values);
+    }
+
     ChatResponse chatCompletion(
             String apiKey,
             List<OpenAiRequestMessage> messages,
             List<ModelFunction> functions,
             int maxTokens
     ) throws Exception;
+
+    /**
+     * Like {@link #chatCompletion}, but passes each fragment of the response
+     * to {@code deltas} as soon as it is received.
+     *
+     * @return the whole response, once the stream has ended
+     */
+    ChatResponse streamChatCompletion(
+            String apiKey,
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens,
+            Consumer<ChatDelta> deltas
+    ) throws Exception;
 }
@@ -0,0 +1,176 @@
+package chatai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParsingException;
+import java.io.InputStream;
+import java.util.List;
+
+import static javax.json.stream.JsonParser.Event.*;
+
+/**
+ * Model names and response decoding shared by the {@link OpenAiClient}
+ * implementations; request bodies are written by {@link OpenAiRequestWriter}.
+ */
+public class OpenAiCodec
+{
+    private static final Logger LOG = LoggerFactory.getLogger(OpenAiClient.class);
+
+    public static final String OPENAI_CHAT_MODEL = "gpt-3.5-turbo-0613";
+    public static final String OPENAI_EMB_MODEL = "text-embedding-ada-002";
+    private static final int OPENAI_EMB_DIMENSIONS = 1536;
+
+    /**
+     * Decodes an embeddings response as it is read, keeping only the vectors
+     * and their indexes.
+     *
+     * @see OpenAiEmbeddingsReader
+     */
+    public static List<Embedding> embeddings(InputStream is) {
+        return OpenAiEmbeddingsReader.read(is, OPENAI_EMB_DIMENSIONS);
+    }
+
+    public static ChatResponse chatResponse(InputStream is) {
+        return chatResponse(is, CompletionListener.NONE);
+    }
+
+    /**
+     * Tells {@code listener} the usage and finish reason of the response.
+     */
+    public static ChatResponse chatResponse(InputStream is, CompletionListener listener) {
+        OpenAiResponse resp = completion(is);
+        OpenAiChoice choice = resp.choices().get(0);
+        if (!"stop".equals(choice.finish_reason()))
+            LOG.info("Finish reason: " + choice.finish_reason());
+        LOG.debug("Usage: " + resp.usage());
+        listener.completed(resp.usage(), choice.finish_reason());
+        OpenAiResponseMessage msg = choice.message();
+        if (msg.function_call() != null)
+            return new ChatResponse.FunctionCallChatResponse(
+                    msg.function_call().name(),
+                    msg.function_call().arguments()
+            );
+        else return new ChatResponse.MessageChatResponse(msg.content());
+    }
+
+    /**
+     * Decodes a chat completion response as it is read, keeping only the
+     * message and finish reason of the first choice, and the usage.
+     */
+    public static OpenAiResponse completion(InputStream is) {
+        try (JsonParser parser = Json.parser(is)) {
+            OpenAiChoice choice = null;
+            OpenAiUsage usage = null;
+            expect(parser, START_OBJECT);
+            while (parser.next() == KEY_NAME) {
+                switch (parser.getString()) {
+                    case "choices" -> {
+                        expect(parser, START_ARRAY);
+                        while (parser.next() == START_OBJECT) {
+                            if (choice == null)
+                                choice = choice(parser);
+                            else
+                                parser.skipObject();
+                        }
+                    }
+                    case "usage" -> usage = usage(parser);
+                    default -> skipValue(parser);
+                }
+            }
+            return new OpenAiResponse(
+                    choice == null ? List.of() : List.of(choice),
+                    usage);
+        }
+    }
+
+    private static OpenAiChoice choice(JsonParser parser) {
+        OpenAiResponseMessage message = null;
+        String finishReason = null;
+        while (parser.next() == KEY_NAME) {
+            switch (parser.getString()) {
+                case "message" -> message = message(parser);
+                case "finish_reason" -> finishReason = string(parser);
+                default -> skipValue(parser);
+            }
+        }
+        return new OpenAiChoice(message, finishReason);
+    }
+
+    private static OpenAiResponseMessage message(JsonParser parser) {
+        expect(parser, START_OBJECT);
+        String role = null;
+        String content = null;
+        OpenAiFunctionCall functionCall = null;
+        while (parser.next() == KEY_NAME) {
+            switch (parser.getString()) {
+                case "role" -> role = string(parser);
+                case "content" -> content = string(parser);
+                case "function_call" -> functionCall = functionCall(parser);
+                default -> skipValue(parser);
+            }
+        }
+        return new OpenAiResponseMessage(
+                role == null ? null : Role.valueOf(role),
+                content,
+                functionCall);
+    }
+
+    private static OpenAiFunctionCall functionCall(JsonParser parser) {
+        if (parser.next() == VALUE_NULL)
+            return null;
+        String name = null;
+        String arguments = null;
+        while (parser.next() == KEY_NAME) {
+            switch (parser.getString()) {
+                case "name" -> name = string(parser);
+                case "arguments" -> arguments = string(parser);
+                default -> skipValue(parser);
+            }
+        }
+        return new OpenAiFunctionCall(name, arguments);
+    }
+
+    private static OpenAiUsage usage(JsonParser parser) {
+        expect(parser, START_OBJECT);
+        int promptTokens = 0;
+        int completionTokens = 0;
+        int totalTokens = 0;
+        while (parser.next() == KEY_NAME) {
+            switch (parser.getString()) {
+                case "prompt_tokens" -> promptTokens = integer(parser);
+                case "completion_tokens" -> completionTokens = integer(parser);
+                case "total_tokens" -> totalTokens = integer(parser);
+                default -> skipValue(parser);
+            }
+        }
+        return new OpenAiUsage(promptTokens, completionTokens, totalTokens);
+    }
+
+    private static String string(JsonParser parser) {
+        return parser.next() == VALUE_STRING ? parser.getString() : null;
+    }
+
+    private static int integer(JsonParser parser) {
+        expect(parser, VALUE_NUMBER);
+        return parser.getInt();
+    }
+
+    private static void skipValue(JsonParser parser) {
+        switch (parser.next()) {
+            case START_OBJECT -> parser.skipObject();
+            case START_ARRAY -> parser.skipArray();
+            default -> {}
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonParser.Event expected) {
+        JsonParser.Event event = parser.next();
+        if (event != expected)
+            throw new JsonParsingException(
+                    "Expected " + expected + " but got " + event,
+                    parser.getLocation());
+    }
+
+}
@@ -1,9 +1,8 @@
 package chatai;
 
-import java.util.List;
-
 public record OpenAiEmbeddingResponse(
-        List<Float> embedding
+        int index,
+        float[] embedding
 )
 {
 }
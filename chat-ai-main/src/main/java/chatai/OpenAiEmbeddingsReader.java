@@ -0,0 +1,353 @@
+package chatai;
+
+import javax.json.JsonException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Decodes an embeddings response as it is read, keeping only the vectors
+ * and their indexes. Unlike JSON-P, which hands numbers out as strings or
+ * {@link java.math.BigDecimal}s, the numbers of the vectors are parsed from
+ * the bytes of the body straight into a {@code float[]}, without allocating
+ * anything per number.
+ * <p>
+ * Numbers of up to 15 significant digits and a decimal exponent within
+ * &plusmn;22, which covers everything the API prints, are converted by a
+ * single correctly rounded {@code double} multiplication or division; the
+ * rare others, and the ones whose {@code double} lies exactly halfway
+ * between two {@code float}s, are left to {@link Float#parseFloat}, so that
+ * every number is rounded exactly as it would be by it.
+ *
+ * @see OpenAiCodec#embeddings
+ */
+class OpenAiEmbeddingsReader
+{
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_FAST_DIGITS = 15;
+    private static final int MAX_NUMBER_LENGTH = 64;
+    /** The bits of a {@code double} mantissa below the precision of a {@code float}. */
+    private static final long FLOAT_ROUNDING_MASK = (1L << 29) - 1;
+    private static final long FLOAT_HALFWAY = 1L << 28;
+
+    private final InputStream is;
+    private final byte[] buffer = new byte[8192];
+    private final byte[] number = new byte[MAX_NUMBER_LENGTH];
+    private int position;
+    private int limit;
+    private long offset;
+
+    private OpenAiEmbeddingsReader(InputStream is) {
+        this.is = is;
+    }
+
+    static List<Embedding> read(InputStream is, int dimensions) {
+        try {
+            return new OpenAiEmbeddingsReader(is).response(dimensions);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Embedding> response(int dimensions)
+    throws IOException {
+        List<IndexedEmbedding> embeddings = new ArrayList<>();
+        expect('{');
+        if (!consume('}')) {
+            do {
+                String key = string();
+                expect(':');
+                if ("data".equals(key))
+                    data(embeddings, dimensions);
+                else
+                    skipValue();
+            } while (consume(','));
+            expect('}');
+        }
+        // The API may not return the embeddings in input order
+        return embeddings.stream()
+                .sorted(Comparator.comparingInt(IndexedEmbedding::index))
+                .map(IndexedEmbedding::embedding)
+                .toList();
+    }
+
+    private void data(List<IndexedEmbedding> embeddings, int dimensions)
+    throws IOException {
+        expect('[');
+        if (consume(']'))
+            return;
+        do {
+            expect('{');
+            int index = embeddings.size();
+            float[] values = null;
+            if (!consume('}')) {
+                do {
+                    String key = string();
+                    expect(':');
+                    switch (key) {
+                        case "index" -> index = integer();
+                        case "embedding" -> values = floats(dimensions);
+                        default -> skipValue();
+                    }
+                } while (consume(','));
+                expect('}');
+            }
+            embeddings.add(new IndexedEmbedding(index, new Embedding(values)));
+        } while (consume(','));
+        expect(']');
+    }
+
+    private float[] floats(int dimensions)
+    throws IOException {
+        expect('[');
+        float[] values = new float[dimensions];
+        int size = 0;
+        if (!consume(']')) {
+            do {
+                if (size == values.length)
+                    values = Arrays.copyOf(values, Math.max(1, size * 2));
+                values[size++] = floatValue();
+            } while (consume(','));
+            expect(']');
+        }
+        return size == values.length ? values : Arrays.copyOf(values, size);
+    }
+
+    private int integer()
+    throws IOException {
+        skipWhitespace();
+        long value = 0;
+        int digits = 0;
+        int b;
+        while ((b = peek()) >= '0' && b <= '9') {
+            value = value * 10 + (b - '0');
+            if (++digits > 9 && value > Integer.MAX_VALUE)
+                throw error("Integer too large");
+            position++;
+        }
+        if (digits == 0)
+            throw error("Expected an integer");
+        return (int) value;
+    }
+
+    /**
+     * Reads a JSON number, keeping its bytes for {@link Float#parseFloat}
+     * should the fast path not apply.
+     */
+    private float floatValue()
+    throws IOException {
+        skipWhitespace();
+        int length = 0;
+        boolean negative = false;
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        int b = peek();
+        if (b == '-') {
+            negative = true;
+            number[length++] = (byte) b;
+            position++;
+            b = peek();
+        }
+        if (b < '0' || b > '9')
+            throw error("Expected a number");
+        while ((b = peek()) >= '0' && b <= '9') {
+            length = keep(length, b);
+            if (digits > 0 || b != '0') {
+                if (++digits <= MAX_FAST_DIGITS)
+                    mantissa = mantissa * 10 + (b - '0');
+                else
+                    exponent++;
+            }
+        }
+        if (b == '.') {
+            length = keep(length, b);
+            while ((b = peek()) >= '0' && b <= '9') {
+                length = keep(length, b);
+                if (digits > 0 || b != '0') {
+                    if (++digits <= MAX_FAST_DIGITS) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        exponent--;
+                    }
+                } else {
+                    exponent--;
+                }
+            }
+        }
+        if (b == 'e' || b == 'E') {
+            length = keep(length, b);
+            boolean negativeExponent = false;
+            b = peek();
+            if (b == '-' || b == '+') {
+                negativeExponent = b == '-';
+                length = keep(length, b);
+            }
+            int explicit = 0;
+            while ((b = peek()) >= '0' && b <= '9') {
+                length = keep(length, b);
+                if (explicit < 10_000)
+                    explicit = explicit * 10 + (b - '0');
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (mantissa == 0)
+            return negative ? -0f : 0f;
+        if (digits <= MAX_FAST_DIGITS && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            double value = exponent < 0
+                    ? mantissa / POWERS_OF_TEN[-exponent]
+                    : mantissa * POWERS_OF_TEN[exponent];
+            double magnitude = Math.abs(value);
+            if (magnitude >= Float.MIN_NORMAL && magnitude <= Float.MAX_VALUE
+                && (Double.doubleToRawLongBits(value) & FLOAT_ROUNDING_MASK) != FLOAT_HALFWAY)
+                return (float) (negative ? -value : value);
+        }
+        if (length == MAX_NUMBER_LENGTH)
+            throw error("Number too long");
+        return Float.parseFloat(new String(number, 0, length, ISO_8859_1));
+    }
+
+    private int keep(int length, int b) {
+        if (length < MAX_NUMBER_LENGTH)
+            number[length++] = (byte) b;
+        position++;
+        return length;
+    }
+
+    /**
+     * Reads a string, used for keys only, so the few escapes they could
+     * hold are decoded simply.
+     */
+    private String string()
+    throws IOException {
+        expect('"');
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        int b;
+        while ((b = next()) != '"') {
+            if (b == '\\') {
+                b = next();
+                switch (b) {
+                    case 'b' -> bytes.write('\b');
+                    case 'f' -> bytes.write('\f');
+                    case 'n' -> bytes.write('\n');
+                    case 'r' -> bytes.write('\r');
+                    case 't' -> bytes.write('\t');
+                    case 'u' -> {
+                        char c = (char) Integer.parseInt(new String(
+                                new byte[]{(byte) next(), (byte) next(), (byte) next(), (byte) next()},
+                                ISO_8859_1), 16);
+                        bytes.writeBytes(String.valueOf(c).getBytes(UTF_8));
+                    }
+                    default -> bytes.write(b);
+                }
+            } else {
+                bytes.write(b);
+            }
+        }
+        return bytes.toString(UTF_8);
+    }
+
+    private void skipValue()
+    throws IOException {
+        skipWhitespace();
+        int depth = 0;
+        do {
+            int b = peek();
+            switch (b) {
+                case '{', '[' -> {
+                    depth++;
+                    position++;
+                }
+                case '}', ']' -> {
+                    depth--;
+                    position++;
+                }
+                case '"' -> skipString();
+                default -> position++;
+            }
+            if (depth > 0)
+                skipWhitespace();
+            else if (depth == 0)
+                skipScalarRest();
+        } while (depth > 0);
+    }
+
+    private void skipString()
+    throws IOException {
+        expect('"');
+        int b;
+        while ((b = next()) != '"')
+            if (b == '\\')
+                next();
+    }
+
+    /**
+     * Skips what remains of a number or a literal.
+     */
+    private void skipScalarRest()
+    throws IOException {
+        int b;
+        while ((b = peek()) != -1 && b != ',' && b != '}' && b != ']'
+               && b != ' ' && b != '\n' && b != '\r' && b != '\t')
+            position++;
+    }
+
+    private boolean consume(char expected)
+    throws IOException {
+        skipWhitespace();
+        if (peek() != expected)
+            return false;
+        position++;
+        return true;
+    }
+
+    private void expect(char expected)
+    throws IOException {
+        if (!consume(expected))
+            throw error("Expected '" + expected + "'");
+    }
+
+    private void skipWhitespace()
+    throws IOException {
+        int b;
+        while ((b = peek()) == ' ' || b == '\n' || b == '\r' || b == '\t')
+            position++;
+    }
+
+    private int next()
+    throws IOException {
+        int b = peek();
+        if (b == -1)
+            throw error("Unexpected end of input");
+        position++;
+        return b;
+    }
+
+    private int peek()
+    throws IOException {
+        if (position == limit) {
+            offset += limit;
+            position = 0;
+            limit = Math.max(0, is.read(buffer));
+            if (limit == 0)
+                return -1;
+        }
+        return buffer[position] & 0xff;
+    }
+
+    private JsonException error(String message) {
+        return new JsonException(message + " at offset " + (offset + position));
+    }
+
+    private record IndexedEmbedding(int index, Embedding embedding) {}
+}
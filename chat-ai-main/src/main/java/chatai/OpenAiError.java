@@ -0,0 +1,9 @@
+package chatai;
+
+public record OpenAiError(
+        String message,
+        String type,
+        String code
+)
+{
+}
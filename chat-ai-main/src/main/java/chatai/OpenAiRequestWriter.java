@@ -0,0 +1,107 @@
+package chatai;
+
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes OpenAI request bodies into pooled {@link JsonBuffer}s: the constant
+ * parts of each request are encoded once, and the functions array is
+ * re-encoded only when the functions change.
+ * <p>
+ * Embedding inputs are trimmed and their whitespace collapsed, as before.
+ */
+public class OpenAiRequestWriter
+{
+    private static final byte[] EMBEDDINGS_PREFIX = ascii(
+            "{\"model\":\"" + OpenAiCodec.OPENAI_EMB_MODEL + "\",\"input\":[");
+    private static final byte[] CHAT_PREFIX = ascii(
+            "{\"model\":\"" + OpenAiCodec.OPENAI_CHAT_MODEL + "\",\"messages\":[");
+    private static final byte[] FUNCTIONS = ascii(",\"functions\":");
+    private static final byte[] MAX_TOKENS = ascii(",\"temperature\":0.7,\"max_tokens\":");
+    private static final byte[] STREAM = ascii(",\"stream\":true}");
+    private static final byte[] NO_STREAM = ascii(",\"stream\":false}");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[][] ROLES = roles();
+
+    private volatile FunctionsFragment functionsFragment =
+            new FunctionsFragment(List.of(), ascii("[]"));
+
+    /**
+     * The caller must close the returned buffer once the request is sent.
+     */
+    public JsonBuffer embeddingsRequest(List<String> values) {
+        JsonBuffer buffer = JsonBuffer.acquire();
+        buffer.raw(EMBEDDINGS_PREFIX);
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0)
+                buffer.raw(',');
+            buffer.normalizedString(values.get(i));
+        }
+        return buffer.raw(']').raw('}');
+    }
+
+    /**
+     * The caller must close the returned buffer once the request is sent.
+     */
+    public JsonBuffer chatRequest(
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens,
+            boolean stream
+    ) {
+        JsonBuffer buffer = JsonBuffer.acquire();
+        buffer.raw(CHAT_PREFIX);
+        for (int i = 0; i < messages.size(); i++) {
+            OpenAiRequestMessage message = messages.get(i);
+            if (i > 0)
+                buffer.raw(',');
+            buffer.raw(ROLES[message.role().ordinal()]);
+            if (message.content() == null)
+                buffer.raw(NULL);
+            else
+                buffer.string(message.content());
+            buffer.raw('}');
+        }
+        buffer.raw(']');
+        if (!functions.isEmpty())
+            buffer.raw(FUNCTIONS).raw(functions(functions));
+        return buffer
+                .raw(MAX_TOKENS)
+                .number(maxTokens)
+                .raw(stream ? STREAM : NO_STREAM);
+    }
+
+    private byte[] functions(List<ModelFunction> functions) {
+        FunctionsFragment fragment = functionsFragment;
+        if (!fragment.functions().equals(functions)) {
+            fragment = new FunctionsFragment(List.copyOf(functions), encode(functions));
+            functionsFragment = fragment;
+        }
+        return fragment.json();
+    }
+
+    private static byte[] encode(List<ModelFunction> functions) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < functions.size(); i++) {
+            if (i > 0)
+                json.append(',');
+            json.append(functions.get(i).body());
+        }
+        return json.append(']').toString().getBytes(UTF_8);
+    }
+
+    private static byte[][] roles() {
+        Role[] roles = Role.values();
+        byte[][] fragments = new byte[roles.length][];
+        for (Role role : roles)
+            fragments[role.ordinal()] = ascii("{\"role\":\"" + role.name() + "\",\"content\":");
+        return fragments;
+    }
+
+    private static byte[] ascii(String fragment) {
+        return fragment.getBytes(UTF_8);
+    }
+
+    private record FunctionsFragment(List<ModelFunction> functions, byte[] json) {}
+}
@@ -0,0 +1,8 @@
+package chatai;
+
+public record OpenAiStreamChoice(
+        OpenAiResponseMessage delta,
+        String finish_reason
+)
+{
+}
@@ -0,0 +1,10 @@
+package chatai;
+
+import java.util.List;
+
+public record OpenAiStreamChunk(
+        List<OpenAiStreamChoice> choices,
+        OpenAiError error
+)
+{
+}
@@ -0,0 +1,116 @@
+package chatai;
+
+import chatai.ChatDelta.ContentDelta;
+import chatai.ChatDelta.FunctionCallDelta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.bind.Jsonb;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the server-sent events of a streamed chat completion, one
+ * {@code data:} line per chunk, until {@code data: [DONE]}.
+ * <p>
+ * A stream ending before {@code [DONE]} or a finish reason, as when the
+ * connection drops, or carrying an {@code error} event, fails with an
+ * {@link IOException}, so that the partial reply is not taken for a whole
+ * one.
+ * <p>
+ * Function calls are streamed too: the first chunk carries the function name,
+ * the following ones fragments of its arguments.
+ *
+ * @see <a href="https://platform.openai.com/docs/api-reference/chat/create#chat/create-stream"/>
+ * @see <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html"/>
+ */
+public class OpenAiStreamReader
+{
+    private static final Logger LOG = LoggerFactory.getLogger(OpenAiStreamReader.class);
+
+    private static final String DATA = "data:";
+    private static final String DONE = "[DONE]";
+
+    public static ChatResponse read(
+            InputStream is,
+            Consumer<ChatDelta> deltas
+    )
+    throws IOException {
+        return read(is, deltas, CompletionListener.NONE);
+    }
+
+    /**
+     * Tells {@code listener} the finish reason once the stream is over;
+     * usage is not streamed.
+     */
+    public static ChatResponse read(
+            InputStream is,
+            Consumer<ChatDelta> deltas,
+            CompletionListener listener
+    )
+    throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, UTF_8))) {
+            return read(reader, Json.jsonb(), deltas, listener);
+        }
+    }
+
+    private static ChatResponse read(
+            BufferedReader reader,
+            Jsonb jsonb,
+            Consumer<ChatDelta> deltas,
+            CompletionListener listener
+    )
+    throws IOException {
+        StringBuilder content = new StringBuilder();
+        String finishReason = null;
+        String functionName = null;
+        StringBuilder arguments = new StringBuilder();
+        boolean done = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith(DATA))
+                continue;
+            String data = line.substring(DATA.length()).trim();
+            if (DONE.equals(data)) {
+                done = true;
+                break;
+            }
+            OpenAiStreamChunk chunk = jsonb.fromJson(data, OpenAiStreamChunk.class);
+            if (chunk.error() != null)
+                throw new IOException("Streamed completion failed: " + chunk.error().message());
+            if (chunk.choices() == null || chunk.choices().isEmpty())
+                continue;
+            OpenAiStreamChoice choice = chunk.choices().get(0);
+            if (choice.finish_reason() != null) {
+                finishReason = choice.finish_reason();
+                if (!"stop".equals(finishReason))
+                    LOG.info("Finish reason: " + finishReason);
+            }
+            OpenAiResponseMessage delta = choice.delta();
+            if (delta == null)
+                continue;
+            if (delta.function_call() != null) {
+                OpenAiFunctionCall call = delta.function_call();
+                if (call.name() != null)
+                    functionName = call.name();
+                if (call.arguments() != null)
+                    arguments.append(call.arguments());
+                deltas.accept(new FunctionCallDelta(call.name(), call.arguments()));
+            } else if (delta.content() != null && !delta.content().isEmpty()) {
+                content.append(delta.content());
+                deltas.accept(new ContentDelta(delta.content()));
+            }
+        }
+        if (!done && finishReason == null)
+            throw new IOException("Streamed completion ended before it was complete");
+        listener.completed(null, finishReason);
+        if (functionName != null)
+            return new ChatResponse.FunctionCallChatResponse(functionName, arguments.toString());
+        return new ChatResponse.MessageChatResponse(content.toString());
+    }
+}
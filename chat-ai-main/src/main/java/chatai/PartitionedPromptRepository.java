@@ -0,0 +1,332 @@
+package chatai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Keeps the messages of each conversation in a repository of their own,
+ * opened on first use, so that a search only scans the messages of its
+ * conversation, as Postgres prunes the search to one partition of the
+ * messages table.
+ * <p>
+ * Contexts and functions are shared by all conversations, and kept by the
+ * repository of the default conversation, which is opened right away and
+ * stays open. Of the others, at most {@code maxOpen} are kept open: opening
+ * one more closes the least recently used, once the calls using it are
+ * over, so that files and memory maps do not pile up with conversations.
+ * A conversation used again before then is not opened twice.
+ * <p>
+ * Conversations are opened and closed outside of the lock on the open
+ * ones, as replaying a log or writing an index can take a while: only the
+ * calls to the conversation being opened wait for it, and a conversation
+ * being closed is opened again once it is closed.
+ */
+public class PartitionedPromptRepository
+        implements PromptRepository, AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedPromptRepository.class);
+
+    public interface Partitions
+    {
+        PromptRepository open(String conversation) throws IOException;
+    }
+
+    private interface PartitionCall<T>
+    {
+        T call(PromptRepository partition) throws SQLException;
+    }
+
+    private final Partitions partitions;
+    private final int maxOpen;
+    private final PromptRepository defaultPartition;
+    // In access order, guarded by itself
+    private final LinkedHashMap<String, Partition> opened = new LinkedHashMap<>(16, 0.75f, true);
+    // Evicted while in use, guarded by opened
+    private final Map<String, Partition> draining = new HashMap<>();
+    // Evicted and being closed, guarded by opened
+    private final Map<String, Partition> closing = new HashMap<>();
+
+    public PartitionedPromptRepository(Partitions partitions, int maxOpen)
+    throws IOException {
+        if (maxOpen < 1)
+            throw new IllegalArgumentException("At least one conversation must be kept open");
+        this.partitions = partitions;
+        this.maxOpen = maxOpen;
+        this.defaultPartition = partitions.open(Message.DEFAULT_CONVERSATION);
+    }
+
+    @Override
+    public void saveContext(Context context)
+    throws SQLException {
+        defaultPartition.saveContext(context);
+    }
+
+    @Override
+    public void deleteContext(String name)
+    throws SQLException {
+        defaultPartition.deleteContext(name);
+    }
+
+    @Override
+    public void saveFunction(ModelFunction function)
+    throws SQLException {
+        defaultPartition.saveFunction(function);
+    }
+
+    @Override
+    public void deleteFunction(String name)
+    throws SQLException {
+        defaultPartition.deleteFunction(name);
+    }
+
+    @Override
+    public List<Context> contextMessages()
+    throws SQLException {
+        return defaultPartition.contextMessages();
+    }
+
+    @Override
+    public List<ModelFunction> functions()
+    throws SQLException {
+        return defaultPartition.functions();
+    }
+
+    @Override
+    public List<Message> semanticSearch(
+            String conversation,
+            String promptTxt,
+            Embedding promptEmb,
+            int tokenBudget
+    ) throws SQLException {
+        return inPartition(conversation, p -> p.semanticSearch(conversation, promptTxt, promptEmb, tokenBudget));
+    }
+
+    @Override
+    public void saveMessage(
+            Message message,
+            Embedding embedding
+    ) throws SQLException {
+        inPartition(message.conversation(), p -> {
+            p.saveMessage(message, embedding);
+            return null;
+        });
+    }
+
+    @Override
+    public void saveMessages(
+            List<Message> messages,
+            List<Embedding> embeddings
+    ) throws SQLException {
+        Map<String, List<Integer>> byConversation = new LinkedHashMap<>();
+        for (int i = 0; i < messages.size(); i++)
+            byConversation.computeIfAbsent(messages.get(i).conversation(), c -> new ArrayList<>()).add(i);
+        for (Map.Entry<String, List<Integer>> conversation : byConversation.entrySet()) {
+            List<Message> batch = new ArrayList<>(conversation.getValue().size());
+            List<Embedding> batchEmbeddings = new ArrayList<>(conversation.getValue().size());
+            for (int i : conversation.getValue()) {
+                batch.add(messages.get(i));
+                batchEmbeddings.add(embeddings.get(i));
+            }
+            inPartition(conversation.getKey(), p -> {
+                p.saveMessages(batch, batchEmbeddings);
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public Optional<Embedding> findEmbedding(String conversation, String contents)
+    throws SQLException {
+        return inPartition(conversation, p -> p.findEmbedding(conversation, contents));
+    }
+
+    /**
+     * The conversations other than the default one that are open.
+     */
+    public int openConversations() {
+        synchronized (opened) {
+            return opened.size();
+        }
+    }
+
+    @Override
+    public void close()
+    throws Exception {
+        List<Partition> open;
+        List<Partition> closed;
+        synchronized (opened) {
+            open = new ArrayList<>(opened.values());
+            open.addAll(draining.values());
+            closed = new ArrayList<>(closing.values());
+            opened.clear();
+            draining.clear();
+        }
+        closed.forEach(p -> p.closed.join());
+        Exception failure = null;
+        for (PromptRepository partition : concat(defaultPartition, open)) {
+            if (partition instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    if (failure == null)
+                        failure = e;
+                    else
+                        failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    private <T> T inPartition(String conversation, PartitionCall<T> call)
+    throws SQLException {
+        if (Message.DEFAULT_CONVERSATION.equals(conversation))
+            return call.call(defaultPartition);
+        Partition partition = acquire(conversation);
+        try {
+            return call.call(opened(partition));
+        } finally {
+            release(partition);
+        }
+    }
+
+    private static PromptRepository opened(Partition partition)
+    throws SQLException {
+        try {
+            return partition.repository.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            throw new SQLException("Cannot open conversation " + partition.conversation, e.getCause());
+        }
+    }
+
+    /**
+     * Opens {@code conversation} if needed, once any earlier repository of
+     * it is closed, evicting the least recently used conversations beyond
+     * {@code maxOpen}, which are closed right away if no call is using
+     * them, or else by the last one.
+     */
+    private Partition acquire(String conversation) {
+        Partition partition;
+        Partition previous = null;
+        boolean open = false;
+        List<Partition> evicted = new ArrayList<>();
+        synchronized (opened) {
+            partition = opened.get(conversation);
+            if (partition == null) {
+                partition = draining.remove(conversation);
+                if (partition != null) {
+                    partition.evicted = false;
+                } else {
+                    partition = new Partition(conversation);
+                    previous = closing.get(conversation);
+                    open = true;
+                }
+                opened.put(conversation, partition);
+                var eldest = opened.values().iterator();
+                while (opened.size() > maxOpen) {
+                    Partition lru = eldest.next();
+                    eldest.remove();
+                    lru.evicted = true;
+                    if (lru.users == 0) {
+                        closing.put(lru.conversation, lru);
+                        evicted.add(lru);
+                    } else {
+                        draining.put(lru.conversation, lru);
+                    }
+                }
+            }
+            partition.users++;
+        }
+        evicted.forEach(this::closeEvicted);
+        if (open)
+            open(partition, previous);
+        return partition;
+    }
+
+    private void open(Partition partition, Partition previous) {
+        try {
+            if (previous != null)
+                previous.closed.join();
+            partition.repository.complete(partitions.open(partition.conversation));
+        } catch (IOException | RuntimeException e) {
+            synchronized (opened) {
+                opened.remove(partition.conversation, partition);
+            }
+            partition.repository.completeExceptionally(e);
+        }
+    }
+
+    private void release(Partition partition) {
+        synchronized (opened) {
+            if (--partition.users > 0 || !partition.evicted)
+                return;
+            draining.remove(partition.conversation);
+            closing.put(partition.conversation, partition);
+        }
+        closeEvicted(partition);
+    }
+
+    private void closeEvicted(Partition partition) {
+        if (partition.ifOpened() instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                LOG.warn("Could not close conversation " + partition.conversation, e);
+            }
+        }
+        synchronized (opened) {
+            closing.remove(partition.conversation, partition);
+        }
+        partition.closed.complete(null);
+    }
+
+    private static List<PromptRepository> concat(PromptRepository first, List<Partition> rest) {
+        List<PromptRepository> all = new ArrayList<>(rest.size() + 1);
+        all.add(first);
+        for (Partition partition : rest) {
+            // Waits for the ones being opened
+            partition.repository.exceptionally(e -> null).join();
+            if (partition.ifOpened() != null)
+                all.add(partition.ifOpened());
+        }
+        return all;
+    }
+
+    /**
+     * Users and eviction guarded by {@link #opened}; the repository is
+     * completed by the first user, once opened.
+     */
+    private static class Partition
+    {
+        private final String conversation;
+        private final CompletableFuture<PromptRepository> repository = new CompletableFuture<>();
+        private final CompletableFuture<Void> closed = new CompletableFuture<>();
+        private int users;
+        private boolean evicted;
+
+        private Partition(String conversation) {
+            this.conversation = conversation;
+        }
+
+        /**
+         * Null while being opened, or if it could not be.
+         */
+        private PromptRepository ifOpened() {
+            return repository.isCompletedExceptionally() ? null : repository.getNow(null);
+        }
+    }
+}
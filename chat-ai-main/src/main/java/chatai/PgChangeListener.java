@@ -0,0 +1,87 @@
+package chatai;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Calls {@code onChange} whenever a notification is sent on a Postgres
+ * channel, from any node. It holds a dedicated connection, outside of the
+ * pool, since a listening connection can never be handed out again.
+ * <p>
+ * Notifications sent while the connection is down are lost, so
+ * {@code onChange} is also called every time it starts listening.
+ *
+ * @see <a href="https://www.postgresql.org/docs/current/sql-notify.html"/>
+ */
+public class PgChangeListener
+        implements AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(PgChangeListener.class);
+
+    private static final int POLL_MILLIS = 500;
+    private static final long RETRY_MILLIS = 1_000;
+
+    private final PgPoolConfig config;
+    private final String channel;
+    private final Runnable onChange;
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    public PgChangeListener(
+            PgPoolConfig config,
+            String channel,
+            Runnable onChange
+    ) {
+        this.config = config;
+        this.channel = channel;
+        this.onChange = onChange;
+        this.thread = Thread.ofVirtual()
+                .name("pg-listen-" + channel)
+                .start(this::run);
+    }
+
+    private void run() {
+        while (!closed) {
+            try (Connection conn = DriverManager.getConnection(
+                    config.url(), config.user(), config.password());
+                 Statement listen = conn.createStatement()
+            ) {
+                listen.execute("listen " + channel);
+                onChange.run();
+                PGConnection pg = conn.unwrap(PGConnection.class);
+                while (!closed) {
+                    PGNotification[] notifications = pg.getNotifications(POLL_MILLIS);
+                    if (notifications != null && notifications.length > 0) {
+                        LOG.debug("Received " + notifications.length + " notifications on " + channel);
+                        onChange.run();
+                    }
+                }
+            } catch (SQLException e) {
+                if (closed)
+                    return;
+                LOG.warn("Not listening on " + channel + ", retrying", e);
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    throws InterruptedException {
+        closed = true;
+        thread.interrupt();
+        thread.join();
+    }
+}
@@ -0,0 +1,80 @@
+package chatai;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Connection pool settings for {@link PgVectorPromptRepository}.
+ * <p>
+ * Besides sizing and timeouts, the pool enables the pgjdbc per-connection
+ * statement cache: since connections are reused, statements prepared more
+ * than {@code prepareThreshold} times are turned into server-side prepared
+ * statements, and are no longer parsed and planned by Postgres at every call.
+ * <p>
+ * Session settings, such as the ones of {@link PgSearchConfig}, are applied
+ * once per connection, when the pool opens it, rather than at every use.
+ * <p>
+ * Given a registry, the pool publishes its active, idle and pending
+ * connections, and the time taken to acquire one, as the
+ * {@code hikaricp.connections*} metrics, tagged with the pool name.
+ *
+ * @see <a href="https://github.com/brettwooldridge/HikariCP#gear-configuration-knobs-baby"/>
+ * @see <a href="https://jdbc.postgresql.org/documentation/server-prepare/"/>
+ */
+public record PgPoolConfig(
+        String url,
+        String user,
+        String password,
+        int maxPoolSize,
+        int minIdle,
+        long connectionTimeoutMillis,
+        long idleTimeoutMillis,
+        long maxLifetimeMillis,
+        int prepareThreshold,
+        int statementCacheQueries
+)
+{
+    public static PgPoolConfig fromEnv() {
+        return new PgPoolConfig(
+                Env.string("PG_URL", "jdbc:postgresql://localhost:5432/chat"),
+                Env.string("PG_USER", "chat"),
+                Env.string("PG_PSW", "chat"),
+                Env.integer("PG_POOL_MAX_SIZE", 10),
+                Env.integer("PG_POOL_MIN_IDLE", 2),
+                Env.longInteger("PG_POOL_CONNECTION_TIMEOUT_MS", 30_000),
+                Env.longInteger("PG_POOL_IDLE_TIMEOUT_MS", 600_000),
+                Env.longInteger("PG_POOL_MAX_LIFETIME_MS", 1_800_000),
+                Env.integer("PG_PREPARE_THRESHOLD", 1),
+                Env.integer("PG_STATEMENT_CACHE_QUERIES", 256));
+    }
+
+    public HikariDataSource createDataSource() {
+        return createDataSource(null, null);
+    }
+
+    /**
+     * @param connectionInitSql run on each new connection, if not null
+     * @param registry where the pool metrics are published, if not null
+     */
+    public HikariDataSource createDataSource(String connectionInitSql, MeterRegistry registry) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("chat-ai");
+        config.setJdbcUrl(url);
+        config.setUsername(user);
+        config.setPassword(password);
+        config.setMaximumPoolSize(maxPoolSize);
+        config.setMinimumIdle(minIdle);
+        config.setConnectionTimeout(connectionTimeoutMillis);
+        config.setIdleTimeout(idleTimeoutMillis);
+        config.setMaxLifetime(maxLifetimeMillis);
+        config.setConnectionInitSql(connectionInitSql);
+        if (registry != null)
+            config.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(registry));
+        config.addDataSourceProperty("prepareThreshold", prepareThreshold);
+        config.addDataSourceProperty("preparedStatementCacheQueries", statementCacheQueries);
+        config.addDataSourceProperty("reWriteBatchedInserts", true);
+        return new HikariDataSource(config);
+    }
+}
@@ -0,0 +1,71 @@
+package chatai;
+
+/**
+ * Semantic search settings for {@link PgVectorPromptRepository}.
+ * <p>
+ * With an HNSW or IVFFlat index on {@code messages.embedding} (see
+ * {@code hnsw_index.sql} and {@code ivfflat_index.sql}), the nearest
+ * {@code candidates} messages are found by the index rather than by a
+ * sequential scan. {@code hnswEfSearch} and {@code ivfflatProbes} trade
+ * latency for recall; zero leaves the server setting. They are set once
+ * for each pooled connection, which is only used by this application. An
+ * HNSW scan returns at most {@code ef_search} rows, so it should not be
+ * lower than {@code candidates}.
+ * <p>
+ * A partition of the messages table holds several conversations, and the
+ * messages of the others are only filtered out after the index scan, which
+ * would leave fewer than {@code candidates}, down to none, once a partition
+ * holds many conversations. {@code hnswIterativeScan} ({@code relaxed_order}
+ * by default, or {@code strict_order}) makes the scan go on until enough
+ * messages are found, visiting at most {@code hnswMaxScanTuples} rows. Both
+ * require pgvector 0.8.0 or later, as opening a connection fails setting
+ * them with an older one; null or blank, and zero, leave them unset.
+ * <p>
+ * Searches taking at least {@code explainSlowerThanMillis} are logged with
+ * their plan; a negative value disables it.
+ *
+ * @see <a href="https://github.com/pgvector/pgvector#indexing"/>
+ */
+public record PgSearchConfig(
+        int candidates,
+        int hnswEfSearch,
+        int ivfflatProbes,
+        String hnswIterativeScan,
+        int hnswMaxScanTuples,
+        long explainSlowerThanMillis
+)
+{
+    public static PgSearchConfig fromEnv() {
+        int candidates = Env.integer("PG_SEARCH_CANDIDATES", 100);
+        return new PgSearchConfig(
+                candidates,
+                Env.integer("PG_HNSW_EF_SEARCH", candidates),
+                Env.integer("PG_IVFFLAT_PROBES", 10),
+                Env.string("PG_HNSW_ITERATIVE_SCAN", "relaxed_order"),
+                Env.integer("PG_HNSW_MAX_SCAN_TUPLES", 20_000),
+                Env.longInteger("PG_SEARCH_EXPLAIN_SLOWER_THAN_MS", -1));
+    }
+
+    /**
+     * The statement applying the index settings to the session of a
+     * connection, or null if none is set.
+     */
+    String settingsSql() {
+        StringBuilder sql = new StringBuilder();
+        if (hnswEfSearch > 0)
+            sql.append("set_config('hnsw.ef_search', '").append(hnswEfSearch).append("', false)");
+        if (ivfflatProbes > 0)
+            sql.append(sql.isEmpty() ? "" : ", ")
+                    .append("set_config('ivfflat.probes', '").append(ivfflatProbes).append("', false)");
+        if (hnswIterativeScan != null && !hnswIterativeScan.isBlank()) {
+            if (!hnswIterativeScan.matches("[a-z_]+"))
+                throw new IllegalArgumentException("Invalid hnsw.iterative_scan: " + hnswIterativeScan);
+            sql.append(sql.isEmpty() ? "" : ", ")
+                    .append("set_config('hnsw.iterative_scan', '").append(hnswIterativeScan).append("', false)");
+        }
+        if (hnswMaxScanTuples > 0)
+            sql.append(sql.isEmpty() ? "" : ", ")
+                    .append("set_config('hnsw.max_scan_tuples', '").append(hnswMaxScanTuples).append("', false)");
+        return sql.isEmpty() ? null : "select " + sql;
+    }
+}
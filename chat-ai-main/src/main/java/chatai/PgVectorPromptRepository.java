@@ -1,36 +1,128 @@
 package chatai;
 
 import com.pgvector.PGvector;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PgVectorPromptRepository
-        implements PromptRepository
+        implements PromptRepository, CompactableRepository, ResponseCache, AutoCloseable
 {
     private static final Logger LOG = LoggerFactory.getLogger(PgVectorPromptRepository.class);
 
-    private static final String PG_URL =
-            System.getenv("PG_URL") != null
-                    ? System.getenv("PG_URL")
-                    : "jdbc:postgresql://localhost:5432/chat";
-    private static final String PG_USER =
-            System.getenv("PG_USER") != null
-                    ? System.getenv("PG_USER")
-                    : "chat";
-    private static final String PG_PSW =
-            System.getenv("PG_PSW") != null
-                    ? System.getenv("PG_PSW")
-                    : "chat";
+    /**
+     * Notified by triggers on contexts and model_functions, see config_triggers.sql.
+     */
+    public static final String CONFIG_CHANNEL = "chat_config";
+
+    private static final String SEARCH_SQL =
+            """
+            select role, contents, message_ts, dist
+            from (
+              select role, contents, message_ts, dist,
+                     sum(token_count) over (
+                       order by dist, id
+                       rows between unbounded preceding and current row
+                     ) as running_tokens
+              from (
+                select id, role, contents, message_ts, token_count,
+                       embedding <=> ? as dist
+                from messages
+                where conversation = ?
+                  and contents <> ?
+                order by embedding <=> ?
+                limit ?
+              ) nearest
+            ) budgeted
+            where running_tokens <= ?
+            order by dist, id
+            """;
+
+    /**
+     * Expired replies are deleted this many at a time, by the first save
+     * after {@link #EXPIRED_RESPONSES_PURGE_INTERVAL}, until none is left.
+     */
+    private static final int EXPIRED_RESPONSES_BATCH = 1_000;
+    private static final long EXPIRED_RESPONSES_PURGE_INTERVAL = Duration.ofMinutes(1).toNanos();
+
+    /**
+     * A cache lookup compares the prompt to this many of the replies of its
+     * conversation and setup, the ones expiring last, through the index on
+     * them, so that it takes the same time however many are kept.
+     */
+    private static final int RESPONSE_CANDIDATES = 1_000;
+
+    /**
+     * The key of the advisory lock held by the instance compacting messages.
+     */
+    static final long COMPACTION_LOCK = 0x63686174_636f6d70L;
+
+    /**
+     * Roll-ups look for a conversation to summarize among this many of the
+     * oldest messages, through the index on their timestamps.
+     */
+    private static final int ROLLUP_CANDIDATES = 1_000;
+
+    private final PgPoolConfig config;
+    private final PgSearchConfig search;
+    private final HikariDataSource dataSource;
+    private final AtomicLong lastPurgeNanos = new AtomicLong(System.nanoTime() - EXPIRED_RESPONSES_PURGE_INTERVAL);
+    private PgChangeListener configListener;
+
+    public PgVectorPromptRepository() {
+        this(PgPoolConfig.fromEnv(), PgSearchConfig.fromEnv());
+    }
+
+    public PgVectorPromptRepository(PgPoolConfig config) {
+        this(config, PgSearchConfig.fromEnv());
+    }
+
+    /**
+     * Publishes the metrics of the connection pool to {@code registry}.
+     */
+    public PgVectorPromptRepository(MeterRegistry registry) {
+        this(PgPoolConfig.fromEnv(), PgSearchConfig.fromEnv(), registry);
+    }
+
+    public PgVectorPromptRepository(PgPoolConfig config, PgSearchConfig search) {
+        this(config, search, null);
+    }
+
+    /**
+     * @param registry if not null, where the metrics of the connection pool
+     *                 are published
+     */
+    public PgVectorPromptRepository(PgPoolConfig config, PgSearchConfig search, MeterRegistry registry) {
+        this.config = config;
+        this.search = search;
+        this.dataSource = config.createDataSource(search.settingsSql(), registry);
+    }
+
+    /**
+     * Calls {@code onChange} whenever contexts or functions are changed,
+     * by any node, until closed.
+     */
+    public synchronized void listenForConfigChanges(Runnable onChange) {
+        if (configListener != null)
+            throw new IllegalStateException("Already listening for changes");
+        configListener = new PgChangeListener(config, CONFIG_CHANNEL, onChange);
+    }
 
     @Override
-    public  void saveContext(Context ctx)
+    public void saveContext(Context ctx)
     throws SQLException {
-        try (Connection conn = DriverManager.getConnection(
-                PG_URL, PG_USER, PG_USER);
+        try (Connection conn = connection();
              PreparedStatement insert = conn.prepareStatement(
                      """
                      insert into contexts (name, value)
@@ -48,8 +140,7 @@ public class PgVectorPromptRepository
     @Override
     public void deleteContext(String name)
     throws SQLException {
-        try (Connection conn = DriverManager.getConnection(
-                PG_URL, PG_USER, PG_USER);
+        try (Connection conn = connection();
              PreparedStatement delete = conn.prepareStatement(
                      """
                      delete from contexts
@@ -64,8 +155,7 @@ public class PgVectorPromptRepository
     @Override
     public void saveFunction(ModelFunction fn)
     throws SQLException {
-        try (Connection conn = DriverManager.getConnection(
-                PG_URL, PG_USER, PG_USER);
+        try (Connection conn = connection();
              PreparedStatement insert = conn.prepareStatement(
                      """
                      insert into model_functions (name, body)
@@ -83,8 +173,7 @@ public class PgVectorPromptRepository
     @Override
     public void deleteFunction(String name)
     throws SQLException {
-        try (Connection conn = DriverManager.getConnection(
-                PG_URL, PG_USER, PG_USER);
+        try (Connection conn = connection();
              PreparedStatement delete = conn.prepareStatement(
                      """
                      delete from model_functions
@@ -96,28 +185,27 @@ public class PgVectorPromptRepository
         }
     }
 
+    /**
+     * Only the nearest {@link PgSearchConfig#candidates()} messages are
+     * considered, so that the vector index can be used; of those, only the
+     * ones within the budget are returned, based on the running sum of their
+     * token counts. Messages are partitioned by conversation, so the search
+     * only scans the partition of {@code conversation}.
+     */
     @Override
     public List<Message> semanticSearch(
+            String conversation,
             String prompt,
-            Embedding embedding)
+            Embedding embedding,
+            int tokenBudget)
     throws SQLException {
-        try (Connection conn = DriverManager.getConnection(
-                PG_URL, PG_USER, PG_PSW);
-             PreparedStatement ps = conn.prepareStatement(
-                     """
-                     select role, contents, message_ts, embedding <=> ? as dist
-                     from messages
-                     where contents <> ?
-                     order by embedding <=> ?
-                     limit 100
-                     """)
-        ) {
-            float[] floats = toFloatArray(embedding.embeddings());
-            ps.setObject(1, new PGvector(floats));
-            ps.setString(2, prompt);
-            ps.setObject(3, new PGvector(floats));
+        long start = System.nanoTime();
+        List<Message> messages;
+        try (Connection conn = connection();
+             PreparedStatement ps = conn.prepareStatement(SEARCH_SQL)) {
+            bindSearch(ps, conversation, prompt, embedding, tokenBudget);
             ResultSet rs = ps.executeQuery();
-            List<Message> messages = new ArrayList<>();
+            messages = new ArrayList<>();
             while (rs.next()) {
                 String role = rs.getString(1);
                 String contents = rs.getString(2);
@@ -127,18 +215,103 @@ public class PgVectorPromptRepository
                 messages.add(new Message(
                         Role.valueOf(role),
                         contents,
-                        timestamp.toInstant()
+                        timestamp.toInstant(),
+                        conversation
                 ));
             }
-            return messages;
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        if (search.explainSlowerThanMillis() >= 0 && millis >= search.explainSlowerThanMillis())
+            LOG.info("Semantic search took " + millis + " ms for " + messages.size() + " messages, "
+                     + "running it again to explain it:\n" + explainSearch(conversation, prompt, embedding, tokenBudget));
+        return messages;
+    }
+
+    /**
+     * Runs the semantic search with {@code explain (analyze, buffers)}, with
+     * the same settings, showing whether the vector index is used and where
+     * the time goes.
+     */
+    public String explainSearch(
+            String conversation,
+            String prompt,
+            Embedding embedding,
+            int tokenBudget)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement ps = conn.prepareStatement("explain (analyze, buffers) " + SEARCH_SQL)) {
+            bindSearch(ps, conversation, prompt, embedding, tokenBudget);
+            ResultSet rs = ps.executeQuery();
+            StringBuilder plan = new StringBuilder();
+            while (rs.next())
+                plan.append(rs.getString(1)).append('\n');
+            return plan.toString();
+        }
+    }
+
+    private void bindSearch(
+            PreparedStatement ps,
+            String conversation,
+            String prompt,
+            Embedding embedding,
+            int tokenBudget)
+    throws SQLException {
+        PGvector vector = new PGvector(embedding.values());
+        ps.setObject(1, vector);
+        ps.setString(2, conversation);
+        ps.setString(3, prompt);
+        ps.setObject(4, vector);
+        ps.setInt(5, search.candidates());
+        ps.setInt(6, tokenBudget);
+    }
+
+    /**
+     * Counts the tokens of up to {@code limit} of the messages saved before
+     * the {@code token_count} column was added, with an id greater than
+     * {@code afterId}, in id order, returning the last id counted, or
+     * {@code afterId} if none was left.
+     *
+     * @see TokenCountBackfill
+     */
+    public long backfillTokenCounts(long afterId, int limit)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement select = conn.prepareStatement(
+                     """
+                     select id, conversation, contents
+                     from messages
+                     where token_count is null and id > ?
+                     order by id
+                     limit ?
+                     """);
+             PreparedStatement update = conn.prepareStatement(
+                     """
+                     update messages
+                     set token_count = ?
+                     where id = ? and conversation = ?
+                     """)
+        ) {
+            select.setLong(1, afterId);
+            select.setInt(2, limit);
+            ResultSet rs = select.executeQuery();
+            long lastId = afterId;
+            while (rs.next()) {
+                lastId = rs.getLong(1);
+                update.setInt(1, Tokens.count(rs.getString(3)));
+                update.setLong(2, lastId);
+                update.setString(3, rs.getString(2));
+                update.addBatch();
+            }
+            if (lastId > afterId)
+                update.executeBatch();
+            return lastId;
         }
     }
 
     @Override
     public List<Context> contextMessages()
     throws SQLException {
-        try (Connection conn = DriverManager.getConnection(
-                PG_URL, PG_USER, PG_USER);
+        try (Connection conn = connection();
              PreparedStatement select = conn.prepareStatement(
                      """
                      select name, value from contexts
@@ -158,8 +331,7 @@ public class PgVectorPromptRepository
     @Override
     public List<ModelFunction> functions()
     throws SQLException {
-        try (Connection conn = DriverManager.getConnection(
-                PG_URL, PG_USER, PG_USER);
+        try (Connection conn = connection();
              PreparedStatement select = conn.prepareStatement(
                      """
                      select name, body from model_functions
@@ -179,29 +351,516 @@ public class PgVectorPromptRepository
     @Override
     public void saveMessage(Message msg, Embedding embedding)
     throws SQLException {
-        try (Connection conn = DriverManager.getConnection(
-                PG_URL, PG_USER, PG_USER);
+        try (Connection conn = connection();
              PreparedStatement insert = conn.prepareStatement(
                      """
-                     insert into messages (role, contents, embedding, message_ts)
-                     values (?, ?, ?, ?)
-                     on conflict (contents) do nothing
+                     insert into messages (role, contents, embedding, message_ts, token_count, conversation)
+                     values (?, ?, ?, ?, ?, ?)
+                     on conflict (contents, conversation) do nothing
                      """)
         ) {
             insert.setString(1, msg.role().name());
             insert.setString(2, msg.content());
-            float[] floats = toFloatArray(embedding.embeddings());
-            insert.setObject(3, new PGvector(floats));
+            insert.setObject(3, new PGvector(embedding.values()));
             insert.setTimestamp(4, new Timestamp(msg.timestamp().toEpochMilli()));
+            insert.setInt(5, Tokens.count(msg.content()));
+            insert.setString(6, msg.conversation());
             insert.execute();
         }
     }
 
-    private float[] toFloatArray(List<Float> floatObjects) {
-        float[] floats = new float[floatObjects.size()];
-        for (int i = 0; i < floatObjects.size(); i++) {
-            floats[i] = floatObjects.get(i);
+    @Override
+    public void saveMessages(
+            List<Message> messages,
+            List<Embedding> embeddings
+    )
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement insert = conn.prepareStatement(
+                     """
+                     insert into messages (role, contents, embedding, message_ts, token_count, conversation)
+                     values (?, ?, ?, ?, ?, ?)
+                     on conflict (contents, conversation) do nothing
+                     """)
+        ) {
+            for (int i = 0; i < messages.size(); i++) {
+                Message msg = messages.get(i);
+                insert.setString(1, msg.role().name());
+                insert.setString(2, msg.content());
+                insert.setObject(3, new PGvector(embeddings.get(i).values()));
+                insert.setTimestamp(4, new Timestamp(msg.timestamp().toEpochMilli()));
+                insert.setInt(5, Tokens.count(msg.content()));
+                insert.setString(6, msg.conversation());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    /**
+     * Only looks in the partition of {@code conversation}, through its
+     * unique index on the contents.
+     */
+    @Override
+    public Optional<Embedding> findEmbedding(String conversation, String contents)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement select = conn.prepareStatement(
+                     """
+                     select embedding from messages
+                     where contents = ?
+                       and conversation = ?
+                     """)
+        ) {
+            select.setString(1, contents);
+            select.setString(2, conversation);
+            ResultSet rs = select.executeQuery();
+            if (!rs.next())
+                return Optional.empty();
+            return Optional.of(new Embedding(new PGvector(rs.getString(1)).toArray()));
+        }
+    }
+
+    @Override
+    public int deleteOlderThan(Instant cutoff, int limit)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement delete = conn.prepareStatement(
+                     """
+                     with expired as (
+                       select id, conversation
+                       from messages
+                       where message_ts < ?
+                       order by message_ts
+                       limit ?
+                     )
+                     delete from messages m
+                     using expired e
+                     where m.id = e.id
+                       and m.conversation = e.conversation
+                     """)
+        ) {
+            delete.setTimestamp(1, new Timestamp(cutoff.toEpochMilli()));
+            delete.setInt(2, limit);
+            return delete.executeUpdate();
+        }
+    }
+
+    /**
+     * Holds a session-level advisory lock while {@code compaction} runs, which
+     * Postgres releases should the connection be lost. The lock is taken on a
+     * connection outside the pool, so that waiting for OpenAI meanwhile does
+     * not keep one from live requests.
+     */
+    @Override
+    public boolean runExclusively(Compaction compaction)
+    throws Exception {
+        try (Connection conn = DriverManager.getConnection(
+                config.url(), config.user(), config.password());
+             PreparedStatement lock = conn.prepareStatement("select pg_try_advisory_lock(?)")
+        ) {
+            lock.setLong(1, COMPACTION_LOCK);
+            ResultSet rs = lock.executeQuery();
+            rs.next();
+            if (!rs.getBoolean(1))
+                return false;
+            try {
+                compaction.run();
+                return true;
+            } finally {
+                try (PreparedStatement unlock = conn.prepareStatement("select pg_advisory_unlock(?)")) {
+                    unlock.setLong(1, COMPACTION_LOCK);
+                    unlock.executeQuery().close();
+                }
+            }
         }
-        return floats;
+    }
+
+    @Override
+    public long cursor(Cursor cursor)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement select = conn.prepareStatement(
+                     """
+                     select last_id from compaction_cursors
+                     where name = ?
+                     """)
+        ) {
+            select.setString(1, cursor.name());
+            ResultSet rs = select.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    @Override
+    public void saveCursor(Cursor cursor, long lastId)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement upsert = conn.prepareStatement(
+                     """
+                     insert into compaction_cursors (name, last_id)
+                     values (?, ?)
+                     on conflict (name) do update set last_id = excluded.last_id
+                     """)
+        ) {
+            upsert.setString(1, cursor.name());
+            upsert.setLong(2, lastId);
+            upsert.execute();
+        }
+    }
+
+    /**
+     * Only the messages saved since {@code afterId} are grouped, through the
+     * primary key; the messages of each of their conversations are counted
+     * through the index on the conversation, in its partition.
+     */
+    @Override
+    public ExcessScan excessMessages(long afterId, int maxMessages)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement select = conn.prepareStatement(
+                     """
+                     with grown as (
+                       select conversation, max(id) as last_id
+                       from messages
+                       where id > ?
+                       group by conversation
+                     )
+                     select g.conversation,
+                            g.last_id,
+                            (select count(*) from messages m where m.conversation = g.conversation) - ?
+                     from grown g
+                     """)
+        ) {
+            select.setLong(1, afterId);
+            select.setInt(2, maxMessages);
+            ResultSet rs = select.executeQuery();
+            long lastId = afterId;
+            Map<String, Integer> excess = new LinkedHashMap<>();
+            while (rs.next()) {
+                lastId = Math.max(lastId, rs.getLong(2));
+                if (rs.getInt(3) > 0)
+                    excess.put(rs.getString(1), rs.getInt(3));
+            }
+            return new ExcessScan(lastId, excess);
+        }
+    }
+
+    @Override
+    public int deleteOldest(String conversation, int limit)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement delete = conn.prepareStatement(
+                     """
+                     with oldest as (
+                       select id
+                       from messages
+                       where conversation = ?
+                       order by message_ts, id
+                       limit ?
+                     )
+                     delete from messages
+                     where conversation = ?
+                       and id in (select id from oldest)
+                     """)
+        ) {
+            delete.setString(1, conversation);
+            delete.setInt(2, limit);
+            delete.setString(3, conversation);
+            return delete.executeUpdate();
+        }
+    }
+
+    /**
+     * The nearest older message of each scanned one is found through the
+     * vector index of its partition, like a search. The messages of other
+     * conversations and roles, and the scanned message itself, are only
+     * filtered out after the index scan, so the scan goes on, in strict
+     * order of distance, until it finds one, unless iterative scans are
+     * disabled.
+     */
+    @Override
+    public DuplicateScan mergeNearDuplicates(long afterId, int limit, double maxDistance)
+    throws SQLException {
+        boolean iterative = search.hnswIterativeScan() != null && !search.hnswIterativeScan().isBlank();
+        try (Connection conn = connection()) {
+            conn.setAutoCommit(false);
+            try {
+                if (iterative) {
+                    try (Statement settings = conn.createStatement()) {
+                        settings.execute("set local hnsw.iterative_scan = strict_order");
+                    }
+                }
+                DuplicateScan scan = mergeNearDuplicates(conn, afterId, limit, maxDistance);
+                conn.commit();
+                return scan;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static DuplicateScan mergeNearDuplicates(Connection conn, long afterId, int limit, double maxDistance)
+    throws SQLException {
+        try (PreparedStatement merge = conn.prepareStatement(
+                     """
+                     with batch as (
+                       select id, conversation, role, embedding
+                       from messages
+                       where id > ?
+                       order by id
+                       limit ?
+                     ), duplicates as (
+                       select b.id, b.conversation
+                       from batch b
+                       cross join lateral (
+                         select m.embedding <=> b.embedding as dist
+                         from messages m
+                         where m.conversation = b.conversation
+                           and m.role = b.role
+                           and m.id < b.id
+                         order by m.embedding <=> b.embedding
+                         limit 1
+                       ) nearest
+                       where nearest.dist <= ?
+                     ), merged as (
+                       delete from messages m
+                       using duplicates d
+                       where m.id = d.id
+                         and m.conversation = d.conversation
+                       returning m.id
+                     )
+                     select (select max(id) from batch),
+                            (select count(*) from batch),
+                            (select count(*) from merged)
+                     """)
+        ) {
+            merge.setLong(1, afterId);
+            merge.setInt(2, limit);
+            merge.setDouble(3, maxDistance);
+            ResultSet rs = merge.executeQuery();
+            rs.next();
+            int scanned = rs.getInt(2);
+            return new DuplicateScan(scanned == 0 ? afterId : rs.getLong(1), scanned, rs.getInt(3));
+        }
+    }
+
+    /**
+     * Rather than grouping all the old messages, takes the conversation of
+     * the oldest of the {@link #ROLLUP_CANDIDATES} oldest ones that has
+     * another, looked up through the index on the conversation.
+     */
+    @Override
+    public List<StoredMessage> oldestTurns(Instant cutoff, int limit)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement select = conn.prepareStatement(
+                     """
+                     with candidates as (
+                       select conversation, message_ts
+                       from messages
+                       where message_ts < ?
+                         and role in ('user', 'assistant')
+                       order by message_ts
+                       limit ?
+                     ), oldest as (
+                       select c.conversation
+                       from candidates c
+                       where (
+                         select count(*)
+                         from (
+                           select 1
+                           from messages m
+                           where m.conversation = c.conversation
+                             and m.message_ts < ?
+                             and m.role in ('user', 'assistant')
+                           limit 2
+                         ) two
+                       ) = 2
+                       order by c.message_ts
+                       limit 1
+                     )
+                     select id, role, contents, message_ts, conversation
+                     from messages
+                     where conversation = (select conversation from oldest)
+                       and message_ts < ?
+                       and role in ('user', 'assistant')
+                     order by message_ts, id
+                     limit ?
+                     """)
+        ) {
+            Timestamp before = new Timestamp(cutoff.toEpochMilli());
+            select.setTimestamp(1, before);
+            select.setInt(2, ROLLUP_CANDIDATES);
+            select.setTimestamp(3, before);
+            select.setTimestamp(4, before);
+            select.setInt(5, limit);
+            ResultSet rs = select.executeQuery();
+            List<StoredMessage> turns = new ArrayList<>();
+            while (rs.next())
+                turns.add(new StoredMessage(
+                        rs.getLong(1),
+                        new Message(
+                                Role.valueOf(rs.getString(2)),
+                                rs.getString(3),
+                                rs.getTimestamp(4).toInstant(),
+                                rs.getString(5))));
+            return turns;
+        }
+    }
+
+    @Override
+    public void replaceWithSummary(
+            List<StoredMessage> turns,
+            Message summary,
+            Embedding embedding
+    )
+    throws SQLException {
+        try (Connection conn = connection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement(
+                         """
+                         insert into messages (role, contents, embedding, message_ts, token_count, conversation)
+                         values (?, ?, ?, ?, ?, ?)
+                         on conflict (contents, conversation) do nothing
+                         """);
+                 PreparedStatement delete = conn.prepareStatement(
+                         """
+                         delete from messages
+                         where conversation = ?
+                           and id = any(?)
+                         """)
+            ) {
+                insert.setString(1, summary.role().name());
+                insert.setString(2, summary.content());
+                insert.setObject(3, new PGvector(embedding.values()));
+                insert.setTimestamp(4, new Timestamp(summary.timestamp().toEpochMilli()));
+                insert.setInt(5, Tokens.count(summary.content()));
+                insert.setString(6, summary.conversation());
+                insert.execute();
+                delete.setString(1, summary.conversation());
+                delete.setArray(2, conn.createArrayOf(
+                        "bigint",
+                        turns.stream().map(StoredMessage::id).toArray(Long[]::new)));
+                delete.execute();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public Optional<String> findResponse(
+            String conversation,
+            String setupKey,
+            Embedding prompt,
+            double minSimilarity)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement select = conn.prepareStatement(
+                     """
+                     select response, 1 - (embedding <=> ?) as similarity
+                     from (
+                       select response, embedding
+                       from response_cache
+                       where conversation = ?
+                         and setup_key = ?
+                         and expires_ts > now()
+                       order by expires_ts desc
+                       limit ?
+                     ) recent
+                     order by embedding <=> ?
+                     limit 1
+                     """)
+        ) {
+            PGvector vector = new PGvector(prompt.values());
+            select.setObject(1, vector);
+            select.setString(2, conversation);
+            select.setString(3, setupKey);
+            select.setInt(4, RESPONSE_CANDIDATES);
+            select.setObject(5, vector);
+            ResultSet rs = select.executeQuery();
+            if (!rs.next())
+                return Optional.empty();
+            double similarity = rs.getDouble(2);
+            LOG.debug(String.format("Similarity %f to the closest cached response", similarity));
+            return similarity >= minSimilarity ? Optional.of(rs.getString(1)) : Optional.empty();
+        }
+    }
+
+    @Override
+    public void saveResponse(
+            String conversation,
+            String setupKey,
+            String prompt,
+            Embedding embedding,
+            String response,
+            Duration ttl)
+    throws SQLException {
+        try (Connection conn = connection();
+             PreparedStatement purge = conn.prepareStatement(
+                     """
+                     delete from response_cache
+                     where id in (
+                       select id
+                       from response_cache
+                       where expires_ts <= now()
+                       limit ?
+                     )
+                     """);
+             PreparedStatement insert = conn.prepareStatement(
+                     """
+                     insert into response_cache (conversation, setup_key, prompt, embedding, response, expires_ts)
+                     values (?, ?, ?, ?, ?, now() + make_interval(secs => ?))
+                     """)
+        ) {
+            if (purgeDue()) {
+                purge.setInt(1, EXPIRED_RESPONSES_BATCH);
+                int purged;
+                do {
+                    purged = purge.executeUpdate();
+                } while (purged == EXPIRED_RESPONSES_BATCH);
+            }
+            insert.setString(1, conversation);
+            insert.setString(2, setupKey);
+            insert.setString(3, prompt);
+            insert.setObject(4, new PGvector(embedding.values()));
+            insert.setString(5, response);
+            insert.setDouble(6, ttl.toMillis() / 1000.0);
+            insert.execute();
+        }
+    }
+
+    /**
+     * Whether expired replies are to be purged by this save, as no other
+     * has purged them for {@link #EXPIRED_RESPONSES_PURGE_INTERVAL}.
+     */
+    private boolean purgeDue() {
+        long last = lastPurgeNanos.get();
+        long now = System.nanoTime();
+        return now - last >= EXPIRED_RESPONSES_PURGE_INTERVAL
+               && lastPurgeNanos.compareAndSet(last, now);
+    }
+
+    @Override
+    public void close()
+    throws InterruptedException {
+        synchronized (this) {
+            if (configListener != null)
+                configListener.close();
+        }
+        dataSource.close();
+    }
+
+    private Connection connection()
+    throws SQLException {
+        return dataSource.getConnection();
     }
 }
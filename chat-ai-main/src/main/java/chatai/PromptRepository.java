@@ -2,6 +2,7 @@ package chatai;
 
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Optional;
 
 public interface PromptRepository
 {
@@ -13,17 +14,39 @@ public interface PromptRepository
 
     void deleteFunction(String name) throws SQLException;
 
+    /**
+     * The messages of {@code conversation} most similar to the prompt, from
+     * the most similar, as long as their total number of tokens does not
+     * exceed {@code tokenBudget}: the first message that does not fit ends
+     * the list.
+     */
     List<Message> semanticSearch(
+            String conversation,
             String promptTxt,
-            Embedding promptEmb
+            Embedding promptEmb,
+            int tokenBudget
     ) throws SQLException;
 
     List<Context> contextMessages() throws SQLException;
 
     List<ModelFunction> functions() throws SQLException;
 
+    default PromptSetup promptSetup() throws SQLException {
+        return PromptSetup.of(contextMessages(), functions());
+    }
+
     void saveMessage(
             Message message,
             Embedding embedding
     ) throws SQLException;
+
+    void saveMessages(
+            List<Message> messages,
+            List<Embedding> embeddings
+    ) throws SQLException;
+
+    /**
+     * The embedding of a message of {@code conversation} with these contents.
+     */
+    Optional<Embedding> findEmbedding(String conversation, String contents) throws SQLException;
 }
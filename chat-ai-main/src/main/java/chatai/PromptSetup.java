@@ -0,0 +1,71 @@
+package chatai;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * What every completion request starts with, besides the similar messages:
+ * the contexts, as system messages, and the functions, along with the
+ * number of tokens they take, and a digest of them, which tells setups
+ * apart in the {@link ResponseCache}.
+ */
+public record PromptSetup(
+        List<OpenAiRequestMessage> contextMessages,
+        List<ModelFunction> functions,
+        int tokens,
+        String key
+)
+{
+    public static PromptSetup of(
+            List<Context> contexts,
+            List<ModelFunction> functions
+    ) {
+        List<OpenAiRequestMessage> messages = contexts.stream()
+                .map(c -> new OpenAiRequestMessage(Role.system, c.value()))
+                .toList();
+        int tokens = messages.stream()
+                .map(OpenAiRequestMessage::content)
+                .mapToInt(Tokens::count)
+                .sum();
+        tokens += functions.stream()
+                .map(ModelFunction::body)
+                .mapToInt(Tokens::count)
+                .sum();
+        return new PromptSetup(messages, List.copyOf(functions), tokens, key(messages, functions));
+    }
+
+    /**
+     * A SHA-256 digest of the contexts and functions, in order.
+     */
+    private static String key(
+            List<OpenAiRequestMessage> contextMessages,
+            List<ModelFunction> functions
+    ) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (OpenAiRequestMessage context : contextMessages)
+                update(digest, context.content());
+            for (ModelFunction function : functions) {
+                update(digest, function.name());
+                update(digest, function.body());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Prefixed by their length, so that moving text from one entry to the
+     * next changes the digest.
+     */
+    private static void update(MessageDigest digest, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) ':');
+        digest.update(bytes);
+    }
+}
@@ -0,0 +1,288 @@
+package chatai;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Brute-force search on quantized codes, re-ranking the best candidates on
+ * full-precision vectors: the scan reads 4 times fewer bytes with
+ * {@link Quantization#int8} codes, and 32 times fewer with
+ * {@link Quantization#binary} ones, while the full-precision vectors are
+ * only read for {@code k * rerankFactor} candidates.
+ * <p>
+ * Only the codes are kept on the heap: the full-precision vectors are
+ * {@link MappedVectors}, in a memory-mapped file when {@link #open opened}
+ * from one, in native memory otherwise.
+ * <p>
+ * The higher the {@code rerankFactor}, the closer the recall to exact search;
+ * binary codes need a higher one than int8 codes.
+ */
+public class QuantizedIndex
+        implements VectorIndex, Closeable
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public enum Quantization
+    {
+        /**
+         * One signed byte per dimension, scaled by the largest absolute
+         * value of the vector.
+         */
+        int8,
+        /**
+         * The sign of each dimension, compared by Hamming distance.
+         */
+        binary
+    }
+
+    private final int dimensions;
+    private final Quantization quantization;
+    private final int rerankFactor;
+    private final int words;
+    private final SimilarityKernel kernel = SimilarityKernel.best();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final MappedVectors vectors;
+    private final Path file;
+
+    private float[] inverseNorms;
+    private byte[] bytes;
+    private float[] scales;
+    private long[] bits;
+    private int size;
+
+    /**
+     * Not persisted.
+     */
+    public QuantizedIndex(
+            int dimensions,
+            Quantization quantization,
+            int rerankFactor
+    ) {
+        this(MappedVectors.inMemory(dimensions), null, quantization, rerankFactor);
+    }
+
+    private QuantizedIndex(
+            MappedVectors vectors,
+            Path file,
+            Quantization quantization,
+            int rerankFactor
+    ) {
+        this.vectors = vectors;
+        this.file = file;
+        this.dimensions = vectors.dimensions();
+        this.quantization = quantization;
+        this.rerankFactor = Math.max(rerankFactor, 1);
+        this.words = (dimensions + Long.SIZE - 1) / Long.SIZE;
+        int capacity = Math.max(INITIAL_CAPACITY, vectors.count());
+        this.inverseNorms = new float[capacity];
+        if (quantization == Quantization.int8) {
+            this.bytes = new byte[capacity * dimensions];
+            this.scales = new float[capacity];
+        } else {
+            this.bits = new long[capacity * words];
+        }
+        for (int id = 0; id < vectors.count(); id++)
+            encode(id, vectors.get(id), vectors.inverseNorm(id));
+        this.size = vectors.count();
+    }
+
+    /**
+     * Keeps the vectors in {@code file}, created with {@code dimensions} if
+     * missing, computing the codes of the vectors written there before.
+     */
+    public static QuantizedIndex open(
+            Path file,
+            int dimensions,
+            Quantization quantization,
+            int rerankFactor
+    ) throws IOException {
+        return new QuantizedIndex(MappedVectors.open(file, dimensions), file, quantization, rerankFactor);
+    }
+
+    @Override
+    public int add(float[] vector) {
+        if (vector.length != dimensions)
+            throw new IllegalArgumentException(
+                    "Expected " + dimensions + " dimensions, got " + vector.length);
+        lock.writeLock().lock();
+        try {
+            int id = size;
+            ensureCapacity(id + 1);
+            encode(id, vector, vectors.set(id, vector));
+            size++;
+            return id;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Neighbor> search(float[] query, int k) {
+        return search(query, k, rerankFactor);
+    }
+
+    /**
+     * Re-ranks {@code k * rerankFactor} candidates, rather than the
+     * configured number.
+     */
+    public List<Neighbor> search(float[] query, int k, int rerankFactor) {
+        lock.readLock().lock();
+        try {
+            if (k <= 0 || size == 0)
+                return List.of();
+            TopK candidates = new TopK(Math.min(k * Math.max(rerankFactor, 1), size));
+            if (quantization == Quantization.int8)
+                scanBytes(query, candidates);
+            else
+                scanBits(query, candidates);
+
+            float inverseQueryNorm = vectors.inverseNorm(query);
+            MemorySegment segment = vectors.segment();
+            TopK top = new TopK(Math.min(k, size));
+            for (Neighbor candidate : candidates.closestFirst())
+                top.offer(candidate.id(), vectors.cosineDistance(segment, candidate.id(), query, inverseQueryNorm));
+            return top.closestFirst();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public float[] vector(int id) {
+        lock.readLock().lock();
+        try {
+            Objects.checkIndex(id, size);
+            return vectors.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bytes scanned per vector, before re-ranking.
+     */
+    public int codeBytes() {
+        return quantization == Quantization.int8
+                ? dimensions + Float.BYTES
+                : words * Long.BYTES;
+    }
+
+    /**
+     * Only writes the full-precision vectors, as the codes are cheap to
+     * compute again: flushes them when {@code file} is the one the index
+     * was opened from, copies them to it otherwise.
+     */
+    @Override
+    public void save(Path file)
+    throws IOException {
+        lock.readLock().lock();
+        try {
+            if (file.equals(this.file)) {
+                vectors.force(size);
+                return;
+            }
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.deleteIfExists(tmp);
+            try (MappedVectors copy = MappedVectors.open(tmp, dimensions)) {
+                for (int id = 0; id < size; id++)
+                    copy.set(id, vectors.get(id));
+                copy.force(size);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close()
+    throws IOException {
+        vectors.close();
+    }
+
+    private void scanBytes(float[] query, TopK candidates) {
+        byte[] code = new byte[dimensions];
+        float queryScale = quantize(query, code, 0);
+        for (int id = 0, offset = 0; id < size; id++, offset += dimensions) {
+            int dot = kernel.dot(code, 0, bytes, offset, dimensions);
+            // Higher dot products first, as the heap keeps the lowest distances
+            candidates.offer(id, -dot * queryScale * scales[id] * inverseNorms[id]);
+        }
+    }
+
+    private void scanBits(float[] query, TopK candidates) {
+        long[] code = new long[words];
+        signs(query, code, 0);
+        for (int id = 0, offset = 0; id < size; id++, offset += words) {
+            int hamming = 0;
+            for (int w = 0; w < words; w++)
+                hamming += Long.bitCount(code[w] ^ bits[offset + w]);
+            candidates.offer(id, hamming);
+        }
+    }
+
+    private void encode(int id, float[] vector, float inverseNorm) {
+        inverseNorms[id] = inverseNorm;
+        if (quantization == Quantization.int8)
+            scales[id] = quantize(vector, bytes, id * dimensions);
+        else
+            signs(vector, bits, id * words);
+    }
+
+    /**
+     * Writes the int8 code of {@code vector} at {@code offset}, returning
+     * the scale to multiply it by.
+     */
+    private static float quantize(float[] vector, byte[] codes, int offset) {
+        float max = 0;
+        for (float v : vector)
+            max = Math.max(max, Math.abs(v));
+        if (max == 0)
+            return 0;
+        float scale = max / Byte.MAX_VALUE;
+        for (int i = 0; i < vector.length; i++)
+            codes[offset + i] = (byte) Math.round(vector[i] / scale);
+        return scale;
+    }
+
+    private static void signs(float[] vector, long[] codes, int offset) {
+        for (int i = 0; i < vector.length; i++)
+            if (vector[i] > 0)
+                codes[offset + i / Long.SIZE] |= 1L << (i % Long.SIZE);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= inverseNorms.length)
+            return;
+        int grown = Math.max(inverseNorms.length * 2, capacity);
+        inverseNorms = Arrays.copyOf(inverseNorms, grown);
+        if (quantization == Quantization.int8) {
+            bytes = Arrays.copyOf(bytes, grown * dimensions);
+            scales = Arrays.copyOf(scales, grown);
+        } else {
+            bits = Arrays.copyOf(bits, grown * words);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package chatai;
+
+import chatai.QuantizedIndex.Quantization;
+import chatai.VectorIndex.Neighbor;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the recall@k of quantized search to exact search, to choose a
+ * quantization and re-rank factor. Run with the path of an
+ * {@link ExactIndex} file (as written with {@code CHAT_REPOSITORY=exact}),
+ * or without arguments on synthetic, clustered vectors:
+ * <pre>
+ * java --enable-preview --add-modules jdk.incubator.vector \
+ *     -cp chat-ai-main/target/chat-ai-main-*-jar-with-dependencies.jar \
+ *     chatai.RecallReport [exact.index] [k] [queries]
+ * </pre>
+ */
+public class RecallReport
+{
+    private static final int[] INT8_RERANK_FACTORS = {1, 2, 4, 8};
+    private static final int[] BINARY_RERANK_FACTORS = {1, 4, 10, 20, 40};
+
+    public interface Search
+    {
+        List<Neighbor> search(float[] query, int k);
+    }
+
+    public static void main(String[] args)
+    throws Exception {
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int queryCount = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        ExactIndex exact = args.length > 0
+                ? ExactIndex.load(Path.of(args[0]))
+                : synthetic(1536, 50_000, new Random(1));
+        List<float[]> queries = queries(exact, queryCount, new Random(2));
+        int dimensions = queries.get(0).length;
+
+        System.out.printf("%d vectors, %d dimensions, %d queries%n", exact.size(), dimensions, queryCount);
+        System.out.printf("%-8s %6s %12s %10s %12s%n", "codes", "rerank", "bytes/vec", "recall@" + k, "ms/query");
+        System.out.printf("%-8s %6s %12d %10.3f %12.3f%n",
+                "float32", "-", dimensions * Float.BYTES, 1.0, millisPerQuery(exact::search, queries, k));
+        for (Quantization quantization : Quantization.values()) {
+            QuantizedIndex index = new QuantizedIndex(dimensions, quantization, 1);
+            for (int id = 0; id < exact.size(); id++)
+                index.add(exact.vector(id));
+            int[] factors = quantization == Quantization.int8 ? INT8_RERANK_FACTORS : BINARY_RERANK_FACTORS;
+            for (int factor : factors) {
+                Search reranking = (query, n) -> index.search(query, n, factor);
+                System.out.printf("%-8s %6d %12d %10.3f %12.3f%n",
+                        quantization,
+                        factor,
+                        index.codeBytes(),
+                        recall(reranking, exact, queries, k),
+                        millisPerQuery(reranking, queries, k));
+            }
+        }
+    }
+
+    /**
+     * The fraction of the {@code k} nearest neighbours of each query, by
+     * exact search, also returned by {@code index}.
+     */
+    public static double recall(
+            Search index,
+            VectorIndex exact,
+            List<float[]> queries,
+            int k
+    ) {
+        long found = 0;
+        long expected = 0;
+        for (float[] query : queries) {
+            Set<Integer> nearest = new HashSet<>();
+            for (Neighbor n : exact.search(query, k))
+                nearest.add(n.id());
+            for (Neighbor n : index.search(query, k))
+                if (nearest.contains(n.id()))
+                    found++;
+            expected += nearest.size();
+        }
+        return expected == 0 ? 1 : (double) found / expected;
+    }
+
+    /**
+     * Vectors around random centroids, normalized like ada-002 embeddings,
+     * as real embeddings are far from uniformly spread.
+     */
+    public static ExactIndex synthetic(int dimensions, int count, Random random) {
+        int clusters = Math.max(count / 100, 1);
+        float[][] centroids = new float[clusters][];
+        for (int c = 0; c < clusters; c++)
+            centroids[c] = gaussian(dimensions, random, 1);
+        ExactIndex index = new ExactIndex(dimensions);
+        for (int i = 0; i < count; i++) {
+            float[] centroid = centroids[random.nextInt(clusters)];
+            float[] vector = gaussian(dimensions, random, .5);
+            for (int d = 0; d < dimensions; d++)
+                vector[d] += centroid[d];
+            index.add(normalize(vector));
+        }
+        return index;
+    }
+
+    /**
+     * Stored vectors with some noise, so that queries are close to, but
+     * not the same as, stored vectors.
+     */
+    public static List<float[]> queries(ExactIndex index, int count, Random random) {
+        List<float[]> queries = new ArrayList<>(count);
+        for (int q = 0; q < count; q++) {
+            float[] query = index.vector(random.nextInt(index.size()));
+            float[] noise = gaussian(query.length, random, .5 / Math.sqrt(query.length));
+            for (int d = 0; d < query.length; d++)
+                query[d] += noise[d];
+            queries.add(normalize(query));
+        }
+        return queries;
+    }
+
+    private static double millisPerQuery(Search index, List<float[]> queries, int k) {
+        long start = System.nanoTime();
+        for (float[] query : queries)
+            index.search(query, k);
+        return (System.nanoTime() - start) / 1e6 / queries.size();
+    }
+
+    private static float[] gaussian(int dimensions, Random random, double deviation) {
+        float[] vector = new float[dimensions];
+        for (int d = 0; d < dimensions; d++)
+            vector[d] = (float) (random.nextGaussian() * deviation);
+        return vector;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double sum = 0;
+        for (float v : vector)
+            sum += v * v;
+        float norm = (float) Math.sqrt(sum);
+        for (int d = 0; d < vector.length; d++)
+            vector[d] /= norm;
+        return vector;
+    }
+}
@@ -0,0 +1,41 @@
+package chatai;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Replies to earlier prompts, so that a prompt close enough to one of them
+ * can be answered without asking for a completion.
+ * <p>
+ * A reply is only reused within its conversation, and with the contexts and
+ * functions it was given, as identified by {@link PromptSetup#key()}: once
+ * they change, the replies given before are no longer found.
+ */
+public interface ResponseCache
+{
+    /**
+     * The reply to the prompt of {@code conversation} and {@code setupKey}
+     * most similar to {@code prompt}, if its cosine similarity is at least
+     * {@code minSimilarity} and it has not expired.
+     */
+    Optional<String> findResponse(
+            String conversation,
+            String setupKey,
+            Embedding prompt,
+            double minSimilarity
+    ) throws SQLException;
+
+    /**
+     * Keeps {@code response} to {@code prompt} for {@code ttl}. The chat
+     * saves replies in the background, after answering.
+     */
+    void saveResponse(
+            String conversation,
+            String setupKey,
+            String prompt,
+            Embedding embedding,
+            String response,
+            Duration ttl
+    ) throws SQLException;
+}
@@ -0,0 +1,20 @@
+package chatai;
+
+import java.time.Duration;
+
+/**
+ * Settings of the {@link ResponseCache} used by {@link Chat}: a reply is
+ * reused for a prompt whose cosine similarity to the one it answered is at
+ * least {@code minSimilarity}, for {@code ttl} after it was given.
+ */
+public record ResponseCacheConfig(
+        double minSimilarity,
+        Duration ttl
+)
+{
+    public static ResponseCacheConfig fromEnv() {
+        return new ResponseCacheConfig(
+                Double.parseDouble(Env.string("CHAT_RESPONSE_CACHE_MIN_SIMILARITY", "0.97")),
+                Duration.ofMinutes(Env.longInteger("CHAT_RESPONSE_CACHE_TTL_MINUTES", 1440)));
+    }
+}
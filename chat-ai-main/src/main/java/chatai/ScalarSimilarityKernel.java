@@ -0,0 +1,32 @@
+package chatai;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+public class ScalarSimilarityKernel
+        implements SimilarityKernel
+{
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float sum = 0;
+        for (int i = 0; i < length; i++)
+            sum += a[aOffset + i] * b[bOffset + i];
+        return sum;
+    }
+
+    @Override
+    public float dot(float[] a, MemorySegment b, long bOffset, int length) {
+        float sum = 0;
+        for (int i = 0; i < length; i++)
+            sum += a[i] * b.get(ValueLayout.JAVA_FLOAT, bOffset + (long) i * Float.BYTES);
+        return sum;
+    }
+
+    @Override
+    public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i++)
+            sum += a[aOffset + i] * b[bOffset + i];
+        return sum;
+    }
+}
@@ -0,0 +1,43 @@
+package chatai;
+
+import org.slf4j.LoggerFactory;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Dot product between two float vectors, each a slice of a larger array, so
+ * that vectors stored contiguously are scanned without copies.
+ */
+public interface SimilarityKernel
+{
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * Dot product with {@code length} floats of {@code b} in native byte
+     * order, starting at byte {@code bOffset}, such as a memory-mapped file.
+     */
+    float dot(float[] a, MemorySegment b, long bOffset, int length);
+
+    /**
+     * Dot product of int8 codes, which cannot overflow for less than 2^17
+     * dimensions.
+     */
+    int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length);
+
+    default float norm(float[] a, int offset, int length) {
+        return (float) Math.sqrt(dot(a, offset, a, offset, length));
+    }
+
+    /**
+     * The SIMD kernel when the {@code jdk.incubator.vector} module is
+     * available (it needs {@code --add-modules jdk.incubator.vector}),
+     * the scalar one otherwise.
+     */
+    static SimilarityKernel best() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+            return new VectorSimilarityKernel();
+        LoggerFactory.getLogger(SimilarityKernel.class).info(
+                "jdk.incubator.vector not available, using scalar similarity kernel");
+        return new ScalarSimilarityKernel();
+    }
+}
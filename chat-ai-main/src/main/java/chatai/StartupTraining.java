@@ -0,0 +1,34 @@
+package chatai;
+
+/**
+ * The training run of the class-data sharing archive built by the
+ * {@code cds} profile: starts the chat as the CLI does, and warms it up,
+ * so that the classes loaded by the first prompt are archived too.
+ * <p>
+ * Run without a database, with {@code CHAT_REPOSITORY=exact}; the classes
+ * used to reach Postgres are loaded anyway, as every start of the CLI
+ * against Postgres needs them.
+ *
+ * @see <a href="https://docs.oracle.com/en/java/javase/21/vm/class-data-sharing.html"/>
+ */
+public class StartupTraining
+{
+    private static final String[] POSTGRES_CLASSES = {
+            "org.postgresql.Driver",
+            "com.zaxxer.hikari.HikariConfig",
+            "com.zaxxer.hikari.HikariDataSource",
+            "com.pgvector.PGvector",
+            "chatai.PgVectorPromptRepository",
+            "chatai.CachingPromptRepository",
+            "chatai.PgChangeListener"
+    };
+
+    public static void main(String[] args)
+    throws Exception {
+        try (Chat chat = Chat.create()) {
+            chat.warmUp(Env.integer("CHAT_WARM_UP_ITERATIONS", 100));
+        }
+        for (String name : POSTGRES_CLASSES)
+            Class.forName(name);
+    }
+}
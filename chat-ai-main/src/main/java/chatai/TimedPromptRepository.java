@@ -0,0 +1,146 @@
+package chatai;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times every call to another repository, tagged by operation, failed
+ * calls included.
+ */
+public class TimedPromptRepository
+        implements PromptRepository, AutoCloseable
+{
+    private final PromptRepository delegate;
+    private final MeterRegistry registry;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public TimedPromptRepository(
+            PromptRepository delegate,
+            MeterRegistry registry
+    ) {
+        this.delegate = delegate;
+        this.registry = registry;
+    }
+
+    @Override
+    public void saveContext(Context context)
+    throws SQLException {
+        time("save_context", () -> {
+            delegate.saveContext(context);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteContext(String name)
+    throws SQLException {
+        time("delete_context", () -> {
+            delegate.deleteContext(name);
+            return null;
+        });
+    }
+
+    @Override
+    public void saveFunction(ModelFunction function)
+    throws SQLException {
+        time("save_function", () -> {
+            delegate.saveFunction(function);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteFunction(String name)
+    throws SQLException {
+        time("delete_function", () -> {
+            delegate.deleteFunction(name);
+            return null;
+        });
+    }
+
+    @Override
+    public List<Message> semanticSearch(
+            String conversation,
+            String promptTxt,
+            Embedding promptEmb,
+            int tokenBudget
+    ) throws SQLException {
+        return time("semantic_search", () -> delegate.semanticSearch(conversation, promptTxt, promptEmb, tokenBudget));
+    }
+
+    @Override
+    public List<Context> contextMessages()
+    throws SQLException {
+        return time("context_messages", delegate::contextMessages);
+    }
+
+    @Override
+    public List<ModelFunction> functions()
+    throws SQLException {
+        return time("functions", delegate::functions);
+    }
+
+    @Override
+    public PromptSetup promptSetup()
+    throws SQLException {
+        return time("prompt_setup", delegate::promptSetup);
+    }
+
+    @Override
+    public void saveMessage(
+            Message message,
+            Embedding embedding
+    ) throws SQLException {
+        time("save_message", () -> {
+            delegate.saveMessage(message, embedding);
+            return null;
+        });
+    }
+
+    @Override
+    public void saveMessages(
+            List<Message> messages,
+            List<Embedding> embeddings
+    ) throws SQLException {
+        time("save_messages", () -> {
+            delegate.saveMessages(messages, embeddings);
+            return null;
+        });
+    }
+
+    @Override
+    public Optional<Embedding> findEmbedding(String conversation, String contents)
+    throws SQLException {
+        return time("find_embedding", () -> delegate.findEmbedding(conversation, contents));
+    }
+
+    @Override
+    public void close()
+    throws Exception {
+        if (delegate instanceof AutoCloseable closeable)
+            closeable.close();
+    }
+
+    private <T> T time(String operation, Callable<T> call)
+    throws SQLException {
+        Timer timer = timers.computeIfAbsent(operation, o -> Timer.builder("chat.repository")
+                .description("Time spent in repository calls")
+                .tag("operation", o)
+                .publishPercentileHistogram()
+                .register(registry));
+        try {
+            return timer.recordCallable(call);
+        } catch (SQLException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException(e);
+        }
+    }
+}
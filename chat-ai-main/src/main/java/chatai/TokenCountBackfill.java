@@ -0,0 +1,28 @@
+package chatai;
+
+/**
+ * One-off migration counting the tokens of the messages saved before the
+ * {@code token_count} column was added, as the tokenizer only runs in Java.
+ * The chat does not do it when starting, so run it once after adding the
+ * column, with the same {@code PG_*} variables as the chat:
+ * <pre>
+ * java -cp chat-ai-main/target/chat-ai-main-*-jar-with-dependencies.jar \
+ *     chatai.TokenCountBackfill [batch size]
+ * </pre>
+ * Messages are counted a batch at a time, each in a short transaction of
+ * its own, so that it can run while the chat is serving.
+ */
+public class TokenCountBackfill
+{
+    public static void main(String[] args)
+    throws Exception {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        try (PgVectorPromptRepository repository = new PgVectorPromptRepository()) {
+            long lastId = 0;
+            long batches = 0;
+            for (long next; (next = repository.backfillTokenCounts(lastId, batchSize)) > lastId; lastId = next)
+                batches++;
+            System.out.printf("Counted tokens in %d batches, up to message %d%n", batches, lastId);
+        }
+    }
+}
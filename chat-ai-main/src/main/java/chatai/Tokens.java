@@ -0,0 +1,19 @@
+package chatai;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.ModelType;
+
+/**
+ * Counts tokens the way the chat model does, so that messages can be
+ * counted once, when saved, rather than on every prompt.
+ */
+public class Tokens
+{
+    private static final Encoding encoding =
+            Encodings.newDefaultEncodingRegistry().getEncodingForModel(ModelType.GPT_3_5_TURBO);
+
+    public static int count(String text) {
+        return encoding.countTokens(text);
+    }
+}
@@ -0,0 +1,86 @@
+package chatai;
+
+import chatai.VectorIndex.Neighbor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Max-heap of the closest vectors seen so far, on primitive arrays: its
+ * root is the farthest, replaced whenever a closer one is found. Ties
+ * are broken by id, so that rankings do not depend on the scan order.
+ */
+public class TopK
+{
+    private final int capacity;
+    private final int[] ids;
+    private final float[] distances;
+    private int size;
+
+    public TopK(int capacity) {
+        this.capacity = capacity;
+        this.ids = new int[capacity];
+        this.distances = new float[capacity];
+    }
+
+    public void offer(int id, float distance) {
+        if (size < capacity) {
+            ids[size] = id;
+            distances[size] = distance;
+            siftUp(size++);
+        } else if (farther(ids[0], distances[0], id, distance)) {
+            ids[0] = id;
+            distances[0] = distance;
+            siftDown(0);
+        }
+    }
+
+    public List<Neighbor> closestFirst() {
+        Neighbor[] sorted = new Neighbor[size];
+        while (size > 0) {
+            sorted[size - 1] = new Neighbor(ids[0], distances[0]);
+            size--;
+            ids[0] = ids[size];
+            distances[0] = distances[size];
+            siftDown(0);
+        }
+        return new ArrayList<>(Arrays.asList(sorted));
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!farther(ids[i], distances[i], ids[parent], distances[parent]))
+                return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int farthest = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++)
+                if (farther(ids[child], distances[child], ids[farthest], distances[farthest]))
+                    farthest = child;
+            if (farthest == i)
+                return;
+            swap(i, farthest);
+            i = farthest;
+        }
+    }
+
+    private static boolean farther(int id, float distance, int otherId, float otherDistance) {
+        return distance > otherDistance || distance == otherDistance && id > otherId;
+    }
+
+    private void swap(int i, int j) {
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        float distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+    }
+}
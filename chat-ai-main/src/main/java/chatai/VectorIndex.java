@@ -0,0 +1,28 @@
+package chatai;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * In-process index of embedding vectors, searched by cosine distance, the
+ * same as the pgvector {@code <=>} operator. Vectors are identified by the
+ * position in which they were added, starting from zero.
+ */
+public interface VectorIndex
+{
+    int add(float[] vector);
+
+    /**
+     * Up to {@code k} vectors, from the closest to {@code query}.
+     */
+    List<Neighbor> search(float[] query, int k);
+
+    float[] vector(int id);
+
+    int size();
+
+    void save(Path file) throws IOException;
+
+    record Neighbor(int id, float distance) {}
+}
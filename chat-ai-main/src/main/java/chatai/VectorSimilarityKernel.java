@@ -0,0 +1,85 @@
+package chatai;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.Vector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Dot product on the widest SIMD registers of the CPU, with fused
+ * multiply-adds; only loaded when {@code jdk.incubator.vector} is available.
+ *
+ * @see <a href="https://openjdk.org/jeps/448"/>
+ */
+public class VectorSimilarityKernel
+        implements SimilarityKernel
+{
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            sum = va.fma(vb, sum);
+        }
+        float dot = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++)
+            dot += a[aOffset + i] * b[bOffset + i];
+        return dot;
+    }
+
+    @Override
+    public float dot(float[] a, MemorySegment b, long bOffset, int length) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+            FloatVector vb = FloatVector.fromMemorySegment(
+                    SPECIES, b, bOffset + (long) i * Float.BYTES, ByteOrder.nativeOrder());
+            sum = va.fma(vb, sum);
+        }
+        float dot = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++)
+            dot += a[i] * b.get(ValueLayout.JAVA_FLOAT, bOffset + (long) i * Float.BYTES);
+        return dot;
+    }
+
+    /**
+     * Loads a full register of bytes at a time, widens each half of it to
+     * shorts, multiplies them, and widens each half of the products to ints
+     * before adding them up, as the products of two bytes overflow a byte,
+     * and their sums overflow a short; every vector keeps the preferred shape.
+     */
+    @Override
+    public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        IntVector sum = IntVector.zero(INTS);
+        int i = 0;
+        for (int bound = BYTES.loopBound(length); i < bound; i += BYTES.length()) {
+            ByteVector va = ByteVector.fromArray(BYTES, a, aOffset + i);
+            ByteVector vb = ByteVector.fromArray(BYTES, b, bOffset + i);
+            for (int half = 0; half < 2; half++) {
+                Vector<Short> products = va.convertShape(VectorOperators.B2S, SHORTS, half)
+                        .mul(vb.convertShape(VectorOperators.B2S, SHORTS, half));
+                sum = sum.add(products.convertShape(VectorOperators.S2I, INTS, 0))
+                        .add(products.convertShape(VectorOperators.S2I, INTS, 1));
+            }
+        }
+        int dot = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++)
+            dot += a[aOffset + i] * b[bOffset + i];
+        return dot;
+    }
+}
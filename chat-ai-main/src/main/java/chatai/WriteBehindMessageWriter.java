@@ -0,0 +1,159 @@
+package chatai;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Embeds and saves messages in the background, so that callers do not wait
+ * for them. Messages are queued in a bounded queue and written in batches,
+ * one {@link OpenAiClient#embedBatch} and one {@link PromptRepository#saveMessages}
+ * per batch.
+ * <p>
+ * When the queue stays full for longer than {@code offerTimeout}, the message
+ * is written synchronously by the caller, which slows producers down to the
+ * pace of the writer instead of dropping messages. Closing the writer flushes
+ * whatever is still queued; messages submitted afterwards are written
+ * synchronously.
+ */
+public class WriteBehindMessageWriter
+        implements AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindMessageWriter.class);
+
+    private final OpenAiClient client;
+    private final PromptRepository repository;
+    private final int batchSize;
+    private final Duration offerTimeout;
+    private final BlockingQueue<PendingMessage> queue;
+    private final Thread writer;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder synchronous = new LongAdder();
+    // Held to queue a message, so that none is queued once closed
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    public WriteBehindMessageWriter(
+            OpenAiClient client,
+            PromptRepository repository,
+            int capacity,
+            int batchSize,
+            Duration offerTimeout
+    ) {
+        this.client = client;
+        this.repository = repository;
+        this.batchSize = batchSize;
+        this.offerTimeout = offerTimeout;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = Thread.ofPlatform()
+                .name("message-write-behind")
+                .daemon()
+                .start(this::write);
+    }
+
+    public void submit(
+            String apiKey,
+            Message message
+    )
+    throws Exception {
+        PendingMessage pending = new PendingMessage(apiKey, message);
+        boolean queued;
+        closing.readLock().lock();
+        try {
+            queued = !closed && queue.offer(pending, offerTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } finally {
+            closing.readLock().unlock();
+        }
+        if (!queued) {
+            synchronous.increment();
+            repository.saveMessage(message, client.embed(apiKey, message.conversation(), message.content()));
+        }
+    }
+
+    public WriteBehindStats stats() {
+        return new WriteBehindStats(
+                queue.size(),
+                written.sum(),
+                failed.sum(),
+                synchronous.sum());
+    }
+
+    @Override
+    public void close()
+    throws InterruptedException {
+        closing.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+        writer.join();
+        // Left by a writer stopped by an interruption
+        List<PendingMessage> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty())
+            flush(rest);
+    }
+
+    private void write() {
+        while (!closed || !queue.isEmpty()) {
+            List<PendingMessage> batch = new ArrayList<>();
+            try {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null)
+                    batch.add(first);
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+            queue.drainTo(batch, batchSize - batch.size());
+            if (!batch.isEmpty())
+                flush(batch);
+        }
+    }
+
+    /**
+     * Embeds the messages of each API key and conversation together, so
+     * that stored embeddings are looked up in their conversation.
+     */
+    private void flush(List<PendingMessage> batch) {
+        Map<BatchKey, List<Message>> byKey = new LinkedHashMap<>();
+        for (PendingMessage pending : batch)
+            byKey.computeIfAbsent(new BatchKey(pending.apiKey(), pending.message().conversation()), k -> new ArrayList<>())
+                    .add(pending.message());
+        byKey.forEach((key, messages) -> {
+            try {
+                List<Embedding> embeddings = client.embedBatch(
+                        key.apiKey(),
+                        key.conversation(),
+                        messages.stream().map(Message::content).toList());
+                repository.saveMessages(messages, embeddings);
+                written.add(messages.size());
+            } catch (Exception e) {
+                failed.add(messages.size());
+                LOG.error("Could not save " + messages.size() + " messages", e);
+            }
+        });
+    }
+
+    private record PendingMessage(
+            String apiKey,
+            Message message
+    ) {}
+
+    private record BatchKey(
+            String apiKey,
+            String conversation
+    ) {}
+}
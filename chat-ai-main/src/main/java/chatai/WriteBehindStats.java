@@ -0,0 +1,10 @@
+package chatai;
+
+public record WriteBehindStats(
+        int queued,
+        long written,
+        long failed,
+        long synchronous
+)
+{
+}
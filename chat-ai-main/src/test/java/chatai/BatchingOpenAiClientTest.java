@@ -0,0 +1,117 @@
+package chatai;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchingOpenAiClientTest
+{
+    private final RecordingClient delegate = new RecordingClient();
+
+    private final BatchingOpenAiClient client = new BatchingOpenAiClient(
+            delegate, 8, Duration.ofMillis(200));
+
+    @AfterEach
+    void close()
+    throws Exception {
+        client.close();
+    }
+
+    @Test
+    void coalesces_concurrent_embeddings()
+    throws Exception {
+        List<Future<Embedding>> results = new ArrayList<>();
+        try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 8; i++) {
+                String value = String.valueOf(i);
+                results.add(callers.submit(() -> client.embed("my-key", value)));
+            }
+        }
+
+        for (int i = 0; i < 8; i++)
+            assertEquals(RecordingClient.embeddingOf(String.valueOf(i)), results.get(i).get());
+        assertTrue(delegate.batches.size() < 8);
+    }
+
+    @Test
+    void splits_batches_by_api_key()
+    throws Exception {
+        try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor()) {
+            callers.submit(() -> client.embed("a-key", "a"));
+            callers.submit(() -> client.embed("another-key", "b"));
+        }
+
+        assertEquals(2, delegate.batches.size());
+        delegate.batches.forEach(batch -> assertEquals(1, batch.size()));
+    }
+
+    @Test
+    void fails_fast_once_closed()
+    throws Exception {
+        client.close();
+
+        assertThrows(IllegalStateException.class, () -> client.embed("my-key", "late"));
+        assertTrue(delegate.closed);
+        assertTrue(delegate.batches.isEmpty());
+    }
+
+    private static class RecordingClient
+            implements OpenAiClient, AutoCloseable
+    {
+        private final List<List<String>> batches = new CopyOnWriteArrayList<>();
+        private volatile boolean closed;
+
+        static Embedding embeddingOf(String value) {
+            return Embedding.of(value.hashCode());
+        }
+
+        @Override
+        public Embedding embed(String apiKey, String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Embedding> embedBatch(String apiKey, List<String> values) {
+            batches.add(values);
+            return values.stream().map(RecordingClient::embeddingOf).toList();
+        }
+
+        @Override
+        public ChatResponse chatCompletion(
+                String apiKey,
+                List<OpenAiRequestMessage> messages,
+                List<ModelFunction> functions,
+                int maxTokens
+        ) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ChatResponse streamChatCompletion(
+                String apiKey,
+                List<OpenAiRequestMessage> messages,
+                List<ModelFunction> functions,
+                int maxTokens,
+                Consumer<ChatDelta> deltas
+        ) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package chatai;
+
+import org.jmock.Expectations;
+import org.jmock.junit5.JUnit5Mockery;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.time.Instant;
+import java.util.List;
+
+import static chatai.Role.user;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CachingOpenAiClientTest
+{
+    private static final String OPEN_API_KEY = "my-key";
+
+    @RegisterExtension
+    JUnit5Mockery context = new JUnit5Mockery();
+
+    private final OpenAiClient delegate = context.mock(OpenAiClient.class);
+
+    private final InMemoryPromptRepository repository =
+            new InMemoryPromptRepository();
+
+    private final CachingOpenAiClient client = new CachingOpenAiClient(
+            delegate, repository, "some-model", 1);
+
+    @Test
+    void embeds_repeated_text_once()
+    throws Exception {
+        Embedding hello = Embedding.of(1f, 0f, 0f);
+        context.checking(new Expectations() {{
+            oneOf(delegate).embed(OPEN_API_KEY, "hello");
+                will(returnValue(hello));
+        }});
+
+        assertEquals(hello, client.embed(OPEN_API_KEY, "hello"));
+        assertEquals(hello, client.embed(OPEN_API_KEY, "hello"));
+
+        assertEquals(new EmbeddingCacheStats(1, 0, 1, 0, 1), client.stats());
+    }
+
+    @Test
+    void reuses_embeddings_of_stored_messages()
+    throws Exception {
+        Embedding stored = Embedding.of(0f, 1f, 0f);
+        repository.saveMessage(
+                new Message(user, "stored", Instant.now()),
+                stored);
+        context.checking(new Expectations() {{
+            never(delegate).embed(OPEN_API_KEY, "stored");
+        }});
+
+        assertEquals(stored, client.embed(OPEN_API_KEY, "stored"));
+
+        assertEquals(new EmbeddingCacheStats(0, 1, 0, 0, 1), client.stats());
+    }
+}
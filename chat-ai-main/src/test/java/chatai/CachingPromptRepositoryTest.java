@@ -0,0 +1,57 @@
+package chatai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CachingPromptRepositoryTest
+{
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private final InMemoryPromptRepository delegate = new InMemoryPromptRepository() {
+        @Override
+        public List<Context> contextMessages() {
+            reads.incrementAndGet();
+            return super.contextMessages();
+        }
+    };
+
+    private final CachingPromptRepository repository = new CachingPromptRepository(delegate);
+
+    @Test
+    void reads_contexts_and_functions_once_until_changed()
+    throws Exception {
+        repository.saveContext(new Context("place", "dungeon"));
+        repository.saveFunction(new ModelFunction("roll", "{}"));
+
+        PromptSetup setup = repository.promptSetup();
+        assertSame(setup, repository.promptSetup());
+        assertEquals(List.of(new Context("place", "dungeon")), repository.contextMessages());
+        assertEquals(1, reads.get());
+        assertEquals(List.of(new OpenAiRequestMessage(Role.system, "dungeon")), setup.contextMessages());
+        assertEquals(List.of(new ModelFunction("roll", "{}")), setup.functions());
+        assertEquals(Tokens.count("dungeon") + Tokens.count("{}"), setup.tokens());
+
+        repository.deleteContext("place");
+
+        assertEquals(List.of(), repository.promptSetup().contextMessages());
+        assertSame(repository.functions(), repository.promptSetup().functions());
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    void reads_again_changes_made_elsewhere_once_invalidated()
+    throws Exception {
+        assertEquals(List.of(), repository.contextMessages());
+
+        delegate.saveContext(new Context("place", "dungeon"));
+        assertEquals(List.of(), repository.contextMessages());
+
+        repository.invalidate();
+        assertEquals(List.of(new Context("place", "dungeon")), repository.contextMessages());
+    }
+}
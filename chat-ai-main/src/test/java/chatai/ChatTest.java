@@ -4,20 +4,29 @@ import com.knuddels.jtokkit.Encodings;
 import com.knuddels.jtokkit.api.Encoding;
 import com.knuddels.jtokkit.api.EncodingRegistry;
 import com.knuddels.jtokkit.api.ModelType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeMatcher;
 import org.jmock.Expectations;
 import org.jmock.junit5.JUnit5Mockery;
+import org.jmock.lib.concurrent.Synchroniser;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.RegisterExtension;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 
+import static chatai.Role.system;
 import static chatai.Role.user;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class ChatTest
 {
@@ -29,7 +38,9 @@ class ChatTest
             registry.getEncodingForModel(ModelType.GPT_3_5_TURBO);
 
     @RegisterExtension
-    JUnit5Mockery context = new JUnit5Mockery();
+    JUnit5Mockery context = new JUnit5Mockery() {{
+        setThreadingPolicy(new Synchroniser());
+    }};
 
     private final OpenAiClient client = context.mock(OpenAiClient.class);
 
@@ -42,8 +53,8 @@ class ChatTest
     void sends_prompt_to_openai()
     throws Exception {
         context.checking(new Expectations() {{
-            allowing(client).embed(with(any(String.class)), with(any(String.class)));
-                will(returnValue(new Embedding(List.of(1f, 2f, 3f))));
+            allowing(client).embed(with(any(String.class)), with(any(String.class)), with(any(String.class)));
+                will(returnValue(Embedding.of(1f, 2f, 3f)));
 
             oneOf(client).chatCompletion(
                     with(OPEN_API_KEY),
@@ -53,7 +64,235 @@ class ChatTest
                 will(returnValue(new ChatResponse.MessageChatResponse("hi")));
         }});
 
-        chat.askCompletion(new ChatRequest(OPEN_API_KEY, "hello"));
+        chat.askCompletion(new ChatRequest(OPEN_API_KEY, "hello", null));
+    }
+
+    @Test
+    void only_searches_and_saves_within_the_conversation()
+    throws Exception {
+        addMessage(
+                "2007-12-03T10:15:30",
+                "similar",
+                1f, 0f, 0f);
+        context.checking(new Expectations() {{
+            allowing(client).embed(with(any(String.class)), with(any(String.class)), with(any(String.class)));
+                will(returnValue(Embedding.of(1f, 0f, 0f)));
+
+            oneOf(client).chatCompletion(
+                    with(OPEN_API_KEY),
+                    with(List.of(new OpenAiRequestMessage(user, "hello"))),
+                    with(List.of()),
+                    with(any(Integer.class)));
+                will(returnValue(new ChatResponse.MessageChatResponse("hi")));
+        }});
+
+        chat.askCompletion(new ChatRequest(OPEN_API_KEY, "hello", "tenant-1"));
+
+        assertEquals(
+                List.of("hello", "hi"),
+                repository.semanticSearch("tenant-1", "", Embedding.of(1f, 0f, 0f), Integer.MAX_VALUE).stream()
+                        .map(Message::content)
+                        .sorted()
+                        .toList());
+    }
+
+    @Test
+    void rejects_invalid_conversations() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new ChatRequest(OPEN_API_KEY, "hello", "../etc"));
+    }
+
+    @Test
+    void times_every_stage_and_counts_packed_messages()
+    throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Chat timed = new Chat(
+                repository, client, TOKEN_LIMIT, Chat.Execution.sequential, null, new ChatMetrics(registry));
+        addMessage(
+                "2007-12-03T10:15:30",
+                "similar",
+                1f, 0f, 0f);
+        context.checking(new Expectations() {{
+            allowing(client).embed(with(any(String.class)), with(any(String.class)), with(any(String.class)));
+                will(returnValue(Embedding.of(1f, 0f, 0f)));
+            oneOf(client).chatCompletion(
+                    with(OPEN_API_KEY), with(any(List.class)), with(List.of()), with(any(Integer.class)));
+                will(returnValue(new ChatResponse.MessageChatResponse("hi")));
+        }});
+
+        timed.askCompletion(new ChatRequest(OPEN_API_KEY, "hello", null));
+
+        // Without a response cache, it is neither looked up nor saved into
+        Set<ChatMetrics.Stage> uncached = Set.of(ChatMetrics.Stage.cache_lookup, ChatMetrics.Stage.cache_save);
+        for (ChatMetrics.Stage stage : ChatMetrics.Stage.values())
+            assertEquals(
+                    uncached.contains(stage) ? 0 : 1,
+                    registry.get("chat.stage").tag("stage", stage.name()).timer().count(),
+                    stage.name());
+        assertEquals(1, registry.get("chat.messages").tag("kind", "retrieved").summary().totalAmount());
+        assertEquals(1, registry.get("chat.messages").tag("kind", "packed").summary().totalAmount());
+    }
+
+    @Test
+    void reuses_the_reply_to_a_similar_prompt()
+    throws Exception {
+        ResponseCache responseCache = context.mock(ResponseCache.class);
+        SimpleMeterRegistry meters = new SimpleMeterRegistry();
+        Chat cached = new Chat(
+                repository, client, TOKEN_LIMIT, Chat.Execution.sequential, null, new ChatMetrics(meters),
+                null, responseCache, new ResponseCacheConfig(0.9, Duration.ofHours(1)));
+        String setupKey = PromptSetup.of(List.of(), List.of()).key();
+        Embedding embedding = Embedding.of(1f, 0f, 0f);
+        context.checking(new Expectations() {{
+            allowing(client).embed(with(any(String.class)), with(any(String.class)), with(any(String.class)));
+                will(returnValue(embedding));
+
+            oneOf(responseCache).findResponse(Message.DEFAULT_CONVERSATION, setupKey, embedding, 0.9);
+                will(returnValue(Optional.empty()));
+            oneOf(client).chatCompletion(
+                    with(OPEN_API_KEY),
+                    with(any(List.class)),
+                    with(List.of()),
+                    with(any(Integer.class)));
+                will(returnValue(new ChatResponse.MessageChatResponse("hi")));
+            oneOf(responseCache).saveResponse(
+                    Message.DEFAULT_CONVERSATION, setupKey, "hello", embedding, "hi", Duration.ofHours(1));
+
+            oneOf(responseCache).findResponse(Message.DEFAULT_CONVERSATION, setupKey, embedding, 0.9);
+                will(returnValue(Optional.of("hi")));
+        }});
+
+        cached.askCompletion(new ChatRequest(OPEN_API_KEY, "hello", null));
+        assertEquals(
+                new ChatResponse.MessageChatResponse("hi"),
+                cached.askCompletion(new ChatRequest(OPEN_API_KEY, "hello!", null)));
+
+        assertEquals(1, meters.get("chat.response.cache").tag("result", "hit").counter().count());
+        assertEquals(1, meters.get("chat.response.cache").tag("result", "miss").counter().count());
+
+        // The reply is saved in the background, which closing waits for
+        cached.close();
+        assertEquals(1, meters.get("chat.stage").tag("stage", "cache_save").timer().count());
+    }
+
+    @Test
+    void scopes_cached_replies_by_contexts_and_functions() {
+        String setupKey = PromptSetup.of(
+                List.of(new Context("role", "be nice")), List.of()).key();
+
+        // Only the values of contexts are sent
+        assertEquals(setupKey, PromptSetup.of(
+                List.of(new Context("persona", "be nice")), List.of()).key());
+        assertNotEquals(setupKey, PromptSetup.of(
+                List.of(new Context("role", "be nice"), new Context("tone", "")), List.of()).key());
+        assertNotEquals(setupKey, PromptSetup.of(
+                List.of(new Context("role", "be nice")), List.of(new ModelFunction("weather", "{}"))).key());
+    }
+
+    @Test
+    void runs_independent_stages_concurrently()
+    throws Exception {
+        Chat concurrent = new Chat(repository, client, TOKEN_LIMIT, Chat.Execution.concurrent, null);
+        repository.saveContext(new Context("role", "be nice"));
+        addMessage(
+                "2007-12-03T10:15:30",
+                "similar",
+                1f, 0f, 0f);
+
+        context.checking(new Expectations() {{
+            allowing(client).embed(with(any(String.class)), with(any(String.class)), with(any(String.class)));
+                will(returnValue(Embedding.of(1f, 0f, 0f)));
+
+            oneOf(client).chatCompletion(
+                    with(OPEN_API_KEY),
+                    with(List.of(
+                            new OpenAiRequestMessage(system, "be nice"),
+                            new OpenAiRequestMessage(user, "similar"),
+                            new OpenAiRequestMessage(user, "hello"))),
+                    with(List.of()),
+                    with(any(Integer.class)));
+                will(returnValue(new ChatResponse.MessageChatResponse("hi")));
+        }});
+
+        concurrent.askCompletion(new ChatRequest(OPEN_API_KEY, "hello", null));
+    }
+
+    @Test
+    void propagates_failures_of_concurrent_stages()
+    throws Exception {
+        Chat concurrent = new Chat(repository, client, TOKEN_LIMIT, Chat.Execution.concurrent, null);
+
+        context.checking(new Expectations() {{
+            allowing(client).embed(with(any(String.class)), with(any(String.class)), with(any(String.class)));
+                will(throwException(new IOException("unreachable")));
+            never(client).chatCompletion(
+                    with(any(String.class)),
+                    with(any(List.class)),
+                    with(any(List.class)),
+                    with(any(Integer.class)));
+        }});
+
+        assertThrows(
+                IOException.class,
+                () -> concurrent.askCompletion(new ChatRequest(OPEN_API_KEY, "hello", null)));
+    }
+
+    @Test
+    void saves_replies_in_the_background()
+    throws Exception {
+        WriteBehindMessageWriter replyWriter = new WriteBehindMessageWriter(
+                client, repository, 10, 10, Duration.ofSeconds(1));
+        Chat writeBehind = new Chat(
+                repository, client, TOKEN_LIMIT, Chat.Execution.sequential, replyWriter);
+
+        context.checking(new Expectations() {{
+            allowing(client).embed(with(any(String.class)), with(any(String.class)), with("hello"));
+                will(returnValue(Embedding.of(1f, 0f, 0f)));
+            oneOf(client).chatCompletion(
+                    with(OPEN_API_KEY),
+                    with(any(List.class)),
+                    with(List.of()),
+                    with(any(Integer.class)));
+                will(returnValue(new ChatResponse.MessageChatResponse("hi")));
+            oneOf(client).embedBatch(OPEN_API_KEY, Message.DEFAULT_CONVERSATION, List.of("hi"));
+                will(returnValue(List.of(Embedding.of(0f, 1f, 0f))));
+        }});
+
+        writeBehind.askCompletion(new ChatRequest(OPEN_API_KEY, "hello", null));
+        writeBehind.close();
+
+        assertEquals(
+                Optional.of(Embedding.of(0f, 1f, 0f)),
+                repository.findEmbedding(Message.DEFAULT_CONVERSATION, "hi"));
+        assertEquals(new WriteBehindStats(0, 1, 0, 0), replyWriter.stats());
+    }
+
+    @Test
+    void saves_replies_submitted_after_closing_synchronously()
+    throws Exception {
+        WriteBehindMessageWriter replyWriter = new WriteBehindMessageWriter(
+                client, repository, 10, 10, Duration.ofSeconds(1));
+        context.checking(new Expectations() {{
+            oneOf(client).embed(OPEN_API_KEY, Message.DEFAULT_CONVERSATION, "late");
+                will(returnValue(Embedding.of(0f, 0f, 1f)));
+        }});
+
+        replyWriter.close();
+        replyWriter.submit(OPEN_API_KEY, new Message(Role.assistant, "late", Instant.now()));
+
+        assertEquals(Optional.of(Embedding.of(0f, 0f, 1f)), repository.findEmbedding(Message.DEFAULT_CONVERSATION, "late"));
+        assertEquals(new WriteBehindStats(0, 0, 0, 1), replyWriter.stats());
+    }
+
+    @Test
+    void warms_up_without_calling_openai_or_saving()
+    throws Exception {
+        repository.saveContext(new Context("place", "dungeon"));
+
+        chat.warmUp(10);
+
+        assertEquals(Optional.empty(), repository.findEmbedding(Message.DEFAULT_CONVERSATION, "Hello, how are you?"));
     }
 
     @Test
@@ -68,9 +307,9 @@ class ChatTest
         assertEquals(4, tokens.countTokens(last_and_middle_similar));
 
         context.checking(new Expectations() {{
-            allowing(client).embed(with(any(String.class)), with("hello"));
-                will(returnValue(new Embedding(List.of(1f, 0f, 0f))));
-            ignoring(client).embed(with(any(String.class)), with("hi"));
+            allowing(client).embed(with(any(String.class)), with(any(String.class)), with("hello"));
+                will(returnValue(Embedding.of(1f, 0f, 0f)));
+            ignoring(client).embed(with(any(String.class)), with(any(String.class)), with("hi"));
 
             oneOf(client).chatCompletion(
                     with(OPEN_API_KEY),
@@ -83,17 +322,17 @@ class ChatTest
         addMessage(
                 "2007-12-03T10:15:30",
                 first_and_most_similar,
-                List.of(1f, 0f, 0f));
+                1f, 0f, 0f);
         addMessage(
                 "2007-12-03T10:15:31",
                 middle_and_least_similar,
-                List.of(0f, 0f, 1f));
+                0f, 0f, 1f);
         addMessage(
                 "2007-12-03T10:15:32",
                 last_and_middle_similar,
-                List.of(0.5f, 0f, 0f));
+                0.5f, 0f, 0f);
 
-        chat.askCompletion(new ChatRequest(OPEN_API_KEY, "hello"));
+        chat.askCompletion(new ChatRequest(OPEN_API_KEY, "hello", null));
     }
 
     private Matcher<List<OpenAiRequestMessage>> listNotExceedingLimit() {
@@ -120,9 +359,9 @@ class ChatTest
         String last_and_most_similar = "last and most similar";
 
         context.checking(new Expectations() {{
-            allowing(client).embed(with(any(String.class)), with("hello"));
-            will(returnValue(new Embedding(List.of(1f, 0f, 0f))));
-            ignoring(client).embed(with(any(String.class)), with("hi"));
+            allowing(client).embed(with(any(String.class)), with(any(String.class)), with("hello"));
+            will(returnValue(Embedding.of(1f, 0f, 0f)));
+            ignoring(client).embed(with(any(String.class)), with(any(String.class)), with("hi"));
 
             oneOf(client).chatCompletion(
                     with(OPEN_API_KEY),
@@ -139,13 +378,13 @@ class ChatTest
         addMessage(
                 "2007-12-03T10:15:30",
                 first_and_middle_similar,
-                List.of(0.5f, 0f, 0f));
+                0.5f, 0f, 0f);
         addMessage(
                 "2007-12-03T10:15:32",
                 last_and_most_similar,
-                List.of(1f, 0f, 0f));
+                1f, 0f, 0f);
 
-        chat.askCompletion(new ChatRequest(OPEN_API_KEY, "hello"));
+        chat.askCompletion(new ChatRequest(OPEN_API_KEY, "hello", null));
     }
 
     private Matcher<List<OpenAiRequestMessage>> partialOrder(
@@ -174,12 +413,12 @@ class ChatTest
     private void addMessage(
             String when,
             String msg,
-            List<Float> embedding
+            float... embedding
     ) {
         repository.addMessageWithEmbedding(
                 new InMemoryPromptRepository.MessageWithEmbedding(
                         new Message(user, msg, Instant.parse(when + ".00Z")),
-                        new Embedding(embedding))
+                        Embedding.of(embedding))
         );
     }
 }
\ No newline at end of file
@@ -0,0 +1,82 @@
+package chatai;
+
+import chatai.VectorIndex.Neighbor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+class ExactIndexTest
+{
+    private static final int DIMENSIONS = 1536;
+
+    private final Random random = new Random(11);
+
+    @Test
+    void uses_simd_kernel_when_available() {
+        assertInstanceOf(VectorSimilarityKernel.class, SimilarityKernel.best());
+    }
+
+    @Test
+    void ranks_the_same_with_simd_and_scalar_kernels() {
+        ExactIndex simd = new ExactIndex(DIMENSIONS, new VectorSimilarityKernel());
+        ExactIndex scalar = new ExactIndex(DIMENSIONS, new ScalarSimilarityKernel());
+        List<float[]> vectors = IntStream.range(0, 2_000).mapToObj(i -> randomVector()).toList();
+        for (float[] vector : vectors) {
+            simd.add(vector);
+            scalar.add(vector);
+        }
+
+        for (int q = 0; q < 20; q++) {
+            float[] query = randomVector();
+            List<Integer> expected = sortAll(vectors, query).subList(0, 50);
+
+            assertEquals(expected, ids(simd.search(query, 50)));
+            assertEquals(expected, ids(scalar.search(query, 50)));
+        }
+    }
+
+    @Test
+    void returns_all_vectors_when_fewer_than_k() {
+        ExactIndex index = new ExactIndex(2);
+        index.add(new float[]{0, 1});
+        index.add(new float[]{1, 0});
+
+        assertEquals(
+                List.of(new Neighbor(1, 0f), new Neighbor(0, 1f)),
+                index.search(new float[]{2, 0}, 10));
+    }
+
+    private float[] randomVector() {
+        float[] vector = new float[DIMENSIONS];
+        for (int i = 0; i < DIMENSIONS; i++)
+            vector[i] = (float) random.nextGaussian();
+        return vector;
+    }
+
+    private static List<Integer> ids(List<Neighbor> neighbors) {
+        return neighbors.stream().map(Neighbor::id).toList();
+    }
+
+    private static List<Integer> sortAll(List<float[]> vectors, float[] query) {
+        return IntStream.range(0, vectors.size())
+                .boxed()
+                .sorted(Comparator.comparingDouble(id -> -cosine(query, vectors.get(id))))
+                .toList();
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += (double) a[i] * b[i];
+            normA += (double) a[i] * a[i];
+            normB += (double) b[i] * b[i];
+        }
+        return dot / Math.sqrt(normA * normB);
+    }
+}
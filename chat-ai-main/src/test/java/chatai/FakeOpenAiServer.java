@@ -0,0 +1,297 @@
+package chatai;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A local stand-in for the OpenAI API, so that {@link Chat} can be
+ * load-tested without spending quota: serves {@code /v1/embeddings} and
+ * {@code /v1/chat/completions}, streamed or not.
+ * <p>
+ * Embeddings are deterministic: each input is mapped to a unit vector seeded
+ * by its text, so equal texts get equal vectors. Completions echo the start
+ * of the last message. Every request waits for a delay drawn from the
+ * {@link Latency} of its endpoint, then fails with one of
+ * {@link Config#errorStatuses()} with probability {@link Config#errorRate()}.
+ */
+public class FakeOpenAiServer
+        implements AutoCloseable
+{
+    /**
+     * Log-normal delays, which have the long right tail of real network and
+     * model latencies; a {@code sigma} of zero gives a fixed delay.
+     */
+    public record Latency(Duration median, double sigma)
+    {
+        private static final double Z_99 = 2.326;
+
+        public static Latency fixed(Duration delay) {
+            return new Latency(delay, 0);
+        }
+
+        public static Latency logNormal(Duration median, Duration p99) {
+            if (median.isZero() || p99.compareTo(median) <= 0)
+                return fixed(median);
+            return new Latency(median, Math.log((double) p99.toNanos() / median.toNanos()) / Z_99);
+        }
+
+        long sampleNanos(Random random) {
+            return (long) (median.toNanos() * Math.exp(sigma * random.nextGaussian()));
+        }
+    }
+
+    public record Config(
+            int dimensions,
+            Latency embeddingLatency,
+            Latency chatLatency,
+            double errorRate,
+            List<Integer> errorStatuses,
+            long seed
+    )
+    {
+        public static Config instant(int dimensions) {
+            return new Config(
+                    dimensions,
+                    Latency.fixed(Duration.ZERO),
+                    Latency.fixed(Duration.ZERO),
+                    0,
+                    List.of(429, 500, 503),
+                    42);
+        }
+    }
+
+    private final Config config;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Random random;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Starts serving on {@code port} of the loopback address, or on an
+     * ephemeral one if {@code port} is zero.
+     */
+    public FakeOpenAiServer(Config config, int port)
+    throws IOException {
+        this.config = config;
+        this.random = new Random(config.seed());
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext("/v1/embeddings", exchange -> serve(exchange, config.embeddingLatency(), this::embeddings));
+        server.createContext("/v1/chat/completions", exchange -> serve(exchange, config.chatLatency(), this::completion));
+        server.start();
+    }
+
+    public String baseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/v1";
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long errors() {
+        return errors.get();
+    }
+
+    /**
+     * A deterministic unit vector for {@code text}.
+     */
+    public static float[] vector(String text, int dimensions) {
+        Random random = new Random(text.hashCode());
+        float[] vector = new float[dimensions];
+        double norm = 0;
+        for (int i = 0; i < dimensions; i++) {
+            vector[i] = (float) random.nextGaussian();
+            norm += vector[i] * vector[i];
+        }
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < dimensions; i++)
+            vector[i] *= scale;
+        return vector;
+    }
+
+    private interface Handler
+    {
+        void handle(JsonObject request, HttpExchange exchange) throws IOException;
+    }
+
+    private void serve(HttpExchange exchange, Latency latency, Handler handler)
+    throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            JsonObject request;
+            try (InputStream is = exchange.getRequestBody();
+                 JsonReader reader = javax.json.Json.createReader(is)) {
+                request = reader.readObject();
+            }
+            long delay;
+            boolean fail;
+            int status;
+            synchronized (random) {
+                delay = latency.sampleNanos(random);
+                fail = random.nextDouble() < config.errorRate();
+                status = config.errorStatuses().get(random.nextInt(config.errorStatuses().size()));
+            }
+            Thread.sleep(Duration.ofNanos(delay));
+            if (fail) {
+                errors.incrementAndGet();
+                if (status == 429)
+                    exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, status, "application/json", error(status));
+            } else {
+                handler.handle(request, exchange);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Written by hand rather than with a builder: vectors are most of the
+     * response, and the stand-in should not be what the load test measures.
+     */
+    private void embeddings(JsonObject request, HttpExchange exchange)
+    throws IOException {
+        JsonArray input = request.getJsonArray("input");
+        StringBuilder json = new StringBuilder("{\"object\":\"list\",\"data\":[");
+        int tokens = 0;
+        for (int i = 0; i < input.size(); i++) {
+            String text = input.getString(i);
+            tokens += approximateTokens(text);
+            if (i > 0)
+                json.append(',');
+            json.append("{\"object\":\"embedding\",\"index\":").append(i).append(",\"embedding\":[");
+            float[] vector = vector(text, config.dimensions());
+            for (int d = 0; d < vector.length; d++) {
+                if (d > 0)
+                    json.append(',');
+                json.append(vector[d]);
+            }
+            json.append("]}");
+        }
+        json.append("],\"model\":\"").append(request.getString("model"))
+                .append("\",\"usage\":{\"prompt_tokens\":").append(tokens)
+                .append(",\"total_tokens\":").append(tokens).append("}}");
+        respond(exchange, 200, "application/json", json.toString());
+    }
+
+    private void completion(JsonObject request, HttpExchange exchange)
+    throws IOException {
+        JsonArray messages = request.getJsonArray("messages");
+        int promptTokens = 0;
+        String last = "";
+        for (JsonObject message : messages.getValuesAs(JsonObject.class)) {
+            if (message.get("content") instanceof JsonString content) {
+                last = content.getString();
+                promptTokens += approximateTokens(last);
+            }
+        }
+        String reply = "You said: " + last.substring(0, Math.min(last.length(), 80));
+        int completionTokens = approximateTokens(reply);
+        if (request.getBoolean("stream", false))
+            stream(exchange, reply);
+        else
+            respond(exchange, 200, "application/json", javax.json.Json.createObjectBuilder()
+                    .add("object", "chat.completion")
+                    .add("model", request.getString("model"))
+                    .add("choices", javax.json.Json.createArrayBuilder()
+                            .add(javax.json.Json.createObjectBuilder()
+                                    .add("index", 0)
+                                    .add("message", javax.json.Json.createObjectBuilder()
+                                            .add("role", "assistant")
+                                            .add("content", reply))
+                                    .add("finish_reason", "stop")))
+                    .add("usage", javax.json.Json.createObjectBuilder()
+                            .add("prompt_tokens", promptTokens)
+                            .add("completion_tokens", completionTokens)
+                            .add("total_tokens", promptTokens + completionTokens))
+                    .build()
+                    .toString());
+    }
+
+    /**
+     * Sends one chunk per word, as OpenAI sends one per token.
+     */
+    private static void stream(HttpExchange exchange, String reply)
+    throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = exchange.getResponseBody()) {
+            for (String word : reply.split("(?<= )")) {
+                String chunk = javax.json.Json.createObjectBuilder()
+                        .add("object", "chat.completion.chunk")
+                        .add("choices", javax.json.Json.createArrayBuilder()
+                                .add(javax.json.Json.createObjectBuilder()
+                                        .add("index", 0)
+                                        .add("delta", javax.json.Json.createObjectBuilder()
+                                                .add("content", word))
+                                        .addNull("finish_reason")))
+                        .build()
+                        .toString();
+                os.write(("data: " + chunk + "\n\n").getBytes(UTF_8));
+                os.flush();
+            }
+            os.write("""
+                    data: {"object":"chat.completion.chunk","choices":[{"index":0,"delta":{},"finish_reason":"stop"}]}
+
+                    data: [DONE]
+
+                    """.getBytes(UTF_8));
+        }
+    }
+
+    private static String error(int status) {
+        String message = status == 429
+                ? "Rate limit reached for requests"
+                : "The server had an error while processing your request";
+        return javax.json.Json.createObjectBuilder()
+                .add("error", javax.json.Json.createObjectBuilder()
+                        .add("message", message)
+                        .add("type", status == 429 ? "requests" : "server_error"))
+                .build()
+                .toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body)
+    throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * About four characters per token, which is close enough for English and
+     * much cheaper than tokenizing on the server.
+     */
+    private static int approximateTokens(String text) {
+        return Math.max(1, text.length() / 4);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.close();
+    }
+}
@@ -0,0 +1,117 @@
+package chatai;
+
+import chatai.VectorIndex.Neighbor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HnswIndexTest
+{
+    private static final int DIMENSIONS = 32;
+    private static final int K = 10;
+
+    private final Random random = new Random(7);
+
+    @Test
+    void finds_nearest_neighbours_of_exact_search() {
+        HnswIndex index = new HnswIndex(DIMENSIONS, 16, 100, 64);
+        List<float[]> vectors = randomVectors(3_000);
+        vectors.forEach(index::add);
+
+        int found = 0;
+        int queries = 100;
+        for (float[] query : randomVectors(queries)) {
+            Set<Integer> expected = new HashSet<>(exactSearch(vectors, query, K));
+            for (Neighbor n : index.search(query, K))
+                if (expected.contains(n.id()))
+                    found++;
+        }
+
+        double recall = (double) found / (queries * K);
+        assertTrue(recall > 0.95, "Recall@" + K + " was " + recall);
+    }
+
+    @Test
+    void finds_vectors_added_concurrently()
+    throws Exception {
+        HnswIndex index = new HnswIndex(DIMENSIONS, 8, 50, 32);
+        List<float[]> vectors = randomVectors(2_000);
+        List<float[]> queries = randomVectors(100);
+        try (ExecutorService executor = Executors.newFixedThreadPool(4)) {
+            List<Future<?>> calls = new ArrayList<>();
+            for (int i = 0; i < vectors.size(); i++) {
+                float[] vector = vectors.get(i);
+                calls.add(executor.submit(() -> index.add(vector)));
+                // Searches run along with the inserts
+                if (i % 20 == 0) {
+                    float[] query = queries.get(i / 20);
+                    calls.add(executor.submit(() -> index.search(query, K)));
+                }
+            }
+            for (Future<?> call : calls)
+                call.get();
+        }
+
+        assertEquals(vectors.size(), index.size());
+        for (float[] vector : vectors.subList(0, 100))
+            assertEquals(0f, index.search(vector, 1).get(0).distance(), 1e-5f);
+    }
+
+    @Test
+    void searches_the_same_once_loaded(@TempDir Path dir)
+    throws Exception {
+        HnswIndex index = new HnswIndex(DIMENSIONS, 8, 50, 32);
+        randomVectors(1_000).forEach(index::add);
+        Path file = dir.resolve("index");
+
+        index.save(file);
+        HnswIndex loaded = HnswIndex.load(file, 32);
+
+        assertEquals(index.size(), loaded.size());
+        for (float[] query : randomVectors(20))
+            assertEquals(index.search(query, K), loaded.search(query, K));
+    }
+
+    private List<float[]> randomVectors(int count) {
+        List<float[]> vectors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] vector = new float[DIMENSIONS];
+            for (int d = 0; d < DIMENSIONS; d++)
+                vector[d] = (float) random.nextGaussian();
+            vectors.add(vector);
+        }
+        return vectors;
+    }
+
+    private static List<Integer> exactSearch(List<float[]> vectors, float[] query, int k) {
+        return IntStream.range(0, vectors.size())
+                .boxed()
+                .sorted(Comparator.comparingDouble(id -> -cosine(query, vectors.get(id))))
+                .limit(k)
+                .toList();
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return dot / Math.sqrt(normA * normB);
+    }
+}
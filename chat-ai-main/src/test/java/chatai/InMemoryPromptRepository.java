@@ -1,14 +1,15 @@
 package chatai;
 
 import java.util.*;
-import java.util.stream.IntStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class InMemoryPromptRepository
         implements PromptRepository
 {
-    private final Map<String, Context> contexts = new HashMap<>();
-    private final Map<String, ModelFunction> functions = new HashMap<>();
-    private final List<MessageWithEmbedding> messages = new ArrayList<>();
+    private final Map<String, Context> contexts = new ConcurrentHashMap<>();
+    private final Map<String, ModelFunction> functions = new ConcurrentHashMap<>();
+    private final List<MessageWithEmbedding> messages = new CopyOnWriteArrayList<>();
 
     @Override
     public void saveContext(Context context) {
@@ -48,12 +49,25 @@ public class InMemoryPromptRepository
         messages.add(new MessageWithEmbedding(message, embedding));
     }
 
+    @Override
+    public void saveMessages(
+            List<Message> messages,
+            List<Embedding> embeddings
+    ) {
+        for (int i = 0; i < messages.size(); i++)
+            saveMessage(messages.get(i), embeddings.get(i));
+    }
+
     @Override
     public List<Message> semanticSearch(
+            String conversation,
             String promptTxt,
-            Embedding promptEmb
+            Embedding promptEmb,
+            int tokenBudget
     ) {
+        int[] tokens = {0};
         return messages.stream()
+                .filter(m -> m.message().conversation().equals(conversation))
                 .filter(m -> !m.message().content().equals(promptTxt))
                 .map(m -> new MessageSimilarity(
                         m.message(),
@@ -62,16 +76,29 @@ public class InMemoryPromptRepository
                 // From the most to the least similar
                 .sorted(Comparator.comparing(MessageSimilarity::similarity).reversed())
                 .map(MessageSimilarity::message)
+                .takeWhile(m -> (tokens[0] += Tokens.count(m.content())) <= tokenBudget)
                 .toList();
     }
 
+    @Override
+    public Optional<Embedding> findEmbedding(String conversation, String contents) {
+        return messages.stream()
+                .filter(m -> m.message().conversation().equals(conversation))
+                .filter(m -> m.message().content().equals(contents))
+                .map(MessageWithEmbedding::embedding)
+                .findFirst();
+    }
+
     private double dotProduct(
             Embedding l,
             Embedding r
     ) {
-        return IntStream.range(0, l.embeddings().size())
-                .mapToDouble(i -> l.embeddings().get(i) * r.embeddings().get(i))
-                .sum();
+        float[] lv = l.values();
+        float[] rv = r.values();
+        double sum = 0;
+        for (int i = 0; i < lv.length; i++)
+            sum += lv[i] * rv[i];
+        return sum;
     }
 
     public void addMessageWithEmbedding(MessageWithEmbedding msg) {
@@ -0,0 +1,75 @@
+package chatai;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static chatai.Role.assistant;
+import static chatai.Role.user;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IndexedPromptRepositoryTest
+{
+    private final Message hello = new Message(user, "hello", Instant.ofEpochMilli(1));
+    private final Message hi = new Message(assistant, "hi", Instant.ofEpochMilli(2));
+    private final Message bye = new Message(user, "bye", Instant.ofEpochMilli(3));
+
+    @Test
+    void finds_most_similar_messages_but_the_prompt()
+    throws Exception {
+        IndexedPromptRepository repository =
+                new IndexedPromptRepository(new HnswIndex(3, 4, 10, 10));
+        repository.saveMessages(
+                List.of(hello, hi, bye),
+                List.of(Embedding.of(1f, 0f, 0f), Embedding.of(.9f, .1f, 0f), Embedding.of(0f, 0f, 1f)));
+
+        assertEquals(
+                List.of(hi, bye),
+                repository.semanticSearch(Message.DEFAULT_CONVERSATION, "hello", Embedding.of(1f, 0f, 0f), Integer.MAX_VALUE));
+    }
+
+    @Test
+    void stops_at_the_first_message_exceeding_the_token_budget()
+    throws Exception {
+        IndexedPromptRepository repository =
+                new IndexedPromptRepository(new HnswIndex(3, 4, 10, 10));
+        Message long_one = new Message(user, "a rather longer message", Instant.ofEpochMilli(4));
+        repository.saveMessages(
+                List.of(hi, long_one, bye),
+                List.of(Embedding.of(1f, 0f, 0f), Embedding.of(.9f, .1f, 0f), Embedding.of(0f, 0f, 1f)));
+
+        assertEquals(
+                List.of(hi),
+                repository.semanticSearch(Message.DEFAULT_CONVERSATION, "hello", Embedding.of(1f, 0f, 0f), 3));
+    }
+
+    @Test
+    void restores_messages_contexts_and_functions(@TempDir Path dir)
+    throws Exception {
+        try (IndexedPromptRepository repository = IndexedPromptRepository.hnsw(dir, 3, 4, 10, 10)) {
+            repository.saveMessage(hello, Embedding.of(1f, 0f, 0f));
+            repository.saveMessage(hi, Embedding.of(0f, 1f, 0f));
+            repository.saveContext(new Context("place", "dungeon"));
+            repository.saveFunction(new ModelFunction("roll", "{}"));
+        }
+        // Not closed, so the last message is only in the log
+        Message elsewhere = new Message(user, "bye", Instant.ofEpochMilli(3), "tenant-1");
+        IndexedPromptRepository crashed = IndexedPromptRepository.hnsw(dir, 3, 4, 10, 10);
+        crashed.saveMessage(elsewhere, Embedding.of(0f, 0f, 1f));
+        crashed.saveMessage(elsewhere, Embedding.of(0f, 0f, 1f));
+
+        IndexedPromptRepository repository = IndexedPromptRepository.hnsw(dir, 3, 4, 10, 10);
+
+        assertEquals(3, repository.size());
+        assertEquals(
+                List.of(elsewhere, hello, hi),
+                repository.semanticSearch(Message.DEFAULT_CONVERSATION, "prompt", Embedding.of(.1f, 0f, 1f), Integer.MAX_VALUE));
+        assertEquals(Optional.of(Embedding.of(0f, 1f, 0f)), repository.findEmbedding(Message.DEFAULT_CONVERSATION, "hi"));
+        assertEquals(List.of(new Context("place", "dungeon")), repository.contextMessages());
+        assertEquals(List.of(new ModelFunction("roll", "{}")), repository.functions());
+    }
+}
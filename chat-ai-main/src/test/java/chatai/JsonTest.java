@@ -2,9 +2,15 @@ package chatai;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @SuppressWarnings("ALL")
@@ -38,21 +44,17 @@ public class JsonTest
                 """,
                 OpenAiEmbeddingsResponse.class
         );
-        assertEquals(
-                new OpenAiEmbeddingsResponse(
-                        List.of(
-                                new OpenAiEmbeddingResponse(
-                                        List.of(
-                                                0.002264385f,
-                                                -0.009305084f,
-                                                0.015766595f,
-                                                -0.0077627f,
-                                                -0.0047667925f
-                                        )
-                                )
-                        )
-                ),
-                emb
+        assertEquals(1, emb.data().size());
+        assertEquals(0, emb.data().get(0).index());
+        assertArrayEquals(
+                new float[] {
+                        0.002264385f,
+                        -0.009305084f,
+                        0.015766595f,
+                        -0.0077627f,
+                        -0.0047667925f
+                },
+                emb.data().get(0).embedding()
         );
     }
 
@@ -121,4 +123,122 @@ public class JsonTest
                 resp
         );
     }
+
+    @Test
+    void embedding_numbers_are_rounded_like_parse_float() {
+        Random random = new Random(42);
+        List<String> numbers = new ArrayList<>(List.of(
+                "0", "-0.0", "1", "-1E+2", "3.4028235e38", "1.17549435E-38", "1.0e-45",
+                "0.1000000000000000055511151231257827", "123456789012345678901234567890",
+                "0.00000000000000000000000000000000000000000000001"));
+        for (int i = 0; i < 10_000; i++) {
+            float value = (float) random.nextGaussian() / 30;
+            numbers.add(Float.toString(value));
+            numbers.add(String.format(Locale.ROOT, "%.10f", value));
+            numbers.add(String.format(Locale.ROOT, "%.17e", random.nextDouble() * 1e-3));
+            numbers.add(Double.toString(random.nextDouble()));
+        }
+        String json = "{\"data\": [{\"index\": 0, \"embedding\": [" + String.join(", ", numbers) + "]}]}";
+
+        float[] parsed = OpenAiCodec.embeddings(new ByteArrayInputStream(json.getBytes(UTF_8)))
+                .getFirst().values();
+
+        for (int i = 0; i < numbers.size(); i++)
+            assertEquals(Float.parseFloat(numbers.get(i)), parsed[i], numbers.get(i));
+    }
+
+    @Test
+    void embeddings_from_stream() {
+        String json =
+                """
+                {
+                  "object": "list",
+                  "data": [
+                    {
+                      "object": "embedding",
+                      "index": 1,
+                      "embedding": [0.5, -0.25]
+                    },
+                    {
+                      "object": "embedding",
+                      "index": 0,
+                      "embedding": [0.002264385, -9.305084E-3]
+                    }
+                  ],
+                  "model": "text-embedding-ada-002-v2",
+                  "usage": {
+                    "prompt_tokens": 8,
+                    "total_tokens": 8
+                  }
+                }
+                """;
+
+        List<Embedding> embeddings = OpenAiCodec.embeddings(
+                new ByteArrayInputStream(json.getBytes(UTF_8)));
+
+        assertEquals(
+                List.of(
+                        Embedding.of(0.002264385f, -0.009305084f),
+                        Embedding.of(0.5f, -0.25f)),
+                embeddings);
+    }
+
+    @Test
+    void completion_from_stream() {
+        //language=JSON
+        String json =
+                """
+                {
+                  "id": "chatcmpl-7fp29q2jX7MEaiu6ic2vjaiEPyrDJ",
+                  "object": "chat.completion",
+                  "created": 1690201977,
+                  "model": "gpt-3.5-turbo-0613",
+                  "choices": [
+                    {
+                      "index": 0,
+                      "message": {
+                        "role": "assistant",
+                        "content": null,
+                        "function_call": {
+                          "name": "update_stats",
+                          "arguments": "{\\"hp\\": -5}"
+                        }
+                      },
+                      "finish_reason": "function_call"
+                    }
+                  ],
+                  "usage": {
+                    "prompt_tokens": 3736,
+                    "completion_tokens": 361,
+                    "total_tokens": 4097
+                  }
+                }
+                """;
+
+        OpenAiResponse resp = OpenAiCodec.completion(
+                new ByteArrayInputStream(json.getBytes(UTF_8)));
+
+        assertEquals(
+                new OpenAiResponse(
+                        List.of(
+                                new OpenAiChoice(
+                                        new OpenAiResponseMessage(
+                                                Role.assistant,
+                                                null,
+                                                new OpenAiFunctionCall(
+                                                        "update_stats",
+                                                        "{\"hp\": -5}")
+                                        ),
+                                        "function_call"
+                                )
+                        ),
+                        new OpenAiUsage(
+                                3736,
+                                361,
+                                4097
+                        )
+                ),
+                resp
+        );
+    }
 }
@@ -0,0 +1,106 @@
+package chatai;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static chatai.Role.assistant;
+import static chatai.Role.user;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MappedPromptRepositoryTest
+{
+    private final Message hello = new Message(user, "hello", Instant.ofEpochMilli(1));
+    private final Message hi = new Message(assistant, "hi", Instant.ofEpochMilli(2));
+    private final Message bye = new Message(user, "bye", Instant.ofEpochMilli(3));
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void finds_most_similar_messages_but_the_prompt()
+    throws Exception {
+        try (MappedPromptRepository repository = new MappedPromptRepository(dir, 3)) {
+            repository.saveMessages(
+                    List.of(hello, hi, bye),
+                    List.of(Embedding.of(1f, 0f, 0f), Embedding.of(.9f, .1f, 0f), Embedding.of(0f, 0f, 1f)));
+
+            assertEquals(
+                    List.of(hi, bye),
+                    repository.semanticSearch(Message.DEFAULT_CONVERSATION, "hello", Embedding.of(1f, 0f, 0f), Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    void reopens_without_rebuilding()
+    throws Exception {
+        int count = 20_000;
+        try (MappedPromptRepository repository = new MappedPromptRepository(dir, 2)) {
+            List<Message> messages = new ArrayList<>();
+            List<Embedding> embeddings = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                messages.add(new Message(user, "message " + i, Instant.ofEpochMilli(i), "tenant-1"));
+                embeddings.add(Embedding.of(i, 1f));
+            }
+            repository.saveMessages(messages, embeddings);
+            repository.saveMessage(messages.get(0), embeddings.get(0));
+            repository.saveContext(new Context("place", "dungeon"));
+        }
+        // A message only partially logged when the process died
+        Files.write(dir.resolve("messages.log"), new byte[]{0, 1, 2}, StandardOpenOption.APPEND);
+
+        try (MappedPromptRepository repository = new MappedPromptRepository(dir, 2)) {
+            assertEquals(count, repository.size());
+            assertEquals(
+                    Optional.of(Embedding.of(count - 1, 1f)),
+                    repository.findEmbedding(Message.DEFAULT_CONVERSATION, "message " + (count - 1)));
+            assertEquals(
+                    new Message(user, "message 0", Instant.ofEpochMilli(0), "tenant-1"),
+                    repository.semanticSearch(Message.DEFAULT_CONVERSATION, "prompt", Embedding.of(0f, 1f), Integer.MAX_VALUE).get(0));
+            assertEquals(List.of(new Context("place", "dungeon")), repository.contextMessages());
+
+            repository.saveMessage(bye, Embedding.of(1f, 0f));
+            assertEquals(count + 1, repository.size());
+        }
+    }
+
+    @Test
+    void upgrades_logs_written_without_token_counts()
+    throws Exception {
+        try (MappedPromptRepository repository = new MappedPromptRepository(dir, 3)) {
+            repository.saveMessages(
+                    List.of(hello, hi, bye),
+                    List.of(Embedding.of(1f, 0f, 0f), Embedding.of(.9f, .1f, 0f), Embedding.of(0f, 0f, 1f)));
+        }
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(legacy)) {
+            for (Message message : List.of(hello, hi, bye)) {
+                byte[] content = message.content().getBytes(UTF_8);
+                out.writeByte(message.role().ordinal());
+                out.writeLong(message.timestamp().toEpochMilli());
+                out.writeInt(content.length);
+                out.write(content);
+            }
+        }
+        Files.write(dir.resolve("messages.log"), legacy.toByteArray());
+
+        for (int reopened = 0; reopened < 2; reopened++) {
+            try (MappedPromptRepository repository = new MappedPromptRepository(dir, 3)) {
+                assertEquals(3, repository.size());
+                assertEquals(
+                        List.of(hi),
+                        repository.semanticSearch(Message.DEFAULT_CONVERSATION, "hello", Embedding.of(1f, 0f, 0f), 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package chatai;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.jmock.Expectations;
+import org.jmock.junit5.JUnit5Mockery;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static chatai.Role.assistant;
+import static chatai.Role.system;
+import static chatai.Role.user;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MessageCompactorTest
+{
+    private static final String OPEN_API_KEY = "my-key";
+    private static final Instant NOW = Instant.now();
+
+    @RegisterExtension
+    JUnit5Mockery context = new JUnit5Mockery();
+
+    private final OpenAiClient client = context.mock(OpenAiClient.class);
+
+    private final InMemoryHistory history = new InMemoryHistory();
+
+    @Test
+    void expires_old_messages_and_trims_large_conversations()
+    throws Exception {
+        history.add(user, "ancient", NOW.minus(Duration.ofDays(30)), "a", 1f, 0f);
+        history.add(user, "old", NOW.minus(Duration.ofDays(20)), "a", 0f, 1f);
+        history.add(user, "first", NOW.minusSeconds(30), "a", 1f, 1f);
+        history.add(user, "second", NOW.minusSeconds(20), "a", 1f, -1f);
+        history.add(user, "third", NOW.minusSeconds(10), "a", -1f, 1f);
+        history.add(user, "other", NOW.minusSeconds(10), "b", 1f, 0f);
+
+        CompactionStats stats = compactor(new CompactionConfig(
+                Duration.ofHours(1), 1, Duration.ZERO,
+                Duration.ofDays(7), 2,
+                0, Duration.ZERO, 20, 10, null)).runOnce();
+
+        assertEquals(List.of("second", "third", "other"), history.contents());
+        assertEquals(new CompactionStats(1, 2, 1, 0, 0, 0, 0, 0), stats);
+    }
+
+    @Test
+    void merges_near_duplicates_saved_since_the_last_run()
+    throws Exception {
+        history.add(user, "hello", NOW, "a", 1f, 0f);
+        history.add(user, "hello!", NOW, "a", 0.99f, 0.01f);
+        history.add(assistant, "hello!!", NOW, "a", 1f, 0f);
+        history.add(user, "hello?", NOW, "b", 1f, 0f);
+        MessageCompactor compactor = compactor(new CompactionConfig(
+                Duration.ofHours(1), 2, Duration.ZERO,
+                Duration.ZERO, 0,
+                0.01, Duration.ZERO, 20, 10, null));
+
+        compactor.runOnce();
+        assertEquals(List.of("hello", "hello!!", "hello?"), history.contents());
+
+        history.add(user, "hi", NOW, "a", 0f, 1f);
+        history.add(user, "hi!", NOW, "a", 0f, 1f);
+        CompactionStats stats = compactor.runOnce();
+
+        assertEquals(List.of("hello", "hello!!", "hello?", "hi"), history.contents());
+        assertEquals(2, stats.merged());
+        assertEquals(6, stats.duplicateCursor());
+    }
+
+    @Test
+    void rolls_old_turns_up_into_summaries()
+    throws Exception {
+        history.add(user, "I am Bob", NOW.minus(Duration.ofDays(3)), "a", 1f, 0f);
+        history.add(assistant, "Hi Bob", NOW.minus(Duration.ofDays(2)), "a", 0f, 1f);
+        history.add(user, "What's my name?", NOW, "a", 1f, 1f);
+        history.add(user, "alone", NOW.minus(Duration.ofDays(3)), "b", 1f, 0f);
+        context.checking(new Expectations() {{
+            oneOf(client).chatCompletion(
+                    with(OPEN_API_KEY),
+                    with(any(List.class)),
+                    with(List.of()),
+                    with(any(Integer.class)));
+                will(returnValue(new ChatResponse.MessageChatResponse("The user is Bob.")));
+            oneOf(client).embed(OPEN_API_KEY, "a", MessageCompactor.SUMMARY_PREFIX + "The user is Bob.");
+                will(returnValue(Embedding.of(1f, 0f)));
+        }});
+
+        CompactionStats stats = compactor(new CompactionConfig(
+                Duration.ofHours(1), 10, Duration.ZERO,
+                Duration.ZERO, 0,
+                0, Duration.ofDays(1), 20, 10, OPEN_API_KEY)).runOnce();
+
+        assertEquals(
+                List.of("What's my name?", "alone", MessageCompactor.SUMMARY_PREFIX + "The user is Bob."),
+                history.contents());
+        Message summary = history.stored.getLast().message();
+        assertEquals(system, summary.role());
+        assertEquals("a", summary.conversation());
+        assertEquals(NOW.minus(Duration.ofDays(2)), summary.timestamp());
+        assertEquals(2, stats.rolledUp());
+        assertEquals(1, stats.summaries());
+    }
+
+    @Test
+    void skips_runs_while_another_instance_compacts()
+    throws Exception {
+        history.add(user, "ancient", NOW.minus(Duration.ofDays(30)), "a", 1f, 0f);
+        history.locked = true;
+
+        CompactionStats stats = compactor(new CompactionConfig(
+                Duration.ofHours(1), 10, Duration.ZERO,
+                Duration.ofDays(7), 0,
+                0, Duration.ZERO, 20, 10, null)).runOnce();
+
+        assertEquals(List.of("ancient"), history.contents());
+        assertEquals(0, stats.runs());
+    }
+
+    @Test
+    void rolling_up_needs_an_api_key() {
+        assertThrows(IllegalArgumentException.class, () -> new CompactionConfig(
+                Duration.ofHours(1), 10, Duration.ZERO,
+                Duration.ZERO, 0,
+                0, Duration.ofDays(1), 20, 10, null));
+    }
+
+    private MessageCompactor compactor(CompactionConfig config) {
+        return new MessageCompactor(history, client, config, new SimpleMeterRegistry());
+    }
+
+    private static class InMemoryHistory
+            implements CompactableRepository
+    {
+        private final List<Stored> stored = new ArrayList<>();
+        private final Map<Cursor, Long> cursors = new EnumMap<>(Cursor.class);
+        private long nextId = 1;
+        private boolean locked;
+
+        void add(Role role, String content, Instant timestamp, String conversation, float... embedding) {
+            stored.add(new Stored(nextId++, new Message(role, content, timestamp, conversation), Embedding.of(embedding)));
+        }
+
+        List<String> contents() {
+            return stored.stream().map(s -> s.message().content()).toList();
+        }
+
+        @Override
+        public boolean runExclusively(Compaction compaction)
+        throws Exception {
+            if (locked)
+                return false;
+            compaction.run();
+            return true;
+        }
+
+        @Override
+        public long cursor(Cursor cursor) {
+            return cursors.getOrDefault(cursor, 0L);
+        }
+
+        @Override
+        public void saveCursor(Cursor cursor, long lastId) {
+            cursors.put(cursor, lastId);
+        }
+
+        @Override
+        public int deleteOlderThan(Instant cutoff, int limit) {
+            return delete(stored.stream()
+                    .filter(s -> s.message().timestamp().isBefore(cutoff))
+                    .sorted(Comparator.comparing(s -> s.message().timestamp()))
+                    .limit(limit)
+                    .toList());
+        }
+
+        @Override
+        public ExcessScan excessMessages(long afterId, int maxMessages) {
+            List<Stored> grown = stored.stream().filter(s -> s.id() > afterId).toList();
+            Map<String, Integer> excess = new LinkedHashMap<>();
+            stored.stream()
+                    .collect(Collectors.groupingBy(s -> s.message().conversation(), LinkedHashMap::new, Collectors.counting()))
+                    .forEach((conversation, count) -> {
+                        if (count > maxMessages
+                            && grown.stream().anyMatch(s -> s.message().conversation().equals(conversation)))
+                            excess.put(conversation, (int) (count - maxMessages));
+                    });
+            return new ExcessScan(grown.stream().mapToLong(Stored::id).max().orElse(afterId), excess);
+        }
+
+        @Override
+        public int deleteOldest(String conversation, int limit) {
+            return delete(stored.stream()
+                    .filter(s -> s.message().conversation().equals(conversation))
+                    .sorted(Comparator.comparing((Stored s) -> s.message().timestamp()).thenComparing(Stored::id))
+                    .limit(limit)
+                    .toList());
+        }
+
+        @Override
+        public DuplicateScan mergeNearDuplicates(long afterId, int limit, double maxDistance) {
+            List<Stored> batch = stored.stream()
+                    .filter(s -> s.id() > afterId)
+                    .limit(limit)
+                    .toList();
+            List<Stored> duplicates = batch.stream()
+                    .filter(b -> stored.stream().anyMatch(s -> s.id() < b.id()
+                            && s.message().conversation().equals(b.message().conversation())
+                            && s.message().role() == b.message().role()
+                            && distance(s.embedding(), b.embedding()) <= maxDistance))
+                    .toList();
+            delete(duplicates);
+            return new DuplicateScan(batch.isEmpty() ? afterId : batch.getLast().id(), batch.size(), duplicates.size());
+        }
+
+        @Override
+        public List<StoredMessage> oldestTurns(Instant cutoff, int limit) {
+            List<Stored> old = stored.stream()
+                    .filter(s -> s.message().role() != system && s.message().timestamp().isBefore(cutoff))
+                    .sorted(Comparator.comparing(s -> s.message().timestamp()))
+                    .toList();
+            return old.stream()
+                    .map(s -> s.message().conversation())
+                    .filter(c -> old.stream().filter(s -> s.message().conversation().equals(c)).count() >= 2)
+                    .findFirst()
+                    .map(c -> old.stream()
+                            .filter(s -> s.message().conversation().equals(c))
+                            .limit(limit)
+                            .map(s -> new StoredMessage(s.id(), s.message()))
+                            .toList())
+                    .orElse(List.of());
+        }
+
+        @Override
+        public void replaceWithSummary(List<StoredMessage> turns, Message summary, Embedding embedding) {
+            stored.removeIf(s -> turns.stream().anyMatch(t -> t.id() == s.id()));
+            stored.add(new Stored(nextId++, summary, embedding));
+        }
+
+        private int delete(List<Stored> deleted) {
+            stored.removeAll(deleted);
+            return deleted.size();
+        }
+
+        private static double distance(Embedding l, Embedding r) {
+            float[] lv = l.values();
+            float[] rv = r.values();
+            double dot = 0, ln = 0, rn = 0;
+            for (int i = 0; i < lv.length; i++) {
+                dot += lv[i] * rv[i];
+                ln += lv[i] * lv[i];
+                rn += rv[i] * rv[i];
+            }
+            return 1 - dot / Math.sqrt(ln * rn);
+        }
+
+        private record Stored(long id, Message message, Embedding embedding) {}
+    }
+}
@@ -0,0 +1,184 @@
+package chatai;
+
+import chatai.ChatDelta.ContentDelta;
+import chatai.FakeOpenAiServer.Config;
+import chatai.FakeOpenAiServer.Latency;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class OpenAiClientsTest
+{
+    private static final List<OpenAiRequestMessage> MESSAGES = List.of(
+            new OpenAiRequestMessage(Role.system, "Be brief"),
+            new OpenAiRequestMessage(Role.user, "Hello there"));
+
+    @Test
+    void both_clients_talk_to_the_configured_base_url()
+    throws Exception {
+        try (FakeOpenAiServer server = new FakeOpenAiServer(Config.instant(3), 0);
+             HttpClientOpenAiClient httpClient = httpClient(server)) {
+            for (OpenAiClient client : List.of(new HttpUrlConnectionOpenAiClient(server.baseUrl() + "/"), httpClient)) {
+                List<Embedding> embeddings = client.embedBatch("key", List.of("foo", "bar"));
+                assertArrayEquals(FakeOpenAiServer.vector("foo", 3), embeddings.get(0).values());
+                assertArrayEquals(FakeOpenAiServer.vector("bar", 3), embeddings.get(1).values());
+
+                assertEquals(
+                        new ChatResponse.MessageChatResponse("You said: Hello there"),
+                        client.chatCompletion("key", MESSAGES, List.of(), 100));
+
+                List<ChatDelta> deltas = new ArrayList<>();
+                assertEquals(
+                        new ChatResponse.MessageChatResponse("You said: Hello there"),
+                        client.streamChatCompletion("key", MESSAGES, List.of(), 100, deltas::add));
+                assertEquals(
+                        List.of(new ContentDelta("You "), new ContentDelta("said: "),
+                                new ContentDelta("Hello "), new ContentDelta("there")),
+                        deltas);
+            }
+            assertEquals(6, server.requests());
+        }
+    }
+
+    @Test
+    void token_usage_is_recorded_on_the_injected_registry()
+    throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ChatMetrics metrics = new ChatMetrics(registry);
+        try (FakeOpenAiServer server = new FakeOpenAiServer(Config.instant(3), 0);
+             HttpClientOpenAiClient httpClient = new HttpClientOpenAiClient(
+                     server.baseUrl(),
+                     Duration.ofSeconds(1),
+                     Duration.ofSeconds(5),
+                     Duration.ofSeconds(5),
+                     metrics)) {
+            for (OpenAiClient client : List.of(new HttpUrlConnectionOpenAiClient(server.baseUrl(), metrics), httpClient)) {
+                client.chatCompletion("key", MESSAGES, List.of(), 100);
+                client.streamChatCompletion("key", MESSAGES, List.of(), 100, delta -> {});
+            }
+        }
+        // Usage is only returned without streaming
+        assertEquals(2 * 4, registry.get("openai.tokens").tag("type", "prompt").counter().count());
+        assertEquals(2 * 5, registry.get("openai.tokens").tag("type", "completion").counter().count());
+        assertNull(registry.find("openai.finish.reasons").counter());
+
+        metrics.completed(null, "length");
+        assertEquals(1, registry.get("openai.finish.reasons").tag("reason", "length").counter().count());
+    }
+
+    @Test
+    void injected_errors_fail_the_request()
+    throws Exception {
+        Config failing = new Config(
+                3,
+                Latency.fixed(Duration.ZERO),
+                Latency.fixed(Duration.ZERO),
+                1,
+                List.of(429),
+                42);
+        try (FakeOpenAiServer server = new FakeOpenAiServer(failing, 0);
+             HttpClientOpenAiClient client = httpClient(server)) {
+            IOException e = assertThrows(IOException.class, () -> client.embed("key", "foo"));
+            assertEquals(
+                    "OpenAI responded with status 429: {\"error\":{\"message\":\"Rate limit reached for requests\",\"type\":\"requests\"}}",
+                    e.getMessage());
+            assertEquals(1, server.errors());
+        }
+    }
+
+    @Test
+    void stalled_streams_time_out()
+    throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/chat/completions", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write("""
+                        data: {"choices":[{"index":0,"delta":{"content":"You "},"finish_reason":null}]}
+
+                        """.getBytes(UTF_8));
+                os.flush();
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+        try (HttpClientOpenAiClient client = new HttpClientOpenAiClient(
+                "http://localhost:" + server.getAddress().getPort() + "/v1",
+                Duration.ofSeconds(1),
+                Duration.ofSeconds(5),
+                Duration.ofMillis(500))) {
+            List<ChatDelta> deltas = new ArrayList<>();
+            assertThrows(
+                    HttpTimeoutException.class,
+                    () -> client.streamChatCompletion("key", MESSAGES, List.of(), 100, deltas::add));
+            assertEquals(List.of(new ContentDelta("You ")), deltas);
+        } finally {
+            done.countDown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void stalled_exchanges_are_cancelled_when_timing_out()
+    throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/chat/completions", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write("{\"choices\":".getBytes(UTF_8));
+                os.flush();
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+        try {
+            HttpClientOpenAiClient client = new HttpClientOpenAiClient(
+                    "http://localhost:" + server.getAddress().getPort() + "/v1",
+                    Duration.ofSeconds(1),
+                    Duration.ofSeconds(5),
+                    Duration.ofMillis(500));
+            assertThrows(
+                    TimeoutException.class,
+                    () -> client.chatCompletion("key", MESSAGES, List.of(), 100));
+            // Closing waits for the exchanges still going on
+            assertTimeoutPreemptively(Duration.ofSeconds(5), client::close);
+        } finally {
+            done.countDown();
+            server.stop(0);
+        }
+    }
+
+    private static HttpClientOpenAiClient httpClient(FakeOpenAiServer server) {
+        return new HttpClientOpenAiClient(
+                server.baseUrl(),
+                Duration.ofSeconds(1),
+                Duration.ofSeconds(5),
+                Duration.ofSeconds(5));
+    }
+}
@@ -0,0 +1,135 @@
+package chatai;
+
+import org.junit.jupiter.api.Test;
+
+import javax.json.JsonObject;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static chatai.Role.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OpenAiRequestWriterTest
+{
+    private static final List<OpenAiRequestMessage> MESSAGES = List.of(
+            new OpenAiRequestMessage(system, "You are a \"dungeon master\"."),
+            new OpenAiRequestMessage(user, "It's C:\\dungeon\n\tlevel 1 \u0001 — café 🐉"),
+            new OpenAiRequestMessage(assistant, "You enter the room."));
+    private static final List<ModelFunction> FUNCTIONS = List.of(
+            new ModelFunction("update_stats", """
+                    {"name": "update_stats", "parameters": {"type": "object"}}"""),
+            new ModelFunction("roll", """
+                    {"name": "roll", "parameters": {"type": "object"}}"""));
+
+    private final OpenAiRequestWriter writer = new OpenAiRequestWriter();
+
+    @Test
+    void writes_same_chat_request_as_jsonb()
+    throws Exception {
+        for (boolean stream : new boolean[]{false, true}) {
+            for (List<ModelFunction> functions : List.of(FUNCTIONS, List.<ModelFunction>of())) {
+                try (JsonBuffer json = writer.chatRequest(MESSAGES, functions, 42, stream)) {
+                    assertEquals(
+                            parse(formatChatRequest(MESSAGES, functions, 42, stream)),
+                            parse(json.toString()));
+                }
+            }
+        }
+    }
+
+    @Test
+    void escapes_and_normalizes_embedding_inputs()
+    throws Exception {
+        try (JsonBuffer json = writer.embeddingsRequest(List.of(
+                "  It's a \"quote\"\n\n with C:\\path, \t tabs,\u0001 and 🐉 \r\n",
+                "plain"))) {
+            JsonObject request = parse(json.toString());
+
+            assertEquals(OpenAiCodec.OPENAI_EMB_MODEL, request.getString("model"));
+            assertEquals(
+                    List.of(
+                            "It's a \"quote\" with C:\\path, tabs,\u0001 and 🐉",
+                            "plain"),
+                    request.getJsonArray("input").getValuesAs(
+                            javax.json.JsonString::getString));
+        }
+    }
+
+    @Test
+    void writes_numbers_like_integer_to_string() {
+        for (int value : new int[]{0, 7, -7, 10, 42, -100, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            try (JsonBuffer json = JsonBuffer.acquire()) {
+                assertEquals(Integer.toString(value), json.number(value).toString());
+            }
+        }
+    }
+
+    @Test
+    void allocates_less_than_string_format() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int requests = 10_000;
+        Runnable buffered = () -> {
+            try (JsonBuffer json = writer.chatRequest(MESSAGES, FUNCTIONS, 42, false)) {
+                json.size();
+            }
+        };
+        Runnable formatted = () -> formatChatRequest(MESSAGES, FUNCTIONS, 42, false)
+                .getBytes(UTF_8);
+        repeat(buffered, requests);
+        repeat(formatted, requests);
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        repeat(buffered, requests);
+        long bufferedBytes = threads.getCurrentThreadAllocatedBytes() - before;
+        before = threads.getCurrentThreadAllocatedBytes();
+        repeat(formatted, requests);
+        long formattedBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertTrue(bufferedBytes * 10 < formattedBytes,
+                "Allocated " + bufferedBytes + " bytes, against " + formattedBytes);
+    }
+
+    private static void repeat(Runnable request, int times) {
+        for (int i = 0; i < times; i++)
+            request.run();
+    }
+
+    private static JsonObject parse(String json) {
+        try (var reader = javax.json.Json.createReader(new StringReader(json))) {
+            return reader.readObject();
+        }
+    }
+
+    /**
+     * How request bodies used to be built, with {@link String#format}.
+     */
+    private static String formatChatRequest(
+            List<OpenAiRequestMessage> messages,
+            List<ModelFunction> functions,
+            int maxTokens,
+            boolean stream
+    ) {
+        return String.format(
+                """
+                {
+                    "model": "%s",
+                    "messages": %s,%s
+                    "temperature": 0.7,
+                    "max_tokens": %d,
+                    "stream": %b
+                }
+                """,
+                OpenAiCodec.OPENAI_CHAT_MODEL,
+                Json.jsonb().toJson(messages),
+                functions.isEmpty() ? "" : "\n\"functions\": [" + functions.stream()
+                        .map(ModelFunction::body)
+                        .collect(Collectors.joining(",\n")) + "],",
+                maxTokens,
+                stream);
+    }
+}
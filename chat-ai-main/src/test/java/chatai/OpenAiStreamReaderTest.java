@@ -0,0 +1,110 @@
+package chatai;
+
+import chatai.ChatDelta.ContentDelta;
+import chatai.ChatDelta.FunctionCallDelta;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OpenAiStreamReaderTest
+{
+    @Test
+    void reads_content_deltas()
+    throws Exception {
+        String events =
+                """
+                data: {"id":"chatcmpl-1","object":"chat.completion.chunk","choices":[{"index":0,"delta":{"role":"assistant","content":""},"finish_reason":null}]}
+
+                data: {"id":"chatcmpl-1","object":"chat.completion.chunk","choices":[{"index":0,"delta":{"content":"Hello"},"finish_reason":null}]}
+
+                data: {"id":"chatcmpl-1","object":"chat.completion.chunk","choices":[{"index":0,"delta":{"content":" there!"},"finish_reason":null}]}
+
+                data: {"id":"chatcmpl-1","object":"chat.completion.chunk","choices":[{"index":0,"delta":{},"finish_reason":"stop"}]}
+
+                data: [DONE]
+
+                """;
+        List<ChatDelta> deltas = new ArrayList<>();
+
+        ChatResponse response = OpenAiStreamReader.read(
+                new ByteArrayInputStream(events.getBytes(UTF_8)),
+                deltas::add);
+
+        assertEquals(
+                List.of(new ContentDelta("Hello"), new ContentDelta(" there!")),
+                deltas);
+        assertEquals(new ChatResponse.MessageChatResponse("Hello there!"), response);
+    }
+
+    @Test
+    void reads_function_call_deltas()
+    throws Exception {
+        String events =
+                """
+                data: {"choices":[{"index":0,"delta":{"role":"assistant","content":null,"function_call":{"name":"update_stats","arguments":""}},"finish_reason":null}]}
+
+                data: {"choices":[{"index":0,"delta":{"function_call":{"arguments":"{\\"hp\\": "}},"finish_reason":null}]}
+
+                data: {"choices":[{"index":0,"delta":{"function_call":{"arguments":"-5}"}},"finish_reason":null}]}
+
+                data: {"choices":[{"index":0,"delta":{},"finish_reason":"function_call"}]}
+
+                data: [DONE]
+                """;
+        List<ChatDelta> deltas = new ArrayList<>();
+
+        ChatResponse response = OpenAiStreamReader.read(
+                new ByteArrayInputStream(events.getBytes(UTF_8)),
+                deltas::add);
+
+        assertEquals(
+                List.of(
+                        new FunctionCallDelta("update_stats", ""),
+                        new FunctionCallDelta(null, "{\"hp\": "),
+                        new FunctionCallDelta(null, "-5}")),
+                deltas);
+        assertEquals(
+                new ChatResponse.FunctionCallChatResponse("update_stats", "{\"hp\": -5}"),
+                response);
+    }
+
+    @Test
+    void fails_on_a_stream_cut_off_before_it_is_done() {
+        String events =
+                """
+                data: {"choices":[{"index":0,"delta":{"role":"assistant","content":""},"finish_reason":null}]}
+
+                data: {"choices":[{"index":0,"delta":{"content":"Hel"},"finish_reason":null}]}
+
+                """;
+        List<ChatDelta> deltas = new ArrayList<>();
+
+        assertThrows(IOException.class, () -> OpenAiStreamReader.read(
+                new ByteArrayInputStream(events.getBytes(UTF_8)),
+                deltas::add));
+        assertEquals(List.of(new ContentDelta("Hel")), deltas);
+    }
+
+    @Test
+    void fails_on_an_error_event() {
+        String events =
+                """
+                data: {"choices":[{"index":0,"delta":{"content":"Hel"},"finish_reason":null}]}
+
+                data: {"error":{"message":"The server had an error","type":"server_error","code":null}}
+
+                """;
+
+        IOException e = assertThrows(IOException.class, () -> OpenAiStreamReader.read(
+                new ByteArrayInputStream(events.getBytes(UTF_8)),
+                delta -> {}));
+        assertEquals("Streamed completion failed: The server had an error", e.getMessage());
+    }
+}
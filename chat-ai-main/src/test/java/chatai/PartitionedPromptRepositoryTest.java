@@ -0,0 +1,133 @@
+package chatai;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+
+import static chatai.Role.user;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class PartitionedPromptRepositoryTest
+{
+    @Test
+    void keeps_each_conversation_in_its_own_repository(@TempDir Path directory)
+    throws Exception {
+        Message hello = new Message(user, "hello", Instant.ofEpochMilli(1));
+        Message hi = new Message(user, "hi", Instant.ofEpochMilli(2), "tenant-1");
+        Message bye = new Message(user, "bye", Instant.ofEpochMilli(3), "tenant-2");
+
+        try (PartitionedPromptRepository repository = open(directory)) {
+            repository.saveMessages(
+                    List.of(hello, hi, bye),
+                    List.of(Embedding.of(1f, 0f), Embedding.of(1f, 0f), Embedding.of(0f, 1f)));
+            repository.saveContext(new Context("role", "be nice"));
+        }
+
+        try (PartitionedPromptRepository repository = open(directory)) {
+            assertEquals(
+                    List.of("hi"),
+                    repository.semanticSearch("tenant-1", "prompt", Embedding.of(1f, 0f), Integer.MAX_VALUE).stream()
+                            .map(Message::content)
+                            .toList());
+            assertEquals(
+                    List.of("hello"),
+                    repository.semanticSearch(Message.DEFAULT_CONVERSATION, "prompt", Embedding.of(1f, 0f), Integer.MAX_VALUE).stream()
+                            .map(Message::content)
+                            .toList());
+            assertEquals(List.of(new Context("role", "be nice")), repository.contextMessages());
+            // Only the conversation given is looked into
+            assertEquals(Optional.empty(), repository.findEmbedding("tenant-1", "bye"));
+            assertEquals(Optional.of(Embedding.of(0f, 1f)), repository.findEmbedding("tenant-2", "bye"));
+        }
+    }
+
+    @Test
+    void closes_the_least_recently_used_conversations(@TempDir Path directory)
+    throws Exception {
+        List<String> opens = new ArrayList<>();
+        try (PartitionedPromptRepository repository = open(directory, 1, opens)) {
+            repository.saveMessage(
+                    new Message(user, "hi", Instant.ofEpochMilli(1), "tenant-1"),
+                    Embedding.of(1f, 0f));
+            repository.saveMessage(
+                    new Message(user, "bye", Instant.ofEpochMilli(2), "tenant-2"),
+                    Embedding.of(0f, 1f));
+            assertEquals(1, repository.openConversations());
+
+            assertEquals(Optional.of(Embedding.of(1f, 0f)), repository.findEmbedding("tenant-1", "hi"));
+            assertEquals(Optional.of(Embedding.of(1f, 0f)), repository.findEmbedding("tenant-1", "hi"));
+            assertEquals(1, repository.openConversations());
+        }
+        assertEquals(
+                List.of(Message.DEFAULT_CONVERSATION, "tenant-1", "tenant-2", "tenant-1"),
+                opens);
+    }
+
+    @Test
+    void opening_a_conversation_does_not_hold_up_the_others(@TempDir Path directory)
+    throws Exception {
+        CountDownLatch opening = new CountDownLatch(1);
+        CountDownLatch opened = new CountDownLatch(1);
+        try (PartitionedPromptRepository repository = new PartitionedPromptRepository(
+                conversation -> {
+                    if (conversation.equals("slow")) {
+                        opening.countDown();
+                        try {
+                            opened.await();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    return IndexedPromptRepository.exact(directory.resolve(conversation), 2);
+                },
+                16)) {
+            Thread slow = Thread.ofVirtual().start(() -> {
+                try {
+                    repository.saveMessage(
+                            new Message(user, "hi", Instant.ofEpochMilli(1), "slow"),
+                            Embedding.of(1f, 0f));
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            opening.await();
+
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> repository.saveMessage(
+                    new Message(user, "bye", Instant.ofEpochMilli(2), "fast"),
+                    Embedding.of(0f, 1f)));
+
+            opened.countDown();
+            slow.join();
+            assertEquals(Optional.of(Embedding.of(1f, 0f)), repository.findEmbedding("slow", "hi"));
+        }
+    }
+
+    private static PartitionedPromptRepository open(Path directory)
+    throws Exception {
+        return open(directory, 16, new ArrayList<>());
+    }
+
+    private static PartitionedPromptRepository open(Path directory, int maxOpen, List<String> opens)
+    throws Exception {
+        return new PartitionedPromptRepository(
+                conversation -> {
+                    opens.add(conversation);
+                    return IndexedPromptRepository.exact(
+                            Message.DEFAULT_CONVERSATION.equals(conversation)
+                                    ? directory
+                                    : directory.resolve("conversations").resolve(conversation),
+                            2);
+                },
+                maxOpen);
+    }
+}
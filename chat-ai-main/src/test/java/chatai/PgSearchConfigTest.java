@@ -0,0 +1,26 @@
+package chatai;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PgSearchConfigTest
+{
+    @Test
+    void sets_only_the_configured_index_settings() {
+        assertEquals(
+                "select set_config('hnsw.ef_search', '100', false), set_config('ivfflat.probes', '10', false)",
+                new PgSearchConfig(100, 100, 10, null, 0, -1).settingsSql());
+        assertEquals(
+                "select set_config('ivfflat.probes', '4', false)",
+                new PgSearchConfig(100, 0, 4, null, 0, -1).settingsSql());
+        assertEquals(
+                "select set_config('hnsw.iterative_scan', 'relaxed_order', false)",
+                new PgSearchConfig(100, 0, 0, "relaxed_order", 0, -1).settingsSql());
+        assertEquals(
+                "select set_config('hnsw.iterative_scan', 'strict_order', false), set_config('hnsw.max_scan_tuples', '5000', false)",
+                new PgSearchConfig(100, 0, 0, "strict_order", 5000, -1).settingsSql());
+        assertNull(new PgSearchConfig(100, 0, 0, null, 0, -1).settingsSql());
+    }
+}
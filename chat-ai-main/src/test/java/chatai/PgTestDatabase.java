@@ -0,0 +1,63 @@
+package chatai;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A schema of its own in the database of {@code PG_URL}, {@code PG_USER}
+ * and {@code PG_PSW}, dropped and created again from the scripts at the root
+ * of the repository. The tests using it only run when {@code PG_URL} is set,
+ * to a database with the vector extension.
+ */
+class PgTestDatabase
+{
+    private static final String SCHEMA = "chatai_test";
+    private static final int DIMENSIONS = 1536;
+    private static final List<String> SCRIPTS = List.of(
+            "messages_table.sql", "response_cache_table.sql", "compaction_cursors_table.sql");
+
+    /**
+     * Creates the schema, with an HNSW index on the messages, and returns
+     * the settings of a pool using it, passing {@code options} to the server.
+     */
+    static PgPoolConfig create(String options)
+    throws Exception {
+        PgPoolConfig env = PgPoolConfig.fromEnv();
+        try (Connection conn = DriverManager.getConnection(env.url(), env.user(), env.password());
+             Statement statement = conn.createStatement()) {
+            statement.execute("create extension if not exists vector");
+            statement.execute("drop schema if exists " + SCHEMA + " cascade");
+            statement.execute("create schema " + SCHEMA);
+            statement.execute("set search_path = " + SCHEMA + ", public");
+            for (String script : SCRIPTS)
+                statement.execute(Files.readString(Path.of("..").resolve(script)));
+            statement.execute("create index on messages using hnsw (embedding vector_cosine_ops)");
+        }
+        String url = env.url() + (env.url().contains("?") ? "&" : "?") + "currentSchema=" + SCHEMA + ",public";
+        if (options != null)
+            url += "&options=" + options.replace(" ", "%20").replace("=", "%3D");
+        return new PgPoolConfig(
+                url,
+                env.user(),
+                env.password(),
+                env.maxPoolSize(),
+                env.minIdle(),
+                env.connectionTimeoutMillis(),
+                env.idleTimeoutMillis(),
+                env.maxLifetimeMillis(),
+                env.prepareThreshold(),
+                env.statementCacheQueries());
+    }
+
+    static Embedding randomEmbedding(Random random) {
+        float[] values = new float[DIMENSIONS];
+        for (int i = 0; i < values.length; i++)
+            values[i] = (float) random.nextGaussian();
+        return new Embedding(values);
+    }
+}
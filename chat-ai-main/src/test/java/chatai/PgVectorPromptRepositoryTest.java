@@ -0,0 +1,156 @@
+package chatai;
+
+import chatai.CompactableRepository.Cursor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static chatai.Role.assistant;
+import static chatai.Role.user;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@EnabledIfEnvironmentVariable(named = "PG_URL", matches = ".+")
+class PgVectorPromptRepositoryTest
+{
+    @Test
+    void finds_the_messages_of_a_conversation_among_the_others_of_its_partition()
+    throws Exception {
+        // Only the HNSW index can avoid sorting the messages by distance
+        PgPoolConfig config = PgTestDatabase.create(
+                "-c enable_seqscan=off -c enable_bitmapscan=off -c enable_sort=off");
+        int candidates = 10;
+        Random random = new Random(0);
+        try (PgVectorPromptRepository repository = new PgVectorPromptRepository(
+                config,
+                new PgSearchConfig(candidates, candidates, 0, "relaxed_order", 20_000, -1))) {
+            // About 12 conversations per partition, of 16
+            for (int c = 0; c < 200; c++) {
+                List<Message> messages = new ArrayList<>();
+                List<Embedding> embeddings = new ArrayList<>();
+                for (int m = 0; m < candidates; m++) {
+                    messages.add(new Message(user, "message " + m, Instant.ofEpochMilli(m), "conversation-" + c));
+                    embeddings.add(PgTestDatabase.randomEmbedding(random));
+                }
+                repository.saveMessages(messages, embeddings);
+            }
+
+            Embedding prompt = PgTestDatabase.randomEmbedding(random);
+            List<Message> found = repository.semanticSearch("conversation-7", "prompt", prompt, Integer.MAX_VALUE);
+
+            assertTrue(
+                    repository.explainSearch("conversation-7", "prompt", prompt, Integer.MAX_VALUE).contains("_embedding_idx"),
+                    "The search should use the HNSW index");
+            assertEquals(candidates, found.size());
+            assertTrue(found.stream().allMatch(m -> m.conversation().equals("conversation-7")));
+        }
+    }
+
+    @Test
+    void publishes_the_metrics_of_the_connection_pool()
+    throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        try (PgVectorPromptRepository repository = new PgVectorPromptRepository(
+                PgTestDatabase.create(null), PgSearchConfig.fromEnv(), registry)) {
+            repository.contextMessages();
+
+            assertTrue(registry.get("hikaricp.connections.acquire").tag("pool", "chat-ai").timer().count() > 0);
+            assertEquals(0, registry.get("hikaricp.connections.active").tag("pool", "chat-ai").gauge().value());
+            assertTrue(registry.get("hikaricp.connections.idle").tag("pool", "chat-ai").gauge().value() > 0);
+        }
+    }
+
+    @Test
+    void compacts_from_where_the_previous_instance_left_off_one_instance_at_a_time()
+    throws Exception {
+        PgPoolConfig config = PgTestDatabase.create(null);
+        CompactionConfig compaction = new CompactionConfig(
+                Duration.ofHours(1), 2, Duration.ZERO,
+                Duration.ZERO, 4,
+                0.01, Duration.ZERO, 20, 10, null);
+        Random random = new Random(0);
+        Embedding hello = PgTestDatabase.randomEmbedding(random);
+        try (PgVectorPromptRepository repository = new PgVectorPromptRepository(
+                config,
+                new PgSearchConfig(10, 10, 0, "relaxed_order", 20_000, -1))) {
+            List<Message> messages = new ArrayList<>();
+            List<Embedding> embeddings = new ArrayList<>();
+            messages.add(new Message(user, "hello", Instant.ofEpochSecond(1), "a"));
+            embeddings.add(hello);
+            // Same embedding, but another conversation or role
+            messages.add(new Message(user, "hello from b", Instant.ofEpochSecond(2), "b"));
+            embeddings.add(hello);
+            messages.add(new Message(assistant, "hello from the assistant", Instant.ofEpochSecond(3), "a"));
+            embeddings.add(hello);
+            for (int i = 0; i < 4; i++) {
+                messages.add(new Message(user, "message " + i, Instant.ofEpochSecond(4 + i), "a"));
+                embeddings.add(PgTestDatabase.randomEmbedding(random));
+            }
+            messages.add(new Message(user, "hello!", Instant.ofEpochSecond(10), "a"));
+            embeddings.add(nearby(hello, random));
+            repository.saveMessages(messages, embeddings);
+
+            CompactionStats stats = new MessageCompactor(
+                    repository, null, compaction, new SimpleMeterRegistry()).runOnce();
+
+            assertEquals(1, stats.merged());
+            assertEquals(2, stats.trimmed());
+            assertEquals(
+                    List.of("hello from b", "message 0", "message 1", "message 2", "message 3"),
+                    contents(config));
+            long lastId = repository.cursor(Cursor.duplicates);
+            assertEquals(lastId, stats.duplicateCursor());
+            assertEquals(lastId, repository.cursor(Cursor.excess));
+
+            // A new instance goes on from the cursor
+            repository.saveMessage(
+                    new Message(user, "hello again", Instant.ofEpochSecond(11), "b"),
+                    nearby(hello, random));
+            stats = new MessageCompactor(repository, null, compaction, new SimpleMeterRegistry()).runOnce();
+            assertEquals(1, stats.merged());
+            assertEquals(lastId + 1, stats.duplicateCursor());
+
+            // And skips its run while another one compacts
+            repository.saveMessage(
+                    new Message(user, "hello at last", Instant.ofEpochSecond(12), "b"),
+                    nearby(hello, random));
+            try (Connection other = DriverManager.getConnection(config.url(), config.user(), config.password());
+                 PreparedStatement lock = other.prepareStatement("select pg_advisory_lock(?)")) {
+                lock.setLong(1, PgVectorPromptRepository.COMPACTION_LOCK);
+                lock.executeQuery().close();
+                stats = new MessageCompactor(repository, null, compaction, new SimpleMeterRegistry()).runOnce();
+            }
+            assertEquals(0, stats.runs());
+            assertTrue(contents(config).contains("hello at last"));
+        }
+    }
+
+    private static Embedding nearby(Embedding embedding, Random random) {
+        float[] values = embedding.values().clone();
+        for (int i = 0; i < values.length; i++)
+            values[i] += (float) (random.nextGaussian() * 0.001);
+        return new Embedding(values);
+    }
+
+    private static List<String> contents(PgPoolConfig config)
+    throws Exception {
+        try (Connection conn = DriverManager.getConnection(config.url(), config.user(), config.password());
+             PreparedStatement select = conn.prepareStatement("select contents from messages order by id")) {
+            ResultSet rs = select.executeQuery();
+            List<String> contents = new ArrayList<>();
+            while (rs.next())
+                contents.add(rs.getString(1));
+            return contents;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package chatai;
+
+import chatai.QuantizedIndex.Quantization;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuantizedIndexTest
+{
+    private static final int K = 10;
+
+    private final ExactIndex exact = RecallReport.synthetic(256, 5_000, new Random(3));
+    private final List<float[]> queries = RecallReport.queries(exact, 100, new Random(4));
+
+    @Test
+    void int8_codes_recall_nearly_all_neighbours() {
+        QuantizedIndex index = quantized(Quantization.int8, 4);
+
+        double recall = RecallReport.recall(index::search, exact, queries, K);
+
+        assertTrue(recall >= 0.95, "Recall@" + K + " was " + recall);
+    }
+
+    @Test
+    void binary_codes_recall_nearly_all_neighbours_when_reranking_more() {
+        QuantizedIndex index = quantized(Quantization.binary, 20);
+
+        double recall = RecallReport.recall(index::search, exact, queries, K);
+
+        assertTrue(recall >= 0.9, "Recall@" + K + " was " + recall);
+    }
+
+    @Test
+    void reopens_the_vectors_it_was_saved_with(@TempDir Path dir)
+    throws Exception {
+        Path file = dir.resolve("quantized.f32");
+        List<VectorIndex.Neighbor> found;
+        try (QuantizedIndex index = QuantizedIndex.open(file, 256, Quantization.int8, 4)) {
+            for (int id = 0; id < 100; id++)
+                index.add(exact.vector(id));
+            found = index.search(queries.get(0), K);
+            index.save(file);
+        }
+
+        try (QuantizedIndex index = QuantizedIndex.open(file, 256, Quantization.int8, 4)) {
+            assertEquals(100, index.size());
+            assertArrayEquals(exact.vector(42), index.vector(42));
+            assertEquals(found, index.search(queries.get(0), K));
+        }
+    }
+
+    @Test
+    void int8_dot_products_are_the_same_with_simd_and_scalar_kernels() {
+        Random random = new Random(5);
+        byte[] a = new byte[1539];
+        byte[] b = new byte[1539];
+        random.nextBytes(a);
+        random.nextBytes(b);
+
+        assertEquals(
+                new ScalarSimilarityKernel().dot(a, 0, b, 3, 1536),
+                new VectorSimilarityKernel().dot(a, 0, b, 3, 1536));
+    }
+
+    private QuantizedIndex quantized(Quantization quantization, int rerankFactor) {
+        QuantizedIndex index = new QuantizedIndex(256, quantization, rerankFactor);
+        for (int id = 0; id < exact.size(); id++)
+            index.add(exact.vector(id));
+        return index;
+    }
+}
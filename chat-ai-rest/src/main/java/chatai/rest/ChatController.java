@@ -1,21 +1,40 @@
 package chatai.rest;
 
 import chatai.Chat;
+import chatai.ChatDelta;
 import chatai.ChatRequest;
 import chatai.ChatResponse;
+import io.smallrye.mutiny.Multi;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import org.jboss.resteasy.reactive.RestStreamElementType;
 
 @Path("/chat")
+@ApplicationScoped
 public class ChatController
 {
+    @Inject
+    Chat chat;
+
     @POST
     @Produces("application/json")
     @Consumes("application/json")
     public ChatResponse askCompletion(ChatRequest request)
     throws Exception {
-        return Chat.create().askCompletion(request);
+        return chat.askCompletion(request);
+    }
+
+    @POST
+    @Path("/stream")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @RestStreamElementType(MediaType.APPLICATION_JSON)
+    @Consumes("application/json")
+    public Multi<ChatDelta> streamCompletion(ChatRequest request) {
+        return Multi.createFrom().publisher(chat.streamCompletion(request));
     }
 }
@@ -1,5 +1,6 @@
 package chatai.rest;
 
+import chatai.InvalidRequestException;
 import org.jboss.logging.Logger;
 
 import jakarta.ws.rs.core.Response;
@@ -15,6 +16,16 @@ public class ChatLog
 
     @Override
     public Response toResponse(Exception e) {
+        // Invalid requests, such as a malformed conversation, fail while bound
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InvalidRequestException invalid) {
+                LOG.warn(invalid.getMessage());
+                return Response
+                        .status(Response.Status.BAD_REQUEST)
+                        .entity(invalid.getMessage())
+                        .build();
+            }
+        }
         LOG.error(e);
         return Response
                 .serverError()
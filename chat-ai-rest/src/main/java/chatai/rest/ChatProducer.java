@@ -0,0 +1,28 @@
+package chatai.rest;
+
+import chatai.Chat;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Disposes;
+import jakarta.enterprise.inject.Produces;
+import jakarta.inject.Singleton;
+
+/**
+ * Creates a single {@link Chat} for the whole application, along with its
+ * repository and client, and closes it on shutdown. Its metrics are
+ * exposed at {@code /q/metrics}.
+ */
+@ApplicationScoped
+public class ChatProducer
+{
+    @Produces
+    @Singleton
+    Chat chat(MeterRegistry registry) {
+        return Chat.create(registry);
+    }
+
+    void close(@Disposes Chat chat)
+    throws Exception {
+        chat.close();
+    }
+}
@@ -0,0 +1,102 @@
+package chatai.rest;
+
+import chatai.Chat;
+import chatai.Env;
+import io.quarkus.runtime.Quarkus;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import jakarta.inject.Provider;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+import org.jboss.logging.Logger;
+
+/**
+ * Creates and warms up the {@link Chat} on startup, in the background, and
+ * only reports ready at {@code /q/health/ready} once done, so that the first
+ * requests after a rollout are not the slowest ones. Warming up is retried
+ * every 5 seconds, for instance while the database is not reachable, up to
+ * {@code CHAT_WARM_UP_MAX_ATTEMPTS} times (default: 12), after which the
+ * application exits with status 1, to be restarted, rather than staying
+ * unready forever; the training run of the {@code cds} profile fails
+ * instead of hanging the build.
+ * <p>
+ * With {@code CHAT_WARM_UP=false}, the {@link Chat} is created on the
+ * first request, and the application is ready straight away. With
+ * {@code CHAT_EXIT_AFTER_WARM_UP=true}, the application exits once warmed
+ * up, as the training run of the {@code cds} profile does.
+ */
+@Readiness
+@ApplicationScoped
+public class ChatWarmUp
+        implements HealthCheck
+{
+    private static final Logger LOG = Logger.getLogger(ChatWarmUp.class);
+
+    private static final long RETRY_MILLIS = 5_000;
+
+    private final boolean enabled = Env.bool("CHAT_WARM_UP", true);
+    private final int iterations = Env.integer("CHAT_WARM_UP_ITERATIONS", 500);
+    private final int maxAttempts = Math.max(1, Env.integer("CHAT_WARM_UP_MAX_ATTEMPTS", 12));
+    private final boolean exitAfterWarmUp = Env.bool("CHAT_EXIT_AFTER_WARM_UP", false);
+
+    @Inject
+    Provider<Chat> chat;
+
+    private volatile boolean done;
+    private volatile String error;
+    private volatile Thread thread;
+
+    void start(@Observes StartupEvent event) {
+        if (!enabled) {
+            done = true;
+            return;
+        }
+        thread = Thread.ofVirtual().name("chat-warm-up").start(this::warmUp);
+    }
+
+    void stop(@Observes ShutdownEvent event) {
+        Thread warmingUp = thread;
+        if (warmingUp != null)
+            warmingUp.interrupt();
+    }
+
+    @Override
+    public HealthCheckResponse call() {
+        return HealthCheckResponse.named("chat")
+                .status(done)
+                .withData("warmedUp", enabled && done)
+                .withData("error", error == null ? "" : error)
+                .build();
+    }
+
+    private void warmUp() {
+        for (int attempt = 1; !done; attempt++) {
+            long start = System.nanoTime();
+            try {
+                chat.get().warmUp(iterations);
+                done = true;
+                error = null;
+                LOG.info("Warmed up in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                if (exitAfterWarmUp)
+                    Quarkus.asyncExit();
+            } catch (Exception e) {
+                error = e.toString();
+                if (attempt == maxAttempts) {
+                    LOG.error("Cannot warm up after " + attempt + " attempts, exiting", e);
+                    Quarkus.asyncExit(1);
+                    return;
+                }
+                LOG.warn("Cannot warm up, retrying in " + RETRY_MILLIS + " ms", e);
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+-- Where the compaction steps scanning the messages saved since their previous
+-- run left off, shared by all the instances, of which only one compacts at a
+-- time.
+create table compaction_cursors (
+  name varchar(50) primary key,
+  last_id bigint not null
+);
@@ -0,0 +1,18 @@
+create or replace function notify_config_change() returns trigger as $$
+begin
+  perform pg_notify('chat_config', TG_TABLE_NAME);
+  return null;
+end;
+$$ language plpgsql;
+
+drop trigger if exists contexts_changed on contexts;
+
+create trigger contexts_changed
+  after insert or update or delete or truncate on contexts
+  for each statement execute function notify_config_change();
+
+drop trigger if exists model_functions_changed on model_functions;
+
+create trigger model_functions_changed
+  after insert or update or delete or truncate on model_functions
+  for each statement execute function notify_config_change();
@@ -0,0 +1,23 @@
+-- Requires pgvector 0.5.0 or later. Indexes cannot be built concurrently on
+-- a partitioned table, so each partition gets its own, built concurrently,
+-- so that messages can still be saved meanwhile, then attached to an index
+-- of the whole table: psql must not run this inside a transaction.
+drop index if exists messages_embedding_ivfflat;
+
+create index if not exists messages_embedding_hnsw
+  on only messages using hnsw (embedding vector_cosine_ops)
+  with (m = 16, ef_construction = 64);
+
+select format(
+         'create index concurrently if not exists %I on %I using hnsw (embedding vector_cosine_ops) with (m = 16, ef_construction = 64)',
+         c.relname || '_embedding_hnsw', c.relname)
+from pg_inherits i
+join pg_class c on c.oid = i.inhrelid
+where i.inhparent = 'messages'::regclass \gexec
+
+select format('alter index messages_embedding_hnsw attach partition %I', p.relname)
+from pg_inherits i
+join pg_class c on c.oid = i.inhrelid
+join pg_class p on p.relname = c.relname || '_embedding_hnsw'
+where i.inhparent = 'messages'::regclass
+  and not exists (select 1 from pg_inherits a where a.inhrelid = p.oid) \gexec
@@ -0,0 +1,28 @@
+-- IVFFlat clusters the embeddings already saved, so build it once there are
+-- messages: rows / 1000 lists per partition up to a million rows, sqrt(rows)
+-- beyond, estimated by analyze. As in hnsw_index.sql, each partition is
+-- indexed concurrently, so psql must not run this inside a transaction.
+analyze messages;
+
+drop index if exists messages_embedding_hnsw;
+
+create index if not exists messages_embedding_ivfflat
+  on only messages using ivfflat (embedding vector_cosine_ops);
+
+select format(
+         'create index concurrently if not exists %I on %I using ivfflat (embedding vector_cosine_ops) with (lists = %s)',
+         c.relname || '_embedding_ivfflat', c.relname,
+         greatest(1, case
+                       when c.reltuples <= 1000000 then c.reltuples::bigint / 1000
+                       else sqrt(c.reltuples)::bigint
+                     end))
+from pg_inherits i
+join pg_class c on c.oid = i.inhrelid
+where i.inhparent = 'messages'::regclass \gexec
+
+select format('alter index messages_embedding_ivfflat attach partition %I', p.relname)
+from pg_inherits i
+join pg_class c on c.oid = i.inhrelid
+join pg_class p on p.relname = c.relname || '_embedding_ivfflat'
+where i.inhparent = 'messages'::regclass
+  and not exists (select 1 from pg_inherits a where a.inhrelid = p.oid) \gexec
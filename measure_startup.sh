@@ -0,0 +1,83 @@
+#!/bin/sh
+
+# Measures the time from launch to first response, without and with the class-data
+# sharing archive built with `mvn install -Pcds`, as the median of several runs.
+# It needs neither a database nor OpenAI, as messages are kept in a temporary directory:
+#  - cli: runs the CLI with one `:context` command, until it exits;
+#  - rest: starts the server without warm-up, until /q/health/ready answers.
+#
+# Usage: ./measure_startup.sh (cli|rest) [runs]
+
+set -e
+
+target=${1:-cli}
+runs=${2:-10}
+port=18080
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+export CHAT_REPOSITORY=exact
+export EMBEDDING_DIMENSIONS=3
+export CHAT_WARM_UP=false
+export QUARKUS_HTTP_PORT=$port
+
+case "$target" in
+  cli)
+    archive=chat-ai-main/target/chat-ai-main.jsa
+    app="-jar $(ls chat-ai-main/target/chat-ai-*-jar-with-dependencies.jar)"
+    ;;
+  rest)
+    archive=chat-ai-rest/target/quarkus-app/chat-ai-rest.jsa
+    app="-jar chat-ai-rest/target/quarkus-app/quarkus-run.jar"
+    ;;
+  *)
+    echo "Usage: $0 (cli|rest) [runs]" >&2
+    exit 1
+    ;;
+esac
+
+millis() {
+  echo $(( $(date +%s%N) / 1000000 ))
+}
+
+run() {
+  export CHAT_INDEX_DIR="$work/index-$(date +%s%N)"
+  start=$(millis)
+  if [ "$target" = cli ]; then
+    echo ":context save startup measured" \
+      | java "$@" --enable-preview --add-modules jdk.incubator.vector $app > /dev/null 2>&1
+  else
+    java "$@" --enable-preview --add-modules jdk.incubator.vector $app > /dev/null 2>&1 &
+    pid=$!
+    until curl -sf "localhost:$port/q/health/ready" > /dev/null; do
+      sleep 0.01
+    done
+  fi
+  echo $(( $(millis) - start ))
+  if [ "$target" = rest ]; then
+    kill $pid
+    wait $pid || true
+  fi
+}
+
+median() {
+  sort -n | awk '{ v[NR] = $1 } END { print v[int((NR + 1) / 2)] }'
+}
+
+measure() {
+  label=$1
+  shift
+  run "$@" > /dev/null
+  i=0
+  while [ $i -lt "$runs" ]; do
+    run "$@"
+    i=$((i + 1))
+  done | median | xargs printf "%-12s %6s ms\n" "$label"
+}
+
+measure "no archive" -Xshare:auto
+if [ -f "$archive" ]; then
+  measure "archive" -XX:SharedArchiveFile="$archive" -Xlog:cds=off -Xlog:cds+dynamic=off
+else
+  echo "No $archive, build it with: mvn install -Pcds"
+fi
@@ -0,0 +1,28 @@
+-- Messages are hash-partitioned by conversation, so that a search only scans
+-- the partition of its conversation; unique constraints must include the
+-- partition key, so contents are unique within each conversation.
+create table messages (
+  id bigserial,
+  conversation varchar(100) not null default 'default',
+  embedding vector(1536),
+  role varchar(10),
+  contents varchar(4000),
+  message_ts timestamp not null,
+  token_count integer not null,
+  primary key (id, conversation),
+  unique (contents, conversation)
+) partition by hash (conversation);
+
+do $$
+begin
+  for r in 0..15 loop
+    execute format(
+      'create table messages_p%s partition of messages for values with (modulus 16, remainder %s)',
+      r, r);
+  end loop;
+end
+$$;
+
+-- Compaction deletes the oldest messages, of all conversations or of one.
+create index messages_message_ts on messages (message_ts);
+create index messages_conversation_message_ts on messages (conversation, message_ts);
@@ -0,0 +1,27 @@
+-- Moves the messages of a database created before they were partitioned by
+-- conversation into the partitioned table, all in the default conversation.
+-- Count their tokens before, as the partitioned table requires them:
+--   alter table messages add column token_count integer
+--   java -cp chat-ai-main/target/chat-ai-main-0.1-SNAPSHOT-jar-with-dependencies.jar chatai.TokenCountBackfill
+begin;
+
+alter table messages rename to messages_unpartitioned;
+alter table messages_unpartitioned rename constraint messages_pkey to messages_unpartitioned_pkey;
+alter table messages_unpartitioned rename constraint messages_contents_key to messages_unpartitioned_contents_key;
+drop index if exists messages_embedding_hnsw;
+drop index if exists messages_embedding_ivfflat;
+
+\ir messages_table.sql
+
+insert into messages (id, conversation, embedding, role, contents, message_ts, token_count)
+select id, 'default', embedding, role, contents, message_ts, token_count
+from messages_unpartitioned;
+
+select setval(pg_get_serial_sequence('messages', 'id'), coalesce(max(id), 1))
+from messages;
+
+drop table messages_unpartitioned;
+
+commit;
+
+\ir hnsw_index.sql
@@ -1,16 +1,18 @@
 drop table if exists messages;
 
+drop table if exists response_cache;
+
+drop table if exists compaction_cursors;
+
 drop table if exists contexts;
 
 drop table if exists model_functions;
 
-create table messages (
-  id bigserial PRIMARY KEY,
-  embedding vector(1536),
-  role varchar(10),
-  contents varchar(4000) UNIQUE,
-  message_ts timestamp not null 
-);
+\ir messages_table.sql
+
+\ir response_cache_table.sql
+
+\ir compaction_cursors_table.sql
 
 create table contexts (
   id bigserial PRIMARY KEY,
@@ -23,3 +25,7 @@ create table model_functions (
   name varchar(100) UNIQUE,
   body json not null
 );
+
+\ir config_triggers.sql
+
+\ir hnsw_index.sql
@@ -0,0 +1,17 @@
+-- Replies to earlier prompts, reused for similar prompts of the same
+-- conversation, contexts and functions (setup_key) until they expire.
+-- A lookup compares the prompt to the 1000 live replies of its conversation
+-- and setup expiring last, found through the first index, so it needs no
+-- vector index and takes the same time however many replies are kept.
+create table response_cache (
+  id bigserial primary key,
+  conversation varchar(100) not null,
+  setup_key char(64) not null,
+  prompt varchar(4000) not null,
+  embedding vector(1536) not null,
+  response text not null,
+  expires_ts timestamptz not null
+);
+
+create index response_cache_scope on response_cache (conversation, setup_key, expires_ts);
+create index response_cache_expires_ts on response_cache (expires_ts);
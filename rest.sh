@@ -1,3 +1,6 @@
 #!/bin/sh
 
-java --enable-preview -jar chat-ai-rest/target/quarkus-app/quarkus-run.jar
+# Uses the class-data sharing archive built with `mvn install -Pcds`, when there is one;
+# it is re-created on exit if the application has changed since.
+java -XX:SharedArchiveFile=chat-ai-rest/target/quarkus-app/chat-ai-rest.jsa -XX:+AutoCreateSharedArchive -Xlog:cds=off -Xlog:cds+dynamic=off \
+  --enable-preview --add-modules jdk.incubator.vector -jar chat-ai-rest/target/quarkus-app/quarkus-run.jar